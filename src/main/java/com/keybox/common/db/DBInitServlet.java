@@ -19,6 +19,7 @@ import com.keybox.common.util.AppConfig;
 import com.keybox.manage.model.Auth;
 import com.keybox.manage.util.DBUtils;
 import com.keybox.manage.util.EncryptionUtil;
+import com.keybox.manage.util.AuditPurgeUtil;
 import com.keybox.manage.util.RefreshAuthKeyUtil;
 import com.keybox.manage.util.SSHUtil;
 
@@ -148,6 +149,9 @@ public class DBInitServlet extends javax.servlet.http.HttpServlet {
 			}
 			DBUtils.closeRs(rs);
 
+			//bring existing databases up to the current schema
+			SchemaMigration.migrate(connection);
+
 			//if reset ssh application key then generate new key
 			if (resetSSHKey) {
 
@@ -183,6 +187,9 @@ public class DBInitServlet extends javax.servlet.http.HttpServlet {
 				//set to false
 				AppConfig.updateProperty("resetApplicationSSHKey", "false");
 
+				//drop cached key and sessions opened with the old key
+				SSHUtil.resetApplicationKey();
+
 			}
 
 			//delete ssh keys
@@ -199,6 +206,7 @@ public class DBInitServlet extends javax.servlet.http.HttpServlet {
 
 
 		RefreshAuthKeyUtil.startRefreshAllSystemsTimerTask();
+		AuditPurgeUtil.startAuditPurgeTimerTask();
 	}
 
 }
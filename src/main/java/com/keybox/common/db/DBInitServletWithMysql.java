@@ -19,7 +19,9 @@ import com.keybox.common.util.AppConfig;
 import com.keybox.manage.model.Auth;
 import com.keybox.manage.util.DBUtils;
 import com.keybox.manage.util.EncryptionUtil;
+import com.keybox.manage.util.AuditPurgeUtil;
 import com.keybox.manage.util.RefreshAuthKeyUtil;
+import com.keybox.manage.util.TerminalLogPartitionUtil;
 import com.keybox.manage.util.SSHUtil;
 
 import javax.servlet.ServletConfig;
@@ -30,6 +32,7 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.Statement;
+import java.util.Date;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.Map;
@@ -136,7 +139,11 @@ public class DBInitServletWithMysql extends javax.servlet.http.HttpServlet {
 		        maps.put("sqlCreateScriptsTable", sqlStr.getSqlCreateScriptsTable()); 
 		        maps.put("sqlPublicKeysTable", sqlStr.getSqlCreatePublicKeysTable());    
 		        maps.put("sqlSessionLogTable", sqlStr.getSqlCreateSessionLogTable());    
-		        maps.put("sqlTerminalLogTable", sqlStr.getSqlCreateTerminalLogTable());    
+		        if (TerminalLogPartitionUtil.PARTITION_ENABLED) {
+		        	maps.put("sqlTerminalLogTable", sqlStr.getSqlCreatePartitionedTerminalLogTable(TerminalLogPartitionUtil.getPartitionClause(new Date(), AuditPurgeUtil.RETENTION_DAYS)));
+		        } else {
+		        	maps.put("sqlTerminalLogTable", sqlStr.getSqlCreateTerminalLogTable());
+		        }    
 			       
 		        Iterator it = maps.entrySet().iterator();    
 		        while(it.hasNext())    
@@ -178,7 +185,12 @@ public class DBInitServletWithMysql extends javax.servlet.http.HttpServlet {
 				
 			}
 			DBUtils.closeRs(rs);
-				
+
+			//bring existing databases up to the current schema
+			SchemaMigration.migrate(connection);
+			if (TerminalLogPartitionUtil.PARTITION_ENABLED && !TerminalLogPartitionUtil.isPartitioned(connection)) {
+				log.warn("mysqlPartitionTerminalLog is set but the existing terminal_log table is not partitioned, partitioning is only applied when the table is created");
+			}
 		
 		//if reset ssh application key then generate new key
 		if (resetSSHKey) {
@@ -218,6 +230,9 @@ public class DBInitServletWithMysql extends javax.servlet.http.HttpServlet {
 			//set to false
 			AppConfig.updateProperty("resetApplicationSSHKey", "false");
 
+			//drop cached key and sessions opened with the old key
+			SSHUtil.resetApplicationKey();
+
 		}
 
 		//delete ssh keys
@@ -233,6 +248,7 @@ public class DBInitServletWithMysql extends javax.servlet.http.HttpServlet {
 		}
 		
 		RefreshAuthKeyUtil.startRefreshAllSystemsTimerTask();
+		AuditPurgeUtil.startAuditPurgeTimerTask();
 	}
 
 }
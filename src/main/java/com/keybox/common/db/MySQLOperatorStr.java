@@ -149,15 +149,141 @@ public class MySQLOperatorStr {
 		return "create table if not exists terminal_log(\n" + 
 				"  session_id BIGINT\n" + 
 				", instance_id INTEGER\n" + 
-				", output varchar(100) not null\n" + 
+				", output mediumtext not null\n" + 
 				", log_tm timestamp default CURRENT_TIMESTAMP\n" + 
 				", display_nm varchar(100) not null\n" + 
 				", user varchar(50) not null\n" + 
 				", host varchar(50) not null\n" + 
 				", port INTEGER not null\n" + 
+				", id BIGINT not null auto_increment\n" + 
+				", index terminal_log_id_idx (id)\n" + 
+				", index terminal_log_seek_idx (session_id, instance_id, log_tm, id)\n" + 
 				", foreign key (session_id) references session_log(id) on delete cascade);";
 	}
 
+	/**
+	 * partitioned tables can not have foreign keys, output is removed with its partition
+	 * or by the audit purge when the session is deleted
+	 *
+	 * @param partitionClause partition by clause
+	 * @return create table statement
+	 */
+	public String getSqlCreatePartitionedTerminalLogTable(String partitionClause) {
+		return "create table if not exists terminal_log(\n" + 
+				"  session_id BIGINT\n" + 
+				", instance_id INTEGER\n" + 
+				", output mediumtext not null\n" + 
+				", log_tm timestamp not null default CURRENT_TIMESTAMP\n" + 
+				", display_nm varchar(100) not null\n" + 
+				", user varchar(50) not null\n" + 
+				", host varchar(50) not null\n" + 
+				", port INTEGER not null\n" + 
+				", id BIGINT not null auto_increment\n" + 
+				", index terminal_log_id_idx (id)\n" + 
+				", index terminal_log_seek_idx (session_id, instance_id, log_tm, id))\n" + 
+				partitionClause + ";";
+	}
+
+	public String getSqlSelectTerminalLogOutputType() {
+		return "select data_type from information_schema.columns where table_schema = database() and table_name = 'terminal_log' and column_name = 'output'";
+	}
+
+	public String getSqlAlterTerminalLogOutput() {
+		return "alter table terminal_log modify output mediumtext not null";
+	}
+
+	public String getSqlSelectTerminalLogIdColumn() {
+		return "select column_name from information_schema.columns where table_schema = database() and table_name = 'terminal_log' and column_name = 'id'";
+	}
+
+	/**
+	 * auto increment columns only need an index, partitioned tables can not have a unique key without log_tm
+	 *
+	 * @return alter table statement
+	 */
+	public String getSqlAlterTerminalLogAddId() {
+		return "alter table terminal_log add column id BIGINT not null auto_increment, add index terminal_log_id_idx (id)";
+	}
+
+	public String getSqlCreateTerminalLogTermTable() {
+		return "create table if not exists terminal_log_term(\n" + 
+				"  term varchar(64) not null\n" + 
+				", session_id BIGINT\n" + 
+				", instance_id INTEGER\n" + 
+				", log_tm timestamp default CURRENT_TIMESTAMP\n" + 
+				", index terminal_log_term_idx (term, log_tm)\n" + 
+				", foreign key (session_id) references session_log(id) on delete cascade);";
+	}
+
+	public String getSqlCreateTerminalTermTable() {
+		return "create table if not exists terminal_term(\n" + 
+				"  term varchar(64) not null\n" + 
+				", session_id BIGINT not null\n" + 
+				", instance_id INTEGER not null\n" + 
+				", first_tm timestamp not null default CURRENT_TIMESTAMP\n" + 
+				", last_tm timestamp not null default CURRENT_TIMESTAMP\n" + 
+				", primary key (term, session_id, instance_id)\n" + 
+				", foreign key (session_id) references session_log(id) on delete cascade);";
+	}
+
+	public String getSqlCreateSessionHostTable() {
+		return "create table if not exists session_host(\n" + 
+				"  session_id BIGINT\n" + 
+				", instance_id INTEGER\n" + 
+				", display_nm varchar(100) not null\n" + 
+				", user varchar(50) not null\n" + 
+				", host varchar(50) not null\n" + 
+				", port INTEGER not null\n" + 
+				", first_log_tm timestamp null\n" + 
+				", last_log_tm timestamp null\n" + 
+				", output_size BIGINT not null default 0\n" + 
+				", primary key (session_id, instance_id)\n" + 
+				", index session_host_display_nm_idx (display_nm)\n" + 
+				", foreign key (session_id) references session_log(id) on delete cascade);";
+	}
+
+	public String getSqlCreateTerminalSegmentTable() {
+		return "create table if not exists terminal_segment(\n" + 
+				"  session_id BIGINT\n" + 
+				", instance_id INTEGER\n" + 
+				", segment_no INTEGER not null\n" + 
+				", block_offset BIGINT not null\n" + 
+				", block_length INTEGER not null\n" + 
+				", first_log_tm timestamp null\n" + 
+				", last_log_tm timestamp null\n" + 
+				", entry_count INTEGER not null\n" + 
+				", index terminal_segment_idx (session_id, instance_id, segment_no, block_offset)\n" + 
+				", foreign key (session_id) references session_log(id) on delete cascade);";
+	}
+
+	public String getSqlCreateTerminalLogBlockTable() {
+		return "create table if not exists terminal_log_block(\n" + 
+				"  session_id BIGINT\n" + 
+				", instance_id INTEGER\n" + 
+				", block_seq BIGINT not null\n" + 
+				", first_log_tm timestamp null\n" + 
+				", last_log_tm timestamp null\n" + 
+				", entry_count INTEGER not null\n" + 
+				", output mediumblob not null\n" + 
+				", index terminal_log_block_idx (session_id, instance_id, block_seq)\n" + 
+				", foreign key (session_id) references session_log(id) on delete cascade);";
+	}
+
+
+	public String getSqlCreateTerminalCommandTable() {
+		return "create table if not exists terminal_command(\n" + 
+				"  session_id BIGINT\n" + 
+				", instance_id INTEGER\n" + 
+				", username varchar(50) not null\n" + 
+				", display_nm varchar(100) not null\n" + 
+				", user varchar(50) not null\n" + 
+				", host varchar(50) not null\n" + 
+				", command varchar(1000) not null\n" + 
+				", log_tm timestamp default CURRENT_TIMESTAMP\n" + 
+				", index terminal_command_username_idx (username, log_tm)\n" + 
+				", index terminal_command_display_nm_idx (display_nm, log_tm)\n" + 
+				", foreign key (session_id) references session_log(id) on delete cascade);";
+	}
 
 	public String getSqlInsertTerminalLogTable() {
 		return "insert into users (username, password, user_type, salt) values(?,?,?,?)";
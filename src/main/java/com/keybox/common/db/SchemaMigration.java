@@ -0,0 +1,260 @@
+/**
+ * Copyright 2013 Sean Kavanagh - sean.p.kavanagh6@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.keybox.common.db;
+
+import com.keybox.manage.db.SessionAuditDB;
+import com.keybox.manage.util.DBUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Versioned schema changes applied at startup by the DB init servlets. The applied version
+ * is kept in schema_version and each migration after it is run in order, so existing
+ * databases are brought up to date. Migrations only create what is missing so a migration
+ * interrupted part way can be run again.
+ */
+public class SchemaMigration {
+
+    private static Logger log = LoggerFactory.getLogger(SchemaMigration.class);
+
+    public static final int SCHEMA_VERSION = 9;
+
+    private SchemaMigration() {
+    }
+
+    /**
+     * applies the migrations after the current schema version
+     *
+     * @param con DB connection
+     * @throws SQLException if a migration could not be applied
+     */
+    public static void migrate(Connection con) throws SQLException {
+
+        boolean mysql = DBUtils.isMySQL(con);
+        Statement stmt = con.createStatement();
+        try {
+            stmt.executeUpdate("create table if not exists schema_version (version INTEGER PRIMARY KEY, description varchar(200) not null, applied_tm timestamp default CURRENT_TIMESTAMP)");
+
+            int version = 0;
+            ResultSet rs = stmt.executeQuery("select max(version) from schema_version");
+            if (rs.next()) {
+                version = rs.getInt(1);
+            }
+            DBUtils.closeRs(rs);
+
+            for (int next = version + 1; next <= SCHEMA_VERSION; next++) {
+                String description = migrate(con, stmt, mysql, next);
+
+                PreparedStatement insertStmt = con.prepareStatement("insert into schema_version (version, description) values (?,?)");
+                insertStmt.setInt(1, next);
+                insertStmt.setString(2, description);
+                insertStmt.execute();
+                DBUtils.closeStmt(insertStmt);
+                log.info("Applied schema migration " + next + ": " + description);
+            }
+        } finally {
+            DBUtils.closeStmt(stmt);
+        }
+    }
+
+    /**
+     * applies a single migration
+     *
+     * @param con     DB connection
+     * @param stmt    statement for schema changes
+     * @param mysql   true if the database is MySQL
+     * @param version schema version to migrate to
+     * @return description of the migration
+     * @throws SQLException if the migration could not be applied
+     */
+    private static String migrate(Connection con, Statement stmt, boolean mysql, int version) throws SQLException {
+
+        MySQLOperatorStr sqlStr = new MySQLOperatorStr();
+        switch (version) {
+            case 1:
+                //search index for terminal output
+                if (mysql) {
+                    stmt.executeUpdate(sqlStr.getSqlCreateTerminalLogTermTable());
+                } else {
+                    stmt.executeUpdate("create table if not exists terminal_log_term (term varchar(64) not null, session_id BIGINT, instance_id INTEGER, log_tm timestamp default CURRENT_TIMESTAMP, foreign key (session_id) references session_log(id) on delete cascade)");
+                    createIndex(con, stmt, false, "terminal_log_term", "terminal_log_term_idx", "term, log_tm");
+                }
+                return "terminal output search index";
+
+            case 2:
+                //summary of audited terminals per session, filled from existing audit logs
+                if (mysql) {
+                    stmt.executeUpdate(sqlStr.getSqlCreateSessionHostTable());
+                } else {
+                    stmt.executeUpdate("create table if not exists session_host (session_id BIGINT, instance_id INTEGER, display_nm varchar not null, user varchar not null, host varchar not null, port INTEGER not null, first_log_tm timestamp, last_log_tm timestamp, output_size BIGINT not null default 0, primary key (session_id, instance_id), foreign key (session_id) references session_log(id) on delete cascade)");
+                    createIndex(con, stmt, false, "session_host", "session_host_display_nm_idx", "display_nm");
+                }
+                SessionAuditDB.initSessionHosts(con);
+                return "session host summary";
+
+            case 3:
+                //block index for the segment file audit store
+                if (mysql) {
+                    stmt.executeUpdate(sqlStr.getSqlCreateTerminalSegmentTable());
+                } else {
+                    stmt.executeUpdate("create table if not exists terminal_segment (session_id BIGINT, instance_id INTEGER, segment_no INTEGER not null, block_offset BIGINT not null, block_length INTEGER not null, first_log_tm timestamp, last_log_tm timestamp, entry_count INTEGER not null, foreign key (session_id) references session_log(id) on delete cascade)");
+                    createIndex(con, stmt, false, "terminal_segment", "terminal_segment_idx", "session_id, instance_id, segment_no, block_offset");
+                }
+                return "segment audit store index";
+
+            case 4:
+                //compressed output blocks for the block audit store
+                if (mysql) {
+                    stmt.executeUpdate(sqlStr.getSqlCreateTerminalLogBlockTable());
+                } else {
+                    stmt.executeUpdate("create table if not exists terminal_log_block (session_id BIGINT, instance_id INTEGER, block_seq BIGINT not null, first_log_tm timestamp, last_log_tm timestamp, entry_count INTEGER not null, output blob not null, foreign key (session_id) references session_log(id) on delete cascade)");
+                    createIndex(con, stmt, false, "terminal_log_block", "terminal_log_block_idx", "session_id, instance_id, block_seq");
+                }
+                return "block audit store";
+
+            case 5:
+                //terminal_log output was created as varchar(100) on MySQL
+                if (mysql) {
+                    ResultSet rs = stmt.executeQuery(sqlStr.getSqlSelectTerminalLogOutputType());
+                    boolean varchar = rs.next() && "varchar".equalsIgnoreCase(rs.getString(1));
+                    DBUtils.closeRs(rs);
+                    if (varchar) {
+                        stmt.executeUpdate(sqlStr.getSqlAlterTerminalLogOutput());
+                    }
+                }
+                return "terminal log output size";
+
+            case 6:
+                //indexes for lookups that otherwise scan the table
+                createIndex(con, stmt, mysql, "terminal_log", "terminal_log_session_idx", "session_id, instance_id, log_tm");
+                createIndex(con, stmt, mysql, "session_log", "session_log_session_tm_idx", "session_tm");
+                createIndex(con, stmt, mysql, "public_keys", "public_keys_fingerprint_idx", "fingerprint");
+                //prefix keeps the key within the InnoDB limit for multi-byte charsets
+                createIndex(con, stmt, mysql, "users", "users_auth_token_idx", mysql ? "auth_token(191)" : "auth_token");
+                createIndex(con, stmt, mysql, "status", "status_user_idx", "user_id, status_cd");
+                return "lookup indexes";
+
+            case 7:
+                //commands run in audited terminals
+                if (mysql) {
+                    stmt.executeUpdate(sqlStr.getSqlCreateTerminalCommandTable());
+                } else {
+                    stmt.executeUpdate("create table if not exists terminal_command (session_id BIGINT, instance_id INTEGER, username varchar not null, display_nm varchar not null, user varchar not null, host varchar not null, command varchar(1000) not null, log_tm timestamp default CURRENT_TIMESTAMP, foreign key (session_id) references session_log(id) on delete cascade)");
+                    createIndex(con, stmt, false, "terminal_command", "terminal_command_username_idx", "username, log_tm");
+                    createIndex(con, stmt, false, "terminal_command", "terminal_command_display_nm_idx", "display_nm, log_tm");
+                }
+                return "terminal command index";
+
+            case 8:
+                //row key so terminal output with the same log time is read in a fixed order
+                if (mysql) {
+                    ResultSet rs = stmt.executeQuery(sqlStr.getSqlSelectTerminalLogIdColumn());
+                    boolean exists = rs.next();
+                    DBUtils.closeRs(rs);
+                    if (!exists) {
+                        stmt.executeUpdate(sqlStr.getSqlAlterTerminalLogAddId());
+                    }
+                } else {
+                    stmt.executeUpdate("alter table terminal_log add column if not exists id BIGINT auto_increment");
+                }
+                createIndex(con, stmt, mysql, "terminal_log", "terminal_log_seek_idx", "session_id, instance_id, log_tm, id");
+                //the seek index covers every lookup of the session index it replaces
+                dropIndex(con, stmt, mysql, "terminal_log", "terminal_log_session_idx");
+                return "terminal log row key";
+
+            case 9:
+                //one search index row per term and terminal instead of one per term per output chunk
+                if (mysql) {
+                    stmt.executeUpdate(sqlStr.getSqlCreateTerminalTermTable());
+                } else {
+                    stmt.executeUpdate("create table if not exists terminal_term (term varchar(64) not null, session_id BIGINT not null, instance_id INTEGER not null, first_tm timestamp not null, last_tm timestamp not null, primary key (term, session_id, instance_id), foreign key (session_id) references session_log(id) on delete cascade)");
+                }
+                stmt.executeUpdate("insert into terminal_term (term, session_id, instance_id, first_tm, last_tm) "
+                        + "select term, session_id, instance_id, min(log_tm), max(log_tm) from terminal_log_term "
+                        + "where session_id is not null and instance_id is not null and log_tm is not null group by term, session_id, instance_id");
+                stmt.executeUpdate("drop table terminal_log_term");
+                return "terminal output search index by terminal";
+
+            default:
+                throw new SQLException("Unknown schema version " + version);
+        }
+    }
+
+    /**
+     * creates index if it does not exist
+     *
+     * @param con     DB connection
+     * @param stmt    statement for schema changes
+     * @param mysql   true if the database is MySQL
+     * @param table   table name
+     * @param index   index name
+     * @param columns indexed columns
+     * @throws SQLException if the index could not be created
+     */
+    private static void createIndex(Connection con, Statement stmt, boolean mysql, String table, String index, String columns) throws SQLException {
+
+        if (mysql) {
+            //MySQL has no create index if not exists
+            PreparedStatement existStmt = con.prepareStatement("select * from information_schema.statistics where table_schema = database() and table_name = ? and index_name = ?");
+            existStmt.setString(1, table);
+            existStmt.setString(2, index);
+            ResultSet rs = existStmt.executeQuery();
+            boolean exists = rs.next();
+            DBUtils.closeRs(rs);
+            DBUtils.closeStmt(existStmt);
+            if (!exists) {
+                stmt.executeUpdate("create index " + index + " on " + table + " (" + columns + ")");
+            }
+        } else {
+            stmt.executeUpdate("create index if not exists " + index + " on " + table + " (" + columns + ")");
+        }
+    }
+
+    /**
+     * drops index if it exists
+     *
+     * @param con   DB connection
+     * @param stmt  statement for schema changes
+     * @param mysql true if the database is MySQL
+     * @param table table name
+     * @param index index name
+     * @throws SQLException if the index could not be dropped
+     */
+    private static void dropIndex(Connection con, Statement stmt, boolean mysql, String table, String index) throws SQLException {
+
+        if (mysql) {
+            //MySQL has no drop index if exists
+            PreparedStatement existStmt = con.prepareStatement("select * from information_schema.statistics where table_schema = database() and table_name = ? and index_name = ?");
+            existStmt.setString(1, table);
+            existStmt.setString(2, index);
+            ResultSet rs = existStmt.executeQuery();
+            boolean exists = rs.next();
+            DBUtils.closeRs(rs);
+            DBUtils.closeStmt(existStmt);
+            if (exists) {
+                stmt.executeUpdate("drop index " + index + " on " + table);
+            }
+        } else {
+            stmt.executeUpdate("drop index if exists " + index);
+        }
+    }
+}
@@ -20,7 +20,11 @@ import com.keybox.common.util.AuthUtil;
 import com.keybox.manage.db.*;
 import com.keybox.manage.model.*;
 import com.keybox.manage.model.SortedSet;
+import com.google.gson.Gson;
+import com.keybox.manage.util.SSHSessionUtil;
 import com.keybox.manage.util.SSHUtil;
+import com.keybox.manage.util.TerminalConnectUtil;
+import com.keybox.manage.util.TerminalReaderUtil;
 import com.opensymphony.xwork2.ActionSupport;
 import org.apache.struts2.convention.annotation.Action;
 import org.apache.struts2.convention.annotation.InterceptorRef;
@@ -57,6 +61,7 @@ public class SecureShellAction extends ActionSupport implements ServletRequestAw
     Integer id;
     List<HostSystem> systemList = new ArrayList<>();
     List<HostSystem> allocatedSystemList = new ArrayList<>();
+    List<HostSystem> failedSystemList = new ArrayList<>();
     UserSettings userSettings;
 
     static Map<Long, UserSchSessions> userSchSessionMap = new ConcurrentHashMap<>();
@@ -82,16 +87,22 @@ public class SecureShellAction extends ActionSupport implements ServletRequestAw
 
             //get status
             currentSystemStatus = SystemStatusDB.getSystemStatus(pendingSystemStatus.getId(), userId);
-            //if initial status run script
-            if (currentSystemStatus != null
-                    && (HostSystem.INITIAL_STATUS.equals(currentSystemStatus.getStatusCd())
-                    || HostSystem.AUTH_FAIL_STATUS.equals(currentSystemStatus.getStatusCd())
-                    || HostSystem.PUBLIC_KEY_FAIL_STATUS.equals(currentSystemStatus.getStatusCd()))
-                    ) {
+            if (currentSystemStatus != null && HostSystem.INITIAL_STATUS.equals(currentSystemStatus.getStatusCd())) {
+
+                //open every system not yet tried at once, only stopping for those that need a password or passphrase
+                openPendingSystems(userId, sessionId);
+
+            } else if (currentSystemStatus != null
+                    && (HostSystem.AUTH_FAIL_STATUS.equals(currentSystemStatus.getStatusCd())
+                    || HostSystem.PUBLIC_KEY_FAIL_STATUS.equals(currentSystemStatus.getStatusCd()))) {
 
                 //set current session
                 currentSystemStatus = SSHUtil.openSSHTermOnSystem(passphrase, password, userId, sessionId, currentSystemStatus, userSchSessionMap);
 
+                //if success try the same password or passphrase on the remaining systems
+                if (HostSystem.SUCCESS_STATUS.equals(currentSystemStatus.getStatusCd())) {
+                    openPendingSystems(userId, sessionId);
+                }
             }
             if (currentSystemStatus != null
                     && (HostSystem.AUTH_FAIL_STATUS.equals(currentSystemStatus.getStatusCd())
@@ -102,12 +113,6 @@ public class SecureShellAction extends ActionSupport implements ServletRequestAw
             } else {
 
                 pendingSystemStatus = SystemStatusDB.getNextPendingSystem(userId);
-                //if success loop through systems until finished or need password
-                while (pendingSystemStatus != null && currentSystemStatus != null && HostSystem.SUCCESS_STATUS.equals(currentSystemStatus.getStatusCd())) {
-                    currentSystemStatus = SSHUtil.openSSHTermOnSystem(passphrase, password, userId, sessionId, pendingSystemStatus, userSchSessionMap);
-                    pendingSystemStatus = SystemStatusDB.getNextPendingSystem(userId);
-                }
-
 
             }
 
@@ -137,6 +142,19 @@ public class SecureShellAction extends ActionSupport implements ServletRequestAw
     }
 
 
+    @Action(value = "/admin/getJSONConnectStatus")
+    public String getJSONConnectStatus() {
+
+        Long sessionId = AuthUtil.getSessionId(servletRequest.getSession());
+        try {
+            servletResponse.setContentType("application/json");
+            servletResponse.getOutputStream().write(new Gson().toJson(TerminalConnectUtil.getConnectStatus(sessionId)).getBytes("UTF-8"));
+        } catch (Exception ex) {
+            log.error(ex.toString(), ex);
+        }
+        return null;
+    }
+
     @Action(value = "/admin/getNextPendingSystemForTerms",
             results = {
                     @Result(name = "success", location = "/admin/secure_shell.jsp")
@@ -209,12 +227,11 @@ public class SecureShellAction extends ActionSupport implements ServletRequestAw
                 try {
                     SchSession schSession = userSchSessions.getSchSessionMap().get(id);
 
-                    //disconnect ssh session
+                    //close terminal and release its ssh session
                     if(schSession!=null) {
                         if (schSession.getChannel() != null)
                             schSession.getChannel().disconnect();
-                        if (schSession.getSession() != null)
-                            schSession.getSession().disconnect();
+                        SSHSessionUtil.release(schSession.getSession());
                         schSession.setChannel(null);
                         schSession.setSession(null);
                         schSession.setInputToChannel(null);
@@ -223,6 +240,9 @@ public class SecureShellAction extends ActionSupport implements ServletRequestAw
                     }
                     //remove from map
                     userSchSessions.getSchSessionMap().remove(id);
+                    TerminalReaderUtil.stopReader(sessionId, id);
+                    //write output the audit store holds for the terminal
+                    SessionAuditDB.closeTerminalLogs(sessionId, id);
                 } catch (Exception ex) {
                     log.error(ex.toString(), ex);
                 }
@@ -278,6 +298,35 @@ public class SecureShellAction extends ActionSupport implements ServletRequestAw
         return null;
     }
 
+    /**
+     * opens terminals on all pending systems at once using the password or passphrase given,
+     * keeping the first failure that does not need credentials to show to the user
+     *
+     * @param userId    user id
+     * @param sessionId session id
+     */
+    private void openPendingSystems(Long userId, Long sessionId) {
+
+        List<HostSystem> hostSystemList = SystemStatusDB.getPendingSystemList(userId);
+        if (hostSystemList.isEmpty()) {
+            return;
+        }
+        HostSystem failedSystem = null;
+        for (HostSystem hostSystem : TerminalConnectUtil.openSSHTerms(passphrase, password, userId, sessionId, hostSystemList, userSchSessionMap)) {
+            if (HostSystem.GENERIC_FAIL_STATUS.equals(hostSystem.getStatusCd()) || HostSystem.HOST_FAIL_STATUS.equals(hostSystem.getStatusCd())) {
+                failedSystemList.add(hostSystem);
+                if (failedSystem == null) {
+                    failedSystem = hostSystem;
+                }
+            } else if (currentSystemStatus == null || !HostSystem.SUCCESS_STATUS.equals(currentSystemStatus.getStatusCd())) {
+                currentSystemStatus = hostSystem;
+            }
+        }
+        if (failedSystem != null) {
+            currentSystemStatus = failedSystem;
+        }
+    }
+
     /**
      * set system list once all connections have been attempted
      *
@@ -436,6 +485,12 @@ public class SecureShellAction extends ActionSupport implements ServletRequestAw
     public void setUserSettings(UserSettings userSettings) {
         this.userSettings = userSettings;
     }
-}
 
+    public List<HostSystem> getFailedSystemList() {
+        return failedSystemList;
+    }
 
+    public void setFailedSystemList(List<HostSystem> failedSystemList) {
+        this.failedSystemList = failedSystemList;
+    }
+}
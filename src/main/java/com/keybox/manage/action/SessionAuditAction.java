@@ -23,13 +23,22 @@ import com.keybox.manage.model.SessionAudit;
 import com.keybox.manage.model.SortedSet;
 import com.google.gson.Gson;
 import com.keybox.manage.model.User;
+import com.keybox.manage.util.AuditExportWriter;
+import com.keybox.manage.util.AuditPurgeUtil;
 import com.opensymphony.xwork2.ActionSupport;
 import org.apache.struts2.convention.annotation.Action;
 import org.apache.struts2.convention.annotation.InterceptorRef;
 import org.apache.struts2.convention.annotation.Result;
 import org.apache.struts2.interceptor.ServletResponseAware;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.time.DateUtils;
 import javax.servlet.http.HttpServletResponse;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -44,6 +53,18 @@ public class SessionAuditAction extends ActionSupport implements ServletResponse
     SortedSet sortedSet=new SortedSet();
     Long sessionId;
     Integer instanceId;
+    String cursor;
+    Integer limit;
+    Integer interval;
+    Long fromTm;
+    Integer fromOffset;
+    String query;
+    String startDt;
+    String endDt;
+    String format;
+    String username;
+    String displayNm;
+    HostSystem hostSystem;
     SessionAudit sessionAudit;
     HttpServletResponse servletResponse;
     List<HostSystem> systemList= SystemDB.getSystemSet(new SortedSet(SystemDB.SORT_BY_NAME)).getItemList();
@@ -85,7 +106,13 @@ public class SessionAuditAction extends ActionSupport implements ServletResponse
     @Action(value = "/manage/getJSONTermOutputForSession")
     public String getJSONTermOutputForSession() {
 
-        String json=new Gson().toJson(SessionAuditDB.getTerminalLogsForSession(sessionId, instanceId));
+        String json;
+        if (limit != null && limit > 0) {
+            //page of output continuing from the cursor so long sessions can be loaded in chunks
+            json = new Gson().toJson(SessionAuditDB.getTerminalLogPageForSession(sessionId, instanceId, cursor, limit));
+        } else {
+            json = new Gson().toJson(SessionAuditDB.getTerminalLogsForSession(sessionId, instanceId));
+        }
         try {
             servletResponse.getOutputStream().write(json.getBytes());
         } catch (Exception ex) {
@@ -96,6 +123,146 @@ public class SessionAuditAction extends ActionSupport implements ServletResponse
 
     }
 
+    @Action(value = "/manage/viewTermPlayback",
+            results = {
+                    @Result(name = "success", location = "/manage/view_playback.jsp")
+            }
+    )
+    public String viewTermPlayback() {
+
+        sessionAudit = SessionAuditDB.getSessionsTerminals(sessionId);
+        if (sessionAudit.getHostSystemList() != null) {
+            for (HostSystem system : sessionAudit.getHostSystemList()) {
+                if (system.getInstanceId() != null && system.getInstanceId().equals(instanceId)) {
+                    hostSystem = system;
+                }
+            }
+        }
+        return SUCCESS;
+
+    }
+
+    @Action(value = "/manage/getJSONPlaybackIndex")
+    public String getJSONPlaybackIndex() {
+
+        //keyframe every 60 seconds by default
+        int keyframeInterval = interval != null && interval > 0 ? interval : 60;
+        writeJSON(new Gson().toJson(SessionAuditDB.getPlaybackIndex(sessionId, instanceId, keyframeInterval)));
+        return null;
+
+    }
+
+    @Action(value = "/manage/getJSONPlaybackForSession")
+    public String getJSONPlaybackForSession() {
+
+        int pageLimit = limit != null && limit > 0 ? limit : 500;
+        writeJSON(new Gson().toJson(SessionAuditDB.getPlaybackPage(sessionId, instanceId, fromTm, fromOffset != null && fromOffset > 0 ? fromOffset : 0, pageLimit)));
+        return null;
+
+    }
+
+    @Action(value = "/manage/searchTerminalOutput")
+    public String searchTerminalOutput() {
+
+        int searchLimit = limit != null && limit > 0 ? limit : 100;
+        try {
+            //dates are in yyyy-MM-dd, end date is inclusive
+            SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd");
+            Date startTm = StringUtils.isNotEmpty(startDt) ? dateFormat.parse(startDt) : null;
+            Date endTm = StringUtils.isNotEmpty(endDt) ? DateUtils.addDays(dateFormat.parse(endDt), 1) : null;
+            writeJSON(new Gson().toJson(SessionAuditDB.searchTerminalOutput(query, startTm, endTm, searchLimit)));
+        } catch (ParseException ex) {
+            log.error(ex.toString(), ex);
+        }
+        return null;
+
+    }
+
+    @Action(value = "/manage/getJSONTerminalCommands")
+    public String getJSONTerminalCommands() {
+
+        int commandLimit = limit != null && limit > 0 ? limit : 100;
+        try {
+            //dates are in yyyy-MM-dd, end date is inclusive
+            SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd");
+            Date startTm = StringUtils.isNotEmpty(startDt) ? dateFormat.parse(startDt) : null;
+            Date endTm = StringUtils.isNotEmpty(endDt) ? DateUtils.addDays(dateFormat.parse(endDt), 1) : null;
+            writeJSON(new Gson().toJson(SessionAuditDB.getTerminalCommands(username, displayNm, query, startTm, endTm, commandLimit)));
+        } catch (ParseException ex) {
+            log.error(ex.toString(), ex);
+        }
+        return null;
+
+    }
+
+    @Action(value = "/manage/exportSessionAudit")
+    public String exportSessionAudit() {
+
+        String exportFormat = StringUtils.isNotEmpty(format) ? format : AuditExportWriter.FORMAT_NDJSON;
+        try {
+            //asciicast is a single recording, a range of sessions is only exported as ndjson
+            if (!AuditExportWriter.isFormat(exportFormat)
+                    || (AuditExportWriter.FORMAT_ASCIICAST.equals(exportFormat) && (sessionId == null || instanceId == null))
+                    || (sessionId == null && StringUtils.isEmpty(username))) {
+                servletResponse.sendError(HttpServletResponse.SC_BAD_REQUEST, "Export requires a session and terminal for asciicast or a session or username for ndjson");
+                return null;
+            }
+
+            //dates are in yyyy-MM-dd, end date is inclusive
+            SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd");
+            Date startTm = StringUtils.isNotEmpty(startDt) ? dateFormat.parse(startDt) : null;
+            Date endTm = StringUtils.isNotEmpty(endDt) ? DateUtils.addDays(dateFormat.parse(endDt), 1) : null;
+
+            String fileNm = "keybox-audit-" + (sessionId != null ? sessionId + (instanceId != null ? "-" + instanceId : "") : username);
+            if (AuditExportWriter.FORMAT_ASCIICAST.equals(exportFormat)) {
+                servletResponse.setContentType("application/x-asciicast");
+                fileNm = fileNm + ".cast";
+            } else {
+                servletResponse.setContentType("application/x-ndjson");
+                fileNm = fileNm + ".ndjson";
+            }
+            servletResponse.setCharacterEncoding("UTF-8");
+            servletResponse.setHeader("Content-Disposition", "attachment; filename=\"" + fileNm.replaceAll("[^A-Za-z0-9._-]", "_") + "\"");
+
+            SessionAuditDB.exportTerminalLogs(sessionId, instanceId, username, startTm, endTm, new AuditExportWriter(exportFormat, servletResponse.getOutputStream()));
+        } catch (Exception ex) {
+            log.error(ex.toString(), ex);
+        }
+        return null;
+
+    }
+
+    @Action(value = "/manage/getJSONAuditPurgeStatus")
+    public String getJSONAuditPurgeStatus() {
+
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("running", AuditPurgeUtil.isRunning());
+        status.put("retentionDays", AuditPurgeUtil.RETENTION_DAYS);
+        status.put("lastPurgeTm", AuditPurgeUtil.getLastPurgeTm());
+        status.put("lastPurgeTime", AuditPurgeUtil.getLastPurgeTime());
+        status.put("lastSessionsRemoved", AuditPurgeUtil.getLastSessionsRemoved());
+        status.put("lastRowsRemoved", AuditPurgeUtil.getLastRowsRemoved());
+        status.put("totalSessionsRemoved", AuditPurgeUtil.getTotalSessionsRemoved());
+        status.put("totalRowsRemoved", AuditPurgeUtil.getTotalRowsRemoved());
+        writeJSON(new Gson().toJson(status));
+        return null;
+
+    }
+
+    /**
+     * writes json to the response
+     *
+     * @param json json string
+     */
+    private void writeJSON(String json) {
+        try {
+            servletResponse.setContentType("application/json");
+            servletResponse.getOutputStream().write(json.getBytes("UTF-8"));
+        } catch (Exception ex) {
+            log.error(ex.toString(), ex);
+        }
+    }
+
     public List<HostSystem> getSystemList() {
         return systemList;
     }
@@ -151,4 +318,100 @@ public class SessionAuditAction extends ActionSupport implements ServletResponse
     public void setInstanceId(Integer instanceId) {
         this.instanceId = instanceId;
     }
+
+    public String getCursor() {
+        return cursor;
+    }
+
+    public void setCursor(String cursor) {
+        this.cursor = cursor;
+    }
+
+    public Integer getLimit() {
+        return limit;
+    }
+
+    public void setLimit(Integer limit) {
+        this.limit = limit;
+    }
+
+    public Integer getInterval() {
+        return interval;
+    }
+
+    public void setInterval(Integer interval) {
+        this.interval = interval;
+    }
+
+    public Integer getFromOffset() {
+        return fromOffset;
+    }
+
+    public void setFromOffset(Integer fromOffset) {
+        this.fromOffset = fromOffset;
+    }
+
+    public Long getFromTm() {
+        return fromTm;
+    }
+
+    public void setFromTm(Long fromTm) {
+        this.fromTm = fromTm;
+    }
+
+    public HostSystem getHostSystem() {
+        return hostSystem;
+    }
+
+    public void setHostSystem(HostSystem hostSystem) {
+        this.hostSystem = hostSystem;
+    }
+
+    public String getQuery() {
+        return query;
+    }
+
+    public void setQuery(String query) {
+        this.query = query;
+    }
+
+    public String getStartDt() {
+        return startDt;
+    }
+
+    public void setStartDt(String startDt) {
+        this.startDt = startDt;
+    }
+
+    public String getEndDt() {
+        return endDt;
+    }
+
+    public void setEndDt(String endDt) {
+        this.endDt = endDt;
+    }
+
+    public String getFormat() {
+        return format;
+    }
+
+    public void setFormat(String format) {
+        this.format = format;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public void setUsername(String username) {
+        this.username = username;
+    }
+
+    public String getDisplayNm() {
+        return displayNm;
+    }
+
+    public void setDisplayNm(String displayNm) {
+        this.displayNm = displayNm;
+    }
 }
@@ -17,11 +17,11 @@ package com.keybox.manage.action;
 
 import com.keybox.common.util.AuthUtil;
 import com.keybox.manage.db.AuthDB;
-import com.keybox.manage.db.PrivateKeyDB;
 import com.keybox.manage.db.UserThemeDB;
 import com.keybox.manage.model.Auth;
 import com.keybox.manage.model.UserSettings;
 import com.keybox.manage.util.PasswordUtil;
+import com.keybox.manage.util.SSHUtil;
 import com.opensymphony.xwork2.ActionSupport;
 import org.apache.struts2.convention.annotation.Action;
 import org.apache.struts2.convention.annotation.InterceptorRef;
@@ -49,7 +49,7 @@ public class UserSettingsAction extends ActionSupport implements ServletRequestA
     )
     public String userSettings() {
         userSettings = UserThemeDB.getTheme(AuthUtil.getUserId(servletRequest.getSession()));
-        publicKey = PrivateKeyDB.getApplicationKey().getPublicKey();
+        publicKey = SSHUtil.getApplicationKey().getPublicKey();
         return SUCCESS;
     }
 
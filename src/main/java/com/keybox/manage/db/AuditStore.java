@@ -0,0 +1,134 @@
+/**
+ * Copyright 2013 Sean Kavanagh - sean.p.kavanagh6@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.keybox.manage.db;
+
+import com.keybox.manage.model.SessionOutput;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * Storage for recorded terminal output. Session details, the search index and the
+ * per terminal summary stay in the DB; an audit store only holds the output itself.
+ * The implementation is chosen with the auditStore property.
+ */
+public interface AuditStore {
+
+    /**
+     * writes a batch of terminal output, any DB changes are made in the caller's transaction
+     *
+     * @param con               DB connection
+     * @param sessionOutputList output from session terminals in log order
+     * @throws SQLException if the DB could not be updated
+     * @throws IOException  if output could not be written
+     */
+    void write(Connection con, List<SessionOutput> sessionOutputList) throws SQLException, IOException;
+
+    /**
+     * reads terminal output for a terminal in log order
+     *
+     * @param con        DB connection
+     * @param sessionId  session id
+     * @param instanceId instance id for terminal session
+     * @param fromTm     only read output logged at or after this time in milliseconds, all output if null
+     * @param offset     number of entries to skip
+     * @param limit      max number of entries to read, all entries if <= 0
+     * @param handler    handler receiving the output
+     * @return number of entries read
+     * @throws SQLException if the DB could not be read
+     * @throws IOException  if output could not be read
+     */
+    int read(Connection con, Long sessionId, Integer instanceId, Long fromTm, int offset, int limit, AuditOutputHandler handler) throws SQLException, IOException;
+
+    /**
+     * reads the times of terminal output for a terminal in log order without reading the
+     * output, passing at least the first and last time of each interval of output. Stores
+     * that keep output in blocks may only pass the first and last time of each block.
+     *
+     * @param con        DB connection
+     * @param sessionId  session id
+     * @param instanceId instance id for terminal session
+     * @param interval   interval in seconds
+     * @param handler    handler receiving the times
+     * @throws SQLException if the DB could not be read
+     */
+    void readTimes(Connection con, Long sessionId, Integer instanceId, int interval, AuditTimeHandler handler) throws SQLException;
+
+    /**
+     * reads the next page of terminal output for a terminal in log order, continuing from the
+     * position returned for the previous page so paging does not re-read earlier output
+     *
+     * @param con        DB connection
+     * @param sessionId  session id
+     * @param instanceId instance id for terminal session
+     * @param position   position returned for the previous page, start of the output if null
+     * @param limit      max number of entries to read
+     * @param handler    handler receiving the output
+     * @return position after the last entry read
+     * @throws SQLException if the DB could not be read
+     * @throws IOException  if output could not be read
+     */
+    String readPage(Connection con, Long sessionId, Integer instanceId, String position, int limit, AuditOutputHandler handler) throws SQLException, IOException;
+
+    /**
+     * returns true if the store holds back output that has not been written yet
+     *
+     * @return true if there is output to flush
+     */
+    boolean hasHeldOutput();
+
+    /**
+     * writes output held back by the store, any DB changes are made in the caller's transaction
+     *
+     * @param con DB connection
+     * @param all true to write all held output, false for output that is due to be written
+     * @throws SQLException if the DB could not be updated
+     * @throws IOException  if output could not be written
+     */
+    void flush(Connection con, boolean all) throws SQLException, IOException;
+
+    /**
+     * called once the caller's transaction for the last write or flush is committed
+     */
+    void commit();
+
+    /**
+     * called once the caller's transaction for the last write or flush is rolled back
+     */
+    void rollback();
+
+    /**
+     * called when a terminal is closed so output held for it is written with the next flush
+     *
+     * @param sessionId  session id
+     * @param instanceId instance id for terminal session
+     */
+    void close(Long sessionId, Integer instanceId);
+
+    /**
+     * deletes all output for the sessions
+     *
+     * @param con           DB connection in auto commit mode
+     * @param sessionIdList session ids
+     * @param rowLimit      max rows removed by one delete statement
+     * @return number of entries removed
+     * @throws SQLException if the DB could not be updated
+     * @throws IOException  if output could not be removed
+     */
+    long delete(Connection con, List<Long> sessionIdList, int rowLimit) throws SQLException, IOException;
+}
@@ -0,0 +1,365 @@
+/**
+ * Copyright 2013 Sean Kavanagh - sean.p.kavanagh6@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.keybox.manage.db;
+
+import com.keybox.common.util.AppConfig;
+import com.keybox.manage.model.SessionOutput;
+import com.keybox.manage.util.AuditBlockCodec;
+import com.keybox.manage.util.DBUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Audit store coalescing output for each terminal into time bounded blocks stored deflate
+ * compressed in terminal_log_block. Output is held in memory until its block is full or
+ * the block interval has passed, and held output is included when a terminal is read.
+ * Held output is written when its terminal is closed and when the server shuts down, but
+ * output held when the server process ends without shutting down is lost.
+ */
+public class BlockAuditStore implements AuditStore {
+
+    private static Logger log = LoggerFactory.getLogger(BlockAuditStore.class);
+
+    public static final long BLOCK_INTERVAL = StringUtils.isNumeric(AppConfig.getProperty("auditBlockInterval")) ? Long.parseLong(AppConfig.getProperty("auditBlockInterval")) : 60000;
+    public static final int BLOCK_SIZE = StringUtils.isNumeric(AppConfig.getProperty("auditBlockSize")) ? Integer.parseInt(AppConfig.getProperty("auditBlockSize")) : 262144;
+
+    private static final String INSERT_BLOCK_SQL = "insert into terminal_log_block (session_id, instance_id, block_seq, first_log_tm, last_log_tm, entry_count, output) values (?,?,?,?,?,?,?)";
+
+    //output held for each terminal until its block is written
+    private final Map<String, PendingBlock> pendingMap = new LinkedHashMap<>();
+    //blocks written by the last flush until the caller's transaction is committed
+    private final Map<String, PendingBlock> inFlightMap = new LinkedHashMap<>();
+    //output added by the last write until the caller's transaction is committed
+    private final List<SessionOutput> uncommittedList = new ArrayList<>();
+    //terminals closed recently, with the time they were closed
+    private final Map<String, Long> closedMap = new HashMap<>();
+    private long lastBlockSeq = 0;
+
+    @Override
+    public synchronized void write(Connection con, List<SessionOutput> sessionOutputList) throws SQLException, IOException {
+
+        long now = System.currentTimeMillis();
+        for (SessionOutput sessionOutput : sessionOutputList) {
+            String key = sessionOutput.getSessionId() + ":" + sessionOutput.getInstanceId();
+            PendingBlock pending = pendingMap.get(key);
+            if (pending == null) {
+                //block sequence follows the clock so it keeps increasing across restarts
+                lastBlockSeq = Math.max(lastBlockSeq + 1, now * 1000);
+                pending = new PendingBlock(lastBlockSeq, now);
+                pendingMap.put(key, pending);
+            }
+            //output arriving after its terminal was closed is written with the next flush
+            pending.closed = pending.closed || closedMap.containsKey(key);
+            pending.outputList.add(sessionOutput);
+            pending.size = pending.size + sessionOutput.getOutput().length();
+            uncommittedList.add(sessionOutput);
+        }
+    }
+
+    /**
+     * output held by the last write is kept and blocks written by the last flush are released
+     */
+    @Override
+    public synchronized void commit() {
+        uncommittedList.clear();
+        inFlightMap.clear();
+    }
+
+    /**
+     * output held by the last write is discarded with the rest of the caller's batch and blocks
+     * written by the last flush are held again so they are retried with the next flush
+     */
+    @Override
+    public synchronized void rollback() {
+
+        for (SessionOutput sessionOutput : uncommittedList) {
+            String key = sessionOutput.getSessionId() + ":" + sessionOutput.getInstanceId();
+            PendingBlock pending = pendingMap.get(key);
+            if (pending != null) {
+                for (Iterator<SessionOutput> it = pending.outputList.iterator(); it.hasNext(); ) {
+                    if (it.next() == sessionOutput) {
+                        it.remove();
+                        pending.size = pending.size - sessionOutput.getOutput().length();
+                        break;
+                    }
+                }
+                if (pending.outputList.isEmpty()) {
+                    pendingMap.remove(key);
+                }
+            }
+        }
+        uncommittedList.clear();
+        hold(inFlightMap);
+        inFlightMap.clear();
+    }
+
+    /**
+     * marks output held for a closed terminal as due so it is written with the next flush
+     * instead of waiting for the block interval
+     */
+    @Override
+    public synchronized void close(Long sessionId, Integer instanceId) {
+        String key = sessionId + ":" + instanceId;
+        closedMap.put(key, System.currentTimeMillis());
+        PendingBlock pending = pendingMap.get(key);
+        if (pending != null) {
+            pending.closed = true;
+        }
+    }
+
+    @Override
+    public synchronized boolean hasHeldOutput() {
+        return !pendingMap.isEmpty() || !closedMap.isEmpty();
+    }
+
+    @Override
+    public synchronized void flush(Connection con, boolean all) throws SQLException, IOException {
+
+        long now = System.currentTimeMillis();
+        //closed terminals only need to be remembered for output still queued when they closed
+        for (Iterator<Long> it = closedMap.values().iterator(); it.hasNext(); ) {
+            if (now - it.next() >= BLOCK_INTERVAL) {
+                it.remove();
+            }
+        }
+        Map<String, PendingBlock> flushMap = new LinkedHashMap<>();
+        for (Iterator<Map.Entry<String, PendingBlock>> it = pendingMap.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, PendingBlock> entry = it.next();
+            PendingBlock pending = entry.getValue();
+            if (all || pending.closed || pending.size >= BLOCK_SIZE || now - pending.createTm >= BLOCK_INTERVAL) {
+                flushMap.put(entry.getKey(), pending);
+                it.remove();
+            }
+        }
+        if (flushMap.isEmpty()) {
+            return;
+        }
+
+        PreparedStatement stmt = con.prepareStatement(INSERT_BLOCK_SQL);
+        try {
+            for (PendingBlock pending : flushMap.values()) {
+                SessionOutput first = pending.outputList.get(0);
+                SessionOutput last = pending.outputList.get(pending.outputList.size() - 1);
+                stmt.setLong(1, first.getSessionId());
+                stmt.setLong(2, first.getInstanceId());
+                stmt.setLong(3, pending.blockSeq);
+                stmt.setTimestamp(4, new Timestamp(getLogTm(first)));
+                stmt.setTimestamp(5, new Timestamp(getLogTm(last)));
+                stmt.setInt(6, pending.outputList.size());
+                stmt.setBytes(7, AuditBlockCodec.encode(pending.outputList));
+                stmt.addBatch();
+            }
+            stmt.executeBatch();
+            //blocks are released once the caller commits
+            inFlightMap.putAll(flushMap);
+        } catch (SQLException | IOException ex) {
+            //hold the output again so it is retried with the next flush
+            hold(flushMap);
+            throw ex;
+        } finally {
+            DBUtils.closeStmt(stmt);
+        }
+    }
+
+    /**
+     * holds blocks again ahead of any output held for the same terminal since
+     *
+     * @param blockMap blocks to hold
+     */
+    private void hold(Map<String, PendingBlock> blockMap) {
+        for (Map.Entry<String, PendingBlock> entry : blockMap.entrySet()) {
+            PendingBlock pending = pendingMap.get(entry.getKey());
+            if (pending != null) {
+                entry.getValue().outputList.addAll(pending.outputList);
+                entry.getValue().size = entry.getValue().size + pending.size;
+                entry.getValue().closed = entry.getValue().closed || pending.closed;
+            }
+            pendingMap.put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * reads stored blocks in write order followed by output still held for the terminal
+     */
+    @Override
+    public int read(Connection con, Long sessionId, Integer instanceId, Long fromTm, int offset, int limit, AuditOutputHandler handler) throws SQLException, IOException {
+
+        //copy held output first, blocks from the held sequence on are left out of the DB read
+        //so held output stored while reading is not read twice
+        List<SessionOutput> pendingList = new ArrayList<>();
+        long pendingSeq = Long.MAX_VALUE;
+        synchronized (this) {
+            //blocks written but not yet committed are read from memory as well
+            PendingBlock inFlight = inFlightMap.get(sessionId + ":" + instanceId);
+            if (inFlight != null) {
+                pendingList.addAll(inFlight.outputList);
+                pendingSeq = inFlight.blockSeq;
+            }
+            PendingBlock pending = pendingMap.get(sessionId + ":" + instanceId);
+            if (pending != null) {
+                pendingList.addAll(pending.outputList);
+                pendingSeq = Math.min(pendingSeq, pending.blockSeq);
+            }
+        }
+
+        String sql = "select entry_count, output from terminal_log_block where session_id=? and instance_id=? and block_seq < ?";
+        if (fromTm != null) {
+            sql = sql + " and last_log_tm >= ?";
+        }
+        sql = sql + " order by block_seq asc";
+        PreparedStatement stmt = con.prepareStatement(sql);
+        stmt.setLong(1, sessionId);
+        stmt.setLong(2, instanceId);
+        stmt.setLong(3, pendingSeq);
+        if (fromTm != null) {
+            stmt.setTimestamp(4, new Timestamp(fromTm));
+        }
+        log.debug("read:" + stmt.toString());
+        ResultSet rs = stmt.executeQuery();
+
+        BlockOutputHandler blockHandler = new BlockOutputHandler(fromTm, offset, limit, handler);
+        try {
+            while (!blockHandler.isFull() && rs.next()) {
+                if (!blockHandler.skipBlock(rs.getInt("entry_count"))) {
+                    AuditBlockCodec.decode(rs.getBytes("output"), blockHandler);
+                }
+            }
+        } finally {
+            DBUtils.closeRs(rs);
+            DBUtils.closeStmt(stmt);
+        }
+        for (SessionOutput sessionOutput : pendingList) {
+            blockHandler.output(getLogTm(sessionOutput), sessionOutput.getOutput().toString());
+        }
+        return blockHandler.getCount();
+    }
+
+    /**
+     * passes the first and last time of each stored block followed by the times of output
+     * still held for the terminal, no block is decoded
+     */
+    @Override
+    public void readTimes(Connection con, Long sessionId, Integer instanceId, int interval, AuditTimeHandler handler) throws SQLException {
+
+        List<SessionOutput> pendingList = new ArrayList<>();
+        long pendingSeq = Long.MAX_VALUE;
+        synchronized (this) {
+            PendingBlock inFlight = inFlightMap.get(sessionId + ":" + instanceId);
+            if (inFlight != null) {
+                pendingList.addAll(inFlight.outputList);
+                pendingSeq = inFlight.blockSeq;
+            }
+            PendingBlock pending = pendingMap.get(sessionId + ":" + instanceId);
+            if (pending != null) {
+                pendingList.addAll(pending.outputList);
+                pendingSeq = Math.min(pendingSeq, pending.blockSeq);
+            }
+        }
+
+        PreparedStatement stmt = con.prepareStatement("select first_log_tm, last_log_tm from terminal_log_block where session_id=? and instance_id=? and block_seq < ? order by block_seq asc");
+        ResultSet rs = null;
+        try {
+            stmt.setLong(1, sessionId);
+            stmt.setLong(2, instanceId);
+            stmt.setLong(3, pendingSeq);
+            log.debug("readTimes:" + stmt.toString());
+            rs = stmt.executeQuery();
+            while (rs.next()) {
+                handler.time(rs.getTimestamp("first_log_tm").getTime());
+                handler.time(rs.getTimestamp("last_log_tm").getTime());
+            }
+        } finally {
+            DBUtils.closeRs(rs);
+            DBUtils.closeStmt(stmt);
+        }
+        for (SessionOutput sessionOutput : pendingList) {
+            handler.time(getLogTm(sessionOutput));
+        }
+    }
+
+    /**
+     * entries are kept in a fixed order so the position is the number of entries read,
+     * blocks before it are skipped without being decoded
+     */
+    @Override
+    public String readPage(Connection con, Long sessionId, Integer instanceId, String position, int limit, AuditOutputHandler handler) throws SQLException, IOException {
+        int offset = StringUtils.isNumeric(position) ? Integer.parseInt(position) : 0;
+        return String.valueOf(offset + read(con, sessionId, instanceId, null, offset, limit, handler));
+    }
+
+    @Override
+    public synchronized long delete(Connection con, List<Long> sessionIdList, int rowLimit) throws SQLException {
+
+        String in = "session_id in (" + StringUtils.repeat("?", ",", sessionIdList.size()) + ")";
+        long entries = 0;
+        PreparedStatement stmt = con.prepareStatement("select sum(entry_count) from terminal_log_block where " + in);
+        for (int i = 0; i < sessionIdList.size(); i++) {
+            stmt.setLong(i + 1, sessionIdList.get(i));
+        }
+        ResultSet rs = stmt.executeQuery();
+        if (rs.next()) {
+            entries = rs.getLong(1);
+        }
+        DBUtils.closeRs(rs);
+        DBUtils.closeStmt(stmt);
+
+        SessionAuditDB.deleteSessionRows(con, "delete from terminal_log_block where " + in + " limit ?", sessionIdList, rowLimit);
+        for (Map<String, ?> heldMap : Arrays.asList(pendingMap, inFlightMap, closedMap)) {
+            for (Iterator<String> it = heldMap.keySet().iterator(); it.hasNext(); ) {
+                if (sessionIdList.contains(Long.valueOf(it.next().split(":")[0]))) {
+                    it.remove();
+                }
+            }
+        }
+        return entries;
+    }
+
+    private static long getLogTm(SessionOutput sessionOutput) {
+        return sessionOutput.getLogTm() != null ? sessionOutput.getLogTm().getTime() : System.currentTimeMillis();
+    }
+
+    /**
+     * output held for a terminal
+     */
+    private static class PendingBlock {
+
+        List<SessionOutput> outputList = new ArrayList<>();
+        long blockSeq;
+        long createTm;
+        int size = 0;
+        boolean closed = false;
+
+        PendingBlock(long blockSeq, long createTm) {
+            this.blockSeq = blockSeq;
+            this.createTm = createTm;
+        }
+    }
+}
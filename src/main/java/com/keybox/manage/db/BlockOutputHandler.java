@@ -0,0 +1,80 @@
+/**
+ * Copyright 2013 Sean Kavanagh - sean.p.kavanagh6@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.keybox.manage.db;
+
+import java.io.IOException;
+
+/**
+ * Applies the time, offset and limit of a read to entries decoded from compressed
+ * blocks, letting a store skip whole blocks that fall before the offset
+ */
+class BlockOutputHandler implements AuditOutputHandler {
+
+    private final Long fromTm;
+    private final int limit;
+    private final AuditOutputHandler handler;
+    private int skip;
+    private int count = 0;
+
+    /**
+     * @param fromTm  only pass output logged at or after this time, all output if null
+     * @param offset  number of entries to skip
+     * @param limit   max number of entries to pass, all entries if <= 0
+     * @param handler handler receiving the output
+     */
+    BlockOutputHandler(Long fromTm, int offset, int limit, AuditOutputHandler handler) {
+        this.fromTm = fromTm;
+        this.skip = offset;
+        this.limit = limit;
+        this.handler = handler;
+    }
+
+    @Override
+    public void output(long logTm, String output) throws IOException {
+        if (fromTm != null && logTm < fromTm) {
+            return;
+        }
+        if (skip > 0) {
+            skip--;
+        } else if (!isFull()) {
+            handler.output(logTm, output);
+            count++;
+        }
+    }
+
+    /**
+     * skips a block without decoding it if all of its entries fall before the offset
+     *
+     * @param entryCount number of entries in the block
+     * @return true if the block was skipped
+     */
+    boolean skipBlock(int entryCount) {
+        //entries before the time are not counted so blocks can only be skipped without one
+        if (fromTm == null && skip >= entryCount) {
+            skip = skip - entryCount;
+            return true;
+        }
+        return false;
+    }
+
+    boolean isFull() {
+        return limit > 0 && count >= limit;
+    }
+
+    int getCount() {
+        return count;
+    }
+}
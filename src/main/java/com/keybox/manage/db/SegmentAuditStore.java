@@ -0,0 +1,316 @@
+/**
+ * Copyright 2013 Sean Kavanagh - sean.p.kavanagh6@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.keybox.manage.db;
+
+import com.keybox.common.util.AppConfig;
+import com.keybox.manage.model.SessionOutput;
+import com.keybox.manage.util.AuditBlockCodec;
+import com.keybox.manage.util.DBUtils;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Audit store appending compressed blocks of output to segment files for each terminal,
+ * with the location and time range of each block kept in terminal_segment. Output for a
+ * terminal in a write batch becomes one block so writes are sequential appends, and
+ * replay maps the segment files into memory reading only the indexed blocks needed.
+ */
+public class SegmentAuditStore implements AuditStore {
+
+    private static Logger log = LoggerFactory.getLogger(SegmentAuditStore.class);
+
+    public static final String SEGMENT_DIR = AppConfig.getProperty("auditSegmentDir", AppConfig.CONFIG_DIR + "/audit");
+    public static final long MAX_SEGMENT_SIZE = StringUtils.isNumeric(AppConfig.getProperty("auditSegmentSize")) ? Long.parseLong(AppConfig.getProperty("auditSegmentSize")) : 64L * 1024 * 1024;
+
+    private static final String SEGMENT_EXT = ".seg";
+    private static final String INSERT_SEGMENT_SQL = "insert into terminal_segment (session_id, instance_id, segment_no, block_offset, block_length, first_log_tm, last_log_tm, entry_count) values (?,?,?,?,?,?,?,?)";
+
+    //max number of terminals with a cached current segment
+    private static final int MAX_CACHED_SEGMENTS = 5000;
+
+    private final Map<String, Integer> segmentMap = new LinkedHashMap<String, Integer>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+            return size() > MAX_CACHED_SEGMENTS;
+        }
+    };
+
+    /**
+     * appends one block for each terminal in the batch and indexes it, the block is
+     * written before the index so a rolled back batch only leaves unreferenced bytes
+     */
+    @Override
+    public synchronized void write(Connection con, List<SessionOutput> sessionOutputList) throws SQLException, IOException {
+
+        Map<String, List<SessionOutput>> terminalMap = new LinkedHashMap<>();
+        for (SessionOutput sessionOutput : sessionOutputList) {
+            String key = sessionOutput.getSessionId() + ":" + sessionOutput.getInstanceId();
+            List<SessionOutput> terminalList = terminalMap.get(key);
+            if (terminalList == null) {
+                terminalList = new ArrayList<>();
+                terminalMap.put(key, terminalList);
+            }
+            terminalList.add(sessionOutput);
+        }
+
+        PreparedStatement stmt = con.prepareStatement(INSERT_SEGMENT_SQL);
+        for (Map.Entry<String, List<SessionOutput>> entry : terminalMap.entrySet()) {
+            List<SessionOutput> terminalList = entry.getValue();
+            SessionOutput first = terminalList.get(0);
+            byte[] block = AuditBlockCodec.encode(terminalList);
+
+            int segmentNo = getSegmentNo(con, entry.getKey(), first.getSessionId(), first.getInstanceId());
+            File file = getSegmentFile(first.getSessionId(), first.getInstanceId(), segmentNo);
+            if (file.length() >= MAX_SEGMENT_SIZE) {
+                segmentNo++;
+                segmentMap.put(entry.getKey(), segmentNo);
+                file = getSegmentFile(first.getSessionId(), first.getInstanceId(), segmentNo);
+            }
+            long offset = append(file, block);
+
+            stmt.setLong(1, first.getSessionId());
+            stmt.setLong(2, first.getInstanceId());
+            stmt.setInt(3, segmentNo);
+            stmt.setLong(4, offset);
+            stmt.setInt(5, block.length);
+            stmt.setTimestamp(6, new Timestamp(getLogTm(first)));
+            stmt.setTimestamp(7, new Timestamp(getLogTm(terminalList.get(terminalList.size() - 1))));
+            stmt.setInt(8, terminalList.size());
+            stmt.addBatch();
+        }
+        stmt.executeBatch();
+        DBUtils.closeStmt(stmt);
+    }
+
+    /**
+     * reads indexed blocks in write order, skipping whole blocks for the offset without decompressing them
+     */
+    @Override
+    public int read(Connection con, Long sessionId, Integer instanceId, Long fromTm, int offset, int limit, AuditOutputHandler handler) throws SQLException, IOException {
+
+        String sql = "select segment_no, block_offset, block_length, entry_count from terminal_segment where session_id=? and instance_id=?";
+        if (fromTm != null) {
+            sql = sql + " and last_log_tm >= ?";
+        }
+        sql = sql + " order by segment_no asc, block_offset asc";
+        PreparedStatement stmt = con.prepareStatement(sql);
+        stmt.setLong(1, sessionId);
+        stmt.setLong(2, instanceId);
+        if (fromTm != null) {
+            stmt.setTimestamp(3, new Timestamp(fromTm));
+        }
+        log.debug("read:" + stmt.toString());
+        ResultSet rs = stmt.executeQuery();
+
+        BlockOutputHandler blockHandler = new BlockOutputHandler(fromTm, offset, limit, handler);
+        Map<Integer, MappedByteBuffer> mappedMap = new HashMap<>();
+        try {
+            while (!blockHandler.isFull() && rs.next()) {
+                if (blockHandler.skipBlock(rs.getInt("entry_count"))) {
+                    continue;
+                }
+                int segmentNo = rs.getInt("segment_no");
+                MappedByteBuffer mapped = mappedMap.get(segmentNo);
+                if (mapped == null) {
+                    mapped = map(getSegmentFile(sessionId, instanceId, segmentNo));
+                    mappedMap.put(segmentNo, mapped);
+                }
+                ByteBuffer blockBuffer = mapped.duplicate();
+                blockBuffer.position((int) rs.getLong("block_offset"));
+                byte[] block = new byte[rs.getInt("block_length")];
+                blockBuffer.get(block);
+                AuditBlockCodec.decode(block, blockHandler);
+            }
+        } finally {
+            DBUtils.closeRs(rs);
+            DBUtils.closeStmt(stmt);
+        }
+        return blockHandler.getCount();
+    }
+
+    /**
+     * passes the first and last time of each indexed block, no segment file is read
+     */
+    @Override
+    public void readTimes(Connection con, Long sessionId, Integer instanceId, int interval, AuditTimeHandler handler) throws SQLException {
+
+        PreparedStatement stmt = con.prepareStatement("select first_log_tm, last_log_tm from terminal_segment where session_id=? and instance_id=? order by segment_no asc, block_offset asc");
+        ResultSet rs = null;
+        try {
+            stmt.setLong(1, sessionId);
+            stmt.setLong(2, instanceId);
+            log.debug("readTimes:" + stmt.toString());
+            rs = stmt.executeQuery();
+            while (rs.next()) {
+                handler.time(rs.getTimestamp("first_log_tm").getTime());
+                handler.time(rs.getTimestamp("last_log_tm").getTime());
+            }
+        } finally {
+            DBUtils.closeRs(rs);
+            DBUtils.closeStmt(stmt);
+        }
+    }
+
+    /**
+     * entries are kept in a fixed order so the position is the number of entries read,
+     * blocks before it are skipped without being decoded
+     */
+    @Override
+    public String readPage(Connection con, Long sessionId, Integer instanceId, String position, int limit, AuditOutputHandler handler) throws SQLException, IOException {
+        int offset = StringUtils.isNumeric(position) ? Integer.parseInt(position) : 0;
+        return String.valueOf(offset + read(con, sessionId, instanceId, null, offset, limit, handler));
+    }
+
+    @Override
+    public boolean hasHeldOutput() {
+        return false;
+    }
+
+    /**
+     * output is written as it arrives so there is nothing to flush
+     */
+    @Override
+    public void flush(Connection con, boolean all) {
+    }
+
+    /**
+     * no output is held back to release or hold again
+     */
+    @Override
+    public void commit() {
+    }
+
+    @Override
+    public void rollback() {
+    }
+
+    @Override
+    public void close(Long sessionId, Integer instanceId) {
+    }
+
+    @Override
+    public synchronized long delete(Connection con, List<Long> sessionIdList, int rowLimit) throws SQLException, IOException {
+
+        String in = "session_id in (" + StringUtils.repeat("?", ",", sessionIdList.size()) + ")";
+        long entries = 0;
+        PreparedStatement stmt = con.prepareStatement("select sum(entry_count) from terminal_segment where " + in);
+        for (int i = 0; i < sessionIdList.size(); i++) {
+            stmt.setLong(i + 1, sessionIdList.get(i));
+        }
+        ResultSet rs = stmt.executeQuery();
+        if (rs.next()) {
+            entries = rs.getLong(1);
+        }
+        DBUtils.closeRs(rs);
+        DBUtils.closeStmt(stmt);
+
+        SessionAuditDB.deleteSessionRows(con, "delete from terminal_segment where " + in + " limit ?", sessionIdList, rowLimit);
+        for (Long sessionId : sessionIdList) {
+            FileUtils.deleteDirectory(new File(SEGMENT_DIR, String.valueOf(sessionId)));
+        }
+        for (Iterator<String> it = segmentMap.keySet().iterator(); it.hasNext(); ) {
+            if (sessionIdList.contains(Long.valueOf(it.next().split(":")[0]))) {
+                it.remove();
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * returns the segment currently written for a terminal
+     */
+    private int getSegmentNo(Connection con, String key, Long sessionId, Integer instanceId) throws SQLException {
+        Integer segmentNo = segmentMap.get(key);
+        if (segmentNo == null) {
+            segmentNo = 0;
+            PreparedStatement stmt = con.prepareStatement("select max(segment_no) from terminal_segment where session_id=? and instance_id=?");
+            stmt.setLong(1, sessionId);
+            stmt.setLong(2, instanceId);
+            ResultSet rs = stmt.executeQuery();
+            if (rs.next()) {
+                segmentNo = rs.getInt(1);
+            }
+            DBUtils.closeRs(rs);
+            DBUtils.closeStmt(stmt);
+            segmentMap.put(key, segmentNo);
+        }
+        return segmentNo;
+    }
+
+    /**
+     * appends a block to a segment file
+     *
+     * @param file  segment file
+     * @param block compressed block
+     * @return offset of the block in the file
+     * @throws IOException if the block could not be written
+     */
+    private static long append(File file, byte[] block) throws IOException {
+        if (!file.getParentFile().exists() && !file.getParentFile().mkdirs()) {
+            throw new IOException("Unable to create audit segment directory " + file.getParent());
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            long offset = channel.size();
+            ByteBuffer buffer = ByteBuffer.wrap(block);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+            return offset;
+        }
+    }
+
+    /**
+     * maps a segment file into memory for reading
+     *
+     * @param file segment file
+     * @return mapped file
+     * @throws IOException if the file could not be mapped
+     */
+    private static MappedByteBuffer map(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    private static File getSegmentFile(Long sessionId, Integer instanceId, int segmentNo) {
+        return new File(new File(SEGMENT_DIR, String.valueOf(sessionId)), instanceId + "-" + segmentNo + SEGMENT_EXT);
+    }
+
+    private static long getLogTm(SessionOutput sessionOutput) {
+        return sessionOutput.getLogTm() != null ? sessionOutput.getLogTm().getTime() : System.currentTimeMillis();
+    }
+}
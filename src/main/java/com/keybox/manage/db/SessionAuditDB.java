@@ -16,19 +16,34 @@
 package com.keybox.manage.db;
 
 
-import com.keybox.common.util.AppConfig;
+import com.google.gson.Gson;
 import com.keybox.manage.model.*;
+import com.keybox.manage.util.AuditExportWriter;
+import com.keybox.manage.util.AuditOutputSanitizer;
+import com.keybox.manage.util.AuditSearchUtil;
+import com.keybox.manage.util.AuditStoreUtil;
 import com.keybox.manage.util.DBUtils;
+import com.keybox.manage.util.TerminalCommandUtil;
+import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.lang3.StringUtils;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.sql.Statement;
+import java.sql.Timestamp;
 import java.util.ArrayList;
-import java.util.Calendar;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -42,6 +57,8 @@ public class SessionAuditDB {
     public static final String USER_ID = "user_id";
     public static final String FILTER_BY_USER = "username";
     public static final String FILTER_BY_SYSTEM = "display_nm";
+    public static final String FILTER_BY_OUTPUT = "output";
+    public static final String FILTER_BY_COMMAND = "command";
     
     public static final String SORT_BY_FIRST_NM = "first_nm";
     public static final String SORT_BY_LAST_NM = "last_nm";
@@ -49,86 +66,208 @@ public class SessionAuditDB {
     public static final String SORT_BY_USERNAME = "username";
     public static final String SORT_BY_SESSION_TM = "session_tm";
 
+    private static final List<String> SESSION_SORT_FIELDS = Arrays.asList(SORT_BY_FIRST_NM, SORT_BY_LAST_NM, SORT_BY_IP_ADDRESS, SORT_BY_USERNAME, SORT_BY_SESSION_TM);
+    //sessions shown per page of the audit list
+    private static final int DEFAULT_PAGE_SIZE = 50;
+    //longest partial line held in the cursor for the next page of terminal output
+    private static final int MAX_HELD_LINE = 4096;
+
+    private static final String UPDATE_SESSION_HOST_SQL = "update session_host set last_log_tm=?, output_size=output_size + ? where session_id=? and instance_id=?";
+    private static final String INSERT_SESSION_HOST_SQL = "insert into session_host (session_id, instance_id, display_nm, user, host, port, first_log_tm, last_log_tm, output_size) values (?,?,?,?,?,?,?,?,?)";
+    private static final String UPDATE_TERMINAL_TERM_SQL = "update terminal_term set last_tm=greatest(last_tm, ?) where term=? and session_id=? and instance_id=?";
+    private static final String INSERT_TERMINAL_TERM_SQL = "insert into terminal_term (term, session_id, instance_id, first_tm, last_tm) values (?,?,?,?,?)";
+    //username is copied from the session so command queries by user do not join session_log
+    private static final String INSERT_TERMINAL_COMMAND_SQL = "insert into terminal_command (session_id, instance_id, username, display_nm, user, host, command, log_tm) select ?, ?, username, ?, ?, ?, ?, ? from session_log where id=?";
+
     private SessionAuditDB() {
     }
 
 
     /**
-     * deletes audit history for users if after time set in properties file
+     * returns ids of sessions started before the given time, oldest first
      *
-     * @param con DB connection
+     * @param con       DB connection
+     * @param sessionTm session start time
+     * @param limit     max number of ids
+     * @return session ids
+     * @throws SQLException if the ids could not be read
      */
-    public static void deleteAuditHistory(Connection con) {
-
-        try {
-
-            //delete logs with no terminal entries
-            PreparedStatement stmt = con.prepareStatement("delete from session_log where id not in (select session_id from terminal_log)");
-            log.debug("deleteAuditHistory:" + stmt.toString());
-            stmt.execute();
-
+    public static List<Long> getSessionIdsBefore(Connection con, Date sessionTm, int limit) throws SQLException {
+
+        List<Long> sessionIdList = new ArrayList<>();
+        PreparedStatement stmt = con.prepareStatement("select id from session_log where session_tm < ? order by id asc limit ?");
+        stmt.setTimestamp(1, new Timestamp(sessionTm.getTime()));
+        stmt.setInt(2, limit);
+        ResultSet rs = stmt.executeQuery();
+        while (rs.next()) {
+            sessionIdList.add(rs.getLong("id"));
+        }
+        DBUtils.closeRs(rs);
+        DBUtils.closeStmt(stmt);
+        return sessionIdList;
+    }
 
-            //take today's date and subtract how many days to keep history
-            Calendar cal = Calendar.getInstance();
-            cal.add(Calendar.DATE, (-1 * Integer.parseInt(AppConfig.getProperty("deleteAuditLogAfter")))); //subtract
-            java.sql.Date date = new java.sql.Date(cal.getTimeInMillis());
+    /**
+     * returns ids of sessions with no terminal output started before the given time
+     *
+     * @param con       DB connection
+     * @param afterId   only return sessions with a greater id
+     * @param sessionTm session start time
+     * @param limit     max number of ids
+     * @return session ids in ascending order
+     * @throws SQLException if the ids could not be read
+     */
+    public static List<Long> getEmptySessionIds(Connection con, Long afterId, Date sessionTm, int limit) throws SQLException {
+
+        List<Long> sessionIdList = new ArrayList<>();
+        PreparedStatement stmt = con.prepareStatement("select id from session_log where id > ? and session_tm < ? and not exists (select 1 from session_host where session_host.session_id = session_log.id) order by id asc limit ?");
+        stmt.setLong(1, afterId);
+        stmt.setTimestamp(2, new Timestamp(sessionTm.getTime()));
+        stmt.setInt(3, limit);
+        ResultSet rs = stmt.executeQuery();
+        while (rs.next()) {
+            sessionIdList.add(rs.getLong("id"));
+        }
+        DBUtils.closeRs(rs);
+        DBUtils.closeStmt(stmt);
+        return sessionIdList;
+    }
 
+    /**
+     * deletes sessions and their terminal logs, removing terminal log rows in bounded
+     * statements so no single delete holds locks on a large part of the table
+     *
+     * @param con           DB connection in auto commit mode
+     * @param sessionIdList session ids
+     * @param rowLimit      max rows removed by one delete statement
+     * @return number of terminal log entries removed
+     * @throws SQLException if the rows could not be deleted
+     * @throws IOException  if recorded output could not be removed
+     */
+    public static long purgeSessions(Connection con, List<Long> sessionIdList, int rowLimit) throws SQLException, IOException {
 
-            stmt = con.prepareStatement("delete from session_log where session_tm < ?");
-            stmt.setDate(1, date);
-            log.debug("deleteAuditHistory:" + stmt.toString());
-            stmt.execute();
+        long rows = 0;
+        if (sessionIdList.isEmpty()) {
+            return rows;
+        }
+        String in = " where session_id in (" + StringUtils.repeat("?", ",", sessionIdList.size()) + ") limit ?";
+        deleteSessionRows(con, "delete from terminal_term" + in, sessionIdList, rowLimit);
+        deleteSessionRows(con, "delete from terminal_command" + in, sessionIdList, rowLimit);
+        rows = AuditStoreUtil.getAuditStore().delete(con, sessionIdList, rowLimit);
+
+        PreparedStatement stmt = con.prepareStatement("delete from session_log where id in (" + StringUtils.repeat("?", ",", sessionIdList.size()) + ")");
+        for (int i = 0; i < sessionIdList.size(); i++) {
+            stmt.setLong(i + 1, sessionIdList.get(i));
+        }
+        log.debug("purgeSessions:" + stmt.toString());
+        stmt.execute();
+        DBUtils.closeStmt(stmt);
+        return rows;
+    }
 
-            DBUtils.closeStmt(stmt);
+    /**
+     * repeats a limited delete until no rows remain
+     *
+     * @param con           DB connection
+     * @param sql           delete with session id parameters followed by a limit
+     * @param sessionIdList session ids
+     * @param rowLimit      max rows removed by one statement
+     * @return number of rows removed
+     * @throws SQLException if the rows could not be deleted
+     */
+    static long deleteSessionRows(Connection con, String sql, List<Long> sessionIdList, int rowLimit) throws SQLException {
 
-        } catch (Exception e) {
-            log.error(e.toString(), e);
+        long rows = 0;
+        PreparedStatement stmt = con.prepareStatement(sql);
+        for (int i = 0; i < sessionIdList.size(); i++) {
+            stmt.setLong(i + 1, sessionIdList.get(i));
         }
-
+        stmt.setInt(sessionIdList.size() + 1, rowLimit);
+        int deleted;
+        do {
+            deleted = stmt.executeUpdate();
+            rows = rows + deleted;
+        } while (deleted >= rowLimit);
+        DBUtils.closeStmt(stmt);
+        return rows;
     }
 
 
     /**
-     * returns sessions based on sort order defined
+     * returns a page of sessions based on sort order defined, using the sort value and id
+     * of the first or last session on the current page to seek to the next or previous page
      *
-     * @param sortedSet object that defines sort order
+     * @param sortedSet object that defines sort order, filters and page
      * @return session list
      */
     public static SortedSet getSessions(SortedSet sortedSet) {
         //get db connection
         Connection con = null;
-        List<SessionAudit> outputList = new LinkedList<>();
+        List<SessionAudit> outputList = new ArrayList<>();
 
-        String orderBy = "";
-        if (sortedSet.getOrderByField() != null && !sortedSet.getOrderByField().trim().equals("")) {
-            orderBy = " order by " + sortedSet.getOrderByField() + " " + sortedSet.getOrderByDirection();
+        String orderByField = SORT_BY_SESSION_TM;
+        if (SESSION_SORT_FIELDS.contains(sortedSet.getOrderByField())) {
+            orderByField = sortedSet.getOrderByField();
         }
-
-
-        String sql = "select * from session_log where 1=1 ";
-        sql+= StringUtils.isNotEmpty(sortedSet.getFilterMap().get(FILTER_BY_USER)) ? " and session_log.username like ? " : "";
-        sql+= StringUtils.isNotEmpty(sortedSet.getFilterMap().get(FILTER_BY_SYSTEM)) ? " and session_log.id in ( select session_id from terminal_log where terminal_log.display_nm like ?) " : "";
-        sql+= orderBy;
+        //nullable columns are sorted as empty strings so the page key can be compared
+        String sortColumn = SORT_BY_SESSION_TM.equals(orderByField) ? "session_tm" : "coalesce(" + orderByField + ", '')";
+        boolean asc = "asc".equals(sortedSet.getOrderByDirection());
+
+        String[] cursor = StringUtils.isNotEmpty(sortedSet.getCursor()) ? sortedSet.getCursor().split(":", 2) : null;
+        if (cursor != null && (cursor.length < 2 || !StringUtils.isNumeric(cursor[0])
+                || (SORT_BY_SESSION_TM.equals(orderByField) && !StringUtils.isNumeric(cursor[1])))) {
+            cursor = null;
+        }
+        //previous page is read in reverse order from the first session on the current page
+        boolean reverse = cursor != null && sortedSet.isPreviousPage();
+        boolean seekAsc = asc != reverse;
+        int pageSize = sortedSet.getPageSize() != null && sortedSet.getPageSize() > 0 ? sortedSet.getPageSize() : DEFAULT_PAGE_SIZE;
+
+        List<String> termList = AuditSearchUtil.parseQuery(sortedSet.getFilterMap().get(FILTER_BY_OUTPUT));
+        String filterSQL = getSessionFilterSQL(sortedSet, termList);
+
+        String sql = "select * from session_log where 1=1 " + filterSQL;
+        if (cursor != null) {
+            String op = seekAsc ? ">" : "<";
+            sql += " and (" + sortColumn + " " + op + " ? or (" + sortColumn + " = ? and id " + op + " ?)) ";
+        }
+        sql += " order by " + sortColumn + " " + (seekAsc ? "asc" : "desc") + ", id " + (seekAsc ? "asc" : "desc") + " limit ?";
 
         try {
 
             con = DBUtils.getConn();
-            deleteAuditHistory(con);
 
-            PreparedStatement stmt = con.prepareStatement(sql);
-            int i=1;
-            //set filters in prepared statement
-            if(StringUtils.isNotEmpty(sortedSet.getFilterMap().get(FILTER_BY_USER))){
-                stmt.setString(i++, sortedSet.getFilterMap().get(FILTER_BY_USER));
+            //count is only needed when the filters change, later pages carry it forward
+            if (cursor == null || sortedSet.getTotalCount() == null) {
+                PreparedStatement stmt = con.prepareStatement("select count(*) from session_log where 1=1 " + filterSQL);
+                setSessionFilterParams(stmt, 1, sortedSet, termList);
+                ResultSet rs = stmt.executeQuery();
+                if (rs.next()) {
+                    sortedSet.setTotalCount(rs.getLong(1));
+                }
+                DBUtils.closeRs(rs);
+                DBUtils.closeStmt(stmt);
             }
-            if(StringUtils.isNotEmpty(sortedSet.getFilterMap().get(FILTER_BY_SYSTEM))){
-                stmt.setString(i, sortedSet.getFilterMap().get(FILTER_BY_SYSTEM));
+
+            PreparedStatement stmt = con.prepareStatement(sql);
+            int i = setSessionFilterParams(stmt, 1, sortedSet, termList);
+            if (cursor != null) {
+                for (int j = 0; j < 2; j++) {
+                    if (SORT_BY_SESSION_TM.equals(orderByField)) {
+                        stmt.setTimestamp(i++, new Timestamp(Long.parseLong(cursor[1])));
+                    } else {
+                        stmt.setString(i++, cursor[1]);
+                    }
+                }
+                stmt.setLong(i++, Long.parseLong(cursor[0]));
             }
+            //one extra row shows if there is another page
+            stmt.setInt(i, pageSize + 1);
             log.debug("getSessions:" + stmt.toString());
             ResultSet rs = stmt.executeQuery();
             while (rs.next()) {
                 SessionAudit sessionAudit = new SessionAudit();
-                sessionAudit.setId(rs.getLong("session_log.id"));
+                sessionAudit.setId(rs.getLong("id"));
                 sessionAudit.setSessionTm(rs.getTimestamp("session_tm"));
                 sessionAudit.setFirstNm(rs.getString("first_nm"));
                 sessionAudit.setLastNm(rs.getString("last_nm"));
@@ -136,8 +275,7 @@ public class SessionAuditDB {
                 sessionAudit.setUsername(rs.getString("username"));
                 outputList.add(sessionAudit);
             }
-
-
+            DBUtils.closeRs(rs);
             DBUtils.closeStmt(stmt);
 
         } catch (Exception e) {
@@ -147,6 +285,27 @@ public class SessionAuditDB {
             DBUtils.closeConn(con);
         }
 
+        boolean more = outputList.size() > pageSize;
+        if (more) {
+            outputList = outputList.subList(0, pageSize);
+        }
+        if (reverse) {
+            Collections.reverse(outputList);
+        }
+        sortedSet.setNextCursor(null);
+        sortedSet.setPreviousCursor(null);
+        if (!outputList.isEmpty()) {
+            String firstCursor = getSessionCursor(outputList.get(0), orderByField);
+            String lastCursor = getSessionCursor(outputList.get(outputList.size() - 1), orderByField);
+            if (reverse) {
+                sortedSet.setPreviousCursor(more ? firstCursor : null);
+                sortedSet.setNextCursor(lastCursor);
+            } else {
+                sortedSet.setPreviousCursor(cursor != null ? firstCursor : null);
+                sortedSet.setNextCursor(more ? lastCursor : null);
+            }
+        }
+        sortedSet.setOrderByField(orderByField);
         sortedSet.setItemList(outputList);
 
         return sortedSet;
@@ -154,6 +313,71 @@ public class SessionAuditDB {
 
     }
 
+    /**
+     * returns where clause for the session filters set
+     *
+     * @param sortedSet object that defines filters
+     * @param termList  output search terms
+     * @return sql conditions on session_log
+     */
+    private static String getSessionFilterSQL(SortedSet sortedSet, List<String> termList) {
+        String sql = "";
+        sql+= StringUtils.isNotEmpty(sortedSet.getFilterMap().get(FILTER_BY_USER)) ? " and session_log.username like ? " : "";
+        sql+= StringUtils.isNotEmpty(sortedSet.getFilterMap().get(FILTER_BY_SYSTEM)) ? " and session_log.id in ( select session_id from session_host where session_host.display_nm like ?) " : "";
+        sql+= !termList.isEmpty() ? " and session_log.id in ( select session_id from terminal_term where " + getTermMatchSQL(termList) + ") " : "";
+        sql+= StringUtils.isNotEmpty(sortedSet.getFilterMap().get(FILTER_BY_COMMAND)) ? " and session_log.id in ( select session_id from terminal_command where command like ?) " : "";
+        return sql;
+    }
+
+    /**
+     * sets parameters for the session filters set
+     *
+     * @param stmt      statement
+     * @param index     index of first parameter
+     * @param sortedSet object that defines filters
+     * @param termList  output search terms
+     * @return index of the next parameter
+     * @throws SQLException if a parameter could not be set
+     */
+    private static int setSessionFilterParams(PreparedStatement stmt, int index, SortedSet sortedSet, List<String> termList) throws SQLException {
+        if(StringUtils.isNotEmpty(sortedSet.getFilterMap().get(FILTER_BY_USER))){
+            stmt.setString(index++, sortedSet.getFilterMap().get(FILTER_BY_USER));
+        }
+        if(StringUtils.isNotEmpty(sortedSet.getFilterMap().get(FILTER_BY_SYSTEM))){
+            stmt.setString(index++, sortedSet.getFilterMap().get(FILTER_BY_SYSTEM));
+        }
+        if(!termList.isEmpty()){
+            index = setTermMatchParams(stmt, index, termList);
+        }
+        if(StringUtils.isNotEmpty(sortedSet.getFilterMap().get(FILTER_BY_COMMAND))){
+            stmt.setString(index++, "%" + sortedSet.getFilterMap().get(FILTER_BY_COMMAND) + "%");
+        }
+        return index;
+    }
+
+    /**
+     * returns page key for a session as id:sort value
+     *
+     * @param sessionAudit session
+     * @param orderByField sort field
+     * @return page key
+     */
+    private static String getSessionCursor(SessionAudit sessionAudit, String orderByField) {
+        String value;
+        if (SORT_BY_SESSION_TM.equals(orderByField)) {
+            value = String.valueOf(sessionAudit.getSessionTm().getTime());
+        } else if (SORT_BY_FIRST_NM.equals(orderByField)) {
+            value = sessionAudit.getFirstNm();
+        } else if (SORT_BY_LAST_NM.equals(orderByField)) {
+            value = sessionAudit.getLastNm();
+        } else if (SORT_BY_IP_ADDRESS.equals(orderByField)) {
+            value = sessionAudit.getIpAddress();
+        } else {
+            value = sessionAudit.getUsername();
+        }
+        return sessionAudit.getId() + ":" + (value != null ? value : "");
+    }
+
     /**
      * insert new session record for user
      *
@@ -244,28 +468,465 @@ public class SessionAuditDB {
     public static void insertTerminalLog(Connection con, SessionOutput sessionOutput) {
 
         try {
+            insertTerminalLogs(con, Collections.singletonList(sessionOutput));
+
+        } catch (Exception e) {
+            log.error(e.toString(), e);
+        }
+
+    }
+
+
+    /**
+     * insert batch of terminal history into the audit store and update the terminal summary and search index
+     *
+     * @param con               DB connection
+     * @param sessionOutputList output from session terminals
+     * @throws SQLException if the batch could not be written
+     * @throws IOException  if the audit store could not write the output
+     */
+    public static void insertTerminalLogs(Connection con, List<SessionOutput> sessionOutputList) throws SQLException, IOException {
+
+        List<SessionOutput> outputList = new ArrayList<>(sessionOutputList.size());
+        //output with the keys queued between it, in queue order for the command parser
+        List<SessionOutput> commandOutputList = new ArrayList<>(sessionOutputList.size());
+        for (SessionOutput sessionOutput : sessionOutputList) {
+            if (sessionOutput == null || sessionOutput.getSessionId() == null || sessionOutput.getInstanceId() == null) {
+                continue;
+            }
+            if (sessionOutput.getInput() != null) {
+                commandOutputList.add(sessionOutput);
+            } else if (sessionOutput.getOutput() != null && sessionOutput.getOutput().length() > 0) {
+                outputList.add(sessionOutput);
+                commandOutputList.add(sessionOutput);
+            }
+        }
+        if (outputList.isEmpty()) {
+            //keys alone complete no commands but are still recorded by the parser
+            if (TerminalCommandUtil.COMMAND_INDEX_ENABLED) {
+                for (SessionOutput sessionOutput : commandOutputList) {
+                    TerminalCommandUtil.getCommands(sessionOutput);
+                }
+                TerminalCommandUtil.commit(commandOutputList);
+            }
+            return;
+        }
+
+        AuditStore store = AuditStoreUtil.getAuditStore();
+        boolean autoCommit = con.getAutoCommit();
+        con.setAutoCommit(false);
+        try {
+            store.write(con, outputList);
+            updateSessionHosts(con, outputList);
+            if (AuditSearchUtil.SEARCH_INDEX_ENABLED) {
+                insertTerminalLogTerms(con, outputList);
+            }
+            if (TerminalCommandUtil.COMMAND_INDEX_ENABLED) {
+                insertTerminalCommands(con, commandOutputList);
+            }
+            log.debug("insertTerminalLogs:" + outputList.size());
+            con.commit();
+            store.commit();
+            if (TerminalCommandUtil.COMMAND_INDEX_ENABLED) {
+                TerminalCommandUtil.commit(commandOutputList);
+            }
+        } catch (SQLException | IOException ex) {
+            con.rollback();
+            store.rollback();
+            if (AuditSearchUtil.SEARCH_INDEX_ENABLED) {
+                AuditSearchUtil.rollback(outputList);
+            }
+            if (TerminalCommandUtil.COMMAND_INDEX_ENABLED) {
+                TerminalCommandUtil.rollback(commandOutputList);
+            }
+            throw ex;
+        } finally {
+            con.setAutoCommit(autoCommit);
+        }
+    }
+
+    /**
+     * writes terminal output held back by the audit store
+     *
+     * @param all true to write all held output, false for output that is due to be written
+     */
+    public static void flushTerminalLogs(boolean all) {
+
+        AuditStore store = AuditStoreUtil.getAuditStore();
+        if (!store.hasHeldOutput()) {
+            return;
+        }
+        Connection con = null;
+        try {
+            con = DBUtils.getConn();
+            con.setAutoCommit(false);
+            try {
+                store.flush(con, all);
+                con.commit();
+                store.commit();
+            } catch (SQLException | IOException ex) {
+                con.rollback();
+                store.rollback();
+                throw ex;
+            }
+            con.setAutoCommit(true);
+
+        } catch (Exception e) {
+            log.error(e.toString(), e);
+        }
+        finally {
+            DBUtils.closeConn(con);
+        }
+    }
+
+    /**
+     * lets the audit store write output held for a terminal once it is closed
+     *
+     * @param sessionId  session id
+     * @param instanceId instance id for terminal session
+     */
+    public static void closeTerminalLogs(Long sessionId, Integer instanceId) {
+        try {
+            AuditStoreUtil.getAuditStore().close(sessionId, instanceId);
+            TerminalCommandUtil.removeParser(sessionId, instanceId);
+            AuditSearchUtil.removeTerminal(sessionId, instanceId);
+        } catch (Exception e) {
+            log.error(e.toString(), e);
+        }
+    }
+
+    /**
+     * updates the per terminal summary of output times and size for the batch,
+     * adding a row the first time a terminal has output
+     *
+     * @param con               DB connection
+     * @param sessionOutputList output from session terminals in log order
+     * @throws SQLException if the summary could not be written
+     */
+    private static void updateSessionHosts(Connection con, List<SessionOutput> sessionOutputList) throws SQLException {
+
+        //combine chunks for the same terminal so each is written once per batch
+        Map<String, SessionHost> sessionHostMap = new LinkedHashMap<>();
+        for (SessionOutput sessionOutput : sessionOutputList) {
+            String key = sessionOutput.getSessionId() + ":" + sessionOutput.getInstanceId();
+            long logTm = sessionOutput.getLogTm() != null ? sessionOutput.getLogTm().getTime() : System.currentTimeMillis();
+            SessionHost sessionHost = sessionHostMap.get(key);
+            if (sessionHost == null) {
+                sessionHost = new SessionHost(sessionOutput, logTm);
+                sessionHostMap.put(key, sessionHost);
+            }
+            sessionHost.lastLogTm = Math.max(sessionHost.lastLogTm, logTm);
+            sessionHost.outputSize = sessionHost.outputSize + sessionOutput.getOutput().toString().getBytes(StandardCharsets.UTF_8).length;
+        }
+
+        PreparedStatement updateStmt = con.prepareStatement(UPDATE_SESSION_HOST_SQL);
+        PreparedStatement insertStmt = null;
+        for (SessionHost sessionHost : sessionHostMap.values()) {
+            SessionOutput sessionOutput = sessionHost.sessionOutput;
+            updateStmt.setTimestamp(1, new Timestamp(sessionHost.lastLogTm));
+            updateStmt.setLong(2, sessionHost.outputSize);
+            updateStmt.setLong(3, sessionOutput.getSessionId());
+            updateStmt.setLong(4, sessionOutput.getInstanceId());
+            if (updateStmt.executeUpdate() == 0) {
+                if (insertStmt == null) {
+                    insertStmt = con.prepareStatement(INSERT_SESSION_HOST_SQL);
+                }
+                insertStmt.setLong(1, sessionOutput.getSessionId());
+                insertStmt.setLong(2, sessionOutput.getInstanceId());
+                insertStmt.setString(3, sessionOutput.getDisplayNm());
+                insertStmt.setString(4, sessionOutput.getUser());
+                insertStmt.setString(5, sessionOutput.getHost());
+                insertStmt.setInt(6, sessionOutput.getPort());
+                insertStmt.setTimestamp(7, new Timestamp(sessionHost.firstLogTm));
+                insertStmt.setTimestamp(8, new Timestamp(sessionHost.lastLogTm));
+                insertStmt.setLong(9, sessionHost.outputSize);
+                insertStmt.execute();
+            }
+        }
+        DBUtils.closeStmt(updateStmt);
+        DBUtils.closeStmt(insertStmt);
+    }
 
-            if (sessionOutput != null && sessionOutput.getSessionId() != null && sessionOutput.getInstanceId() != null && sessionOutput.getOutput() != null && !sessionOutput.getOutput().toString().equals("")) {
-                //insert
-                PreparedStatement stmt = con.prepareStatement("insert into terminal_log (session_id, instance_id, display_nm, user, host, port, output) values(?,?,?,?,?,?,?)");
+    /**
+     * fills the per terminal summary from existing terminal logs when it is empty
+     *
+     * @param con DB connection
+     */
+    public static void initSessionHosts(Connection con) {
+
+        try {
+            Statement stmt = con.createStatement();
+            ResultSet rs = stmt.executeQuery("select count(*) from session_host");
+            boolean empty = rs.next() && rs.getLong(1) == 0;
+            DBUtils.closeRs(rs);
+            if (empty) {
+                //output size is in UTF-8 bytes as added for new output in updateSessionHosts
+                String outputSize = DBUtils.isMySQL(con) ? "length(convert(output using utf8mb4))" : "length(stringtoutf8(output))";
+                int rows = stmt.executeUpdate("insert into session_host (session_id, instance_id, display_nm, user, host, port, first_log_tm, last_log_tm, output_size) "
+                        + "select session_id, instance_id, max(display_nm), max(user), max(host), max(port), min(log_tm), max(log_tm), sum(" + outputSize + ") "
+                        + "from terminal_log where session_id is not null and instance_id is not null group by session_id, instance_id");
+                log.info("initSessionHosts: added " + rows + " terminals from existing audit logs");
+            }
+            DBUtils.closeStmt(stmt);
+
+        } catch (Exception e) {
+            log.error(e.toString(), e);
+        }
+    }
+
+    /**
+     * adds terms found in the terminal output to the search index, moving on the last
+     * time of terms already indexed for the terminal
+     *
+     * @param con               DB connection
+     * @param sessionOutputList output from session terminals
+     * @throws SQLException if the terms could not be written
+     */
+    private static void insertTerminalLogTerms(Connection con, List<SessionOutput> sessionOutputList) throws SQLException {
+
+        //combine terms for the same terminal so each is written once per batch
+        Map<String, TermSpan> termSpanMap = new LinkedHashMap<>();
+        for (SessionOutput sessionOutput : sessionOutputList) {
+            long logTm = sessionOutput.getLogTm() != null ? sessionOutput.getLogTm().getTime() : System.currentTimeMillis();
+            for (String term : AuditSearchUtil.getTerms(sessionOutput)) {
+                String key = term + ":" + sessionOutput.getSessionId() + ":" + sessionOutput.getInstanceId();
+                TermSpan termSpan = termSpanMap.get(key);
+                if (termSpan == null) {
+                    termSpan = new TermSpan(term, sessionOutput, logTm);
+                    termSpanMap.put(key, termSpan);
+                }
+                termSpan.lastTm = Math.max(termSpan.lastTm, logTm);
+            }
+        }
+        if (termSpanMap.isEmpty()) {
+            return;
+        }
+
+        List<TermSpan> termSpanList = new ArrayList<>(termSpanMap.values());
+        PreparedStatement updateStmt = con.prepareStatement(UPDATE_TERMINAL_TERM_SQL);
+        for (TermSpan termSpan : termSpanList) {
+            updateStmt.setTimestamp(1, new Timestamp(termSpan.lastTm));
+            updateStmt.setString(2, termSpan.term);
+            updateStmt.setLong(3, termSpan.sessionOutput.getSessionId());
+            updateStmt.setLong(4, termSpan.sessionOutput.getInstanceId());
+            updateStmt.addBatch();
+        }
+        int[] updateCounts = updateStmt.executeBatch();
+        DBUtils.closeStmt(updateStmt);
+
+        PreparedStatement insertStmt = con.prepareStatement(INSERT_TERMINAL_TERM_SQL);
+        int count = 0;
+        for (int i = 0; i < termSpanList.size(); i++) {
+            if (updateCounts[i] == 0) {
+                TermSpan termSpan = termSpanList.get(i);
+                insertStmt.setString(1, termSpan.term);
+                insertStmt.setLong(2, termSpan.sessionOutput.getSessionId());
+                insertStmt.setLong(3, termSpan.sessionOutput.getInstanceId());
+                insertStmt.setTimestamp(4, new Timestamp(termSpan.firstTm));
+                insertStmt.setTimestamp(5, new Timestamp(termSpan.lastTm));
+                insertStmt.addBatch();
+                count++;
+            }
+        }
+        if (count > 0) {
+            insertStmt.executeBatch();
+        }
+        DBUtils.closeStmt(insertStmt);
+        log.debug("insertTerminalLogTerms:" + termSpanList.size() + " written, " + count + " new");
+    }
+
+    /**
+     * adds commands completed by the terminal output to the command index
+     *
+     * @param con               DB connection
+     * @param sessionOutputList output from session terminals and keys sent to them in queue order
+     * @throws SQLException if the commands could not be written
+     */
+    private static void insertTerminalCommands(Connection con, List<SessionOutput> sessionOutputList) throws SQLException {
+
+        PreparedStatement stmt = con.prepareStatement(INSERT_TERMINAL_COMMAND_SQL);
+        int count = 0;
+        for (SessionOutput sessionOutput : sessionOutputList) {
+            for (String command : TerminalCommandUtil.getCommands(sessionOutput)) {
                 stmt.setLong(1, sessionOutput.getSessionId());
                 stmt.setLong(2, sessionOutput.getInstanceId());
                 stmt.setString(3, sessionOutput.getDisplayNm());
                 stmt.setString(4, sessionOutput.getUser());
                 stmt.setString(5, sessionOutput.getHost());
-                stmt.setInt(6, sessionOutput.getPort());
-                stmt.setString(7, sessionOutput.getOutput().toString());
-                log.debug("insertTerminalLog:" + stmt.toString());
-                stmt.execute();
-                DBUtils.closeStmt(stmt);
+                stmt.setString(6, command);
+                stmt.setTimestamp(7, new Timestamp(sessionOutput.getLogTm() != null ? sessionOutput.getLogTm().getTime() : System.currentTimeMillis()));
+                stmt.setLong(8, sessionOutput.getSessionId());
+                stmt.addBatch();
+                count++;
+            }
+        }
+        if (count > 0) {
+            stmt.executeBatch();
+        }
+        DBUtils.closeStmt(stmt);
+    }
+
+    /**
+     * returns commands run by a user on a system, most recent first
+     *
+     * @param username  username, any user if empty
+     * @param displayNm system display name, any system if empty
+     * @param query     text the command contains, any command if empty
+     * @param startTm   only commands run at or after this time, may be null
+     * @param endTm     only commands run before this time, may be null
+     * @param limit     max number of commands returned
+     * @return matching commands
+     */
+    public static List<TerminalCommand> getTerminalCommands(String username, String displayNm, String query, Date startTm, Date endTm, int limit) {
+
+        List<TerminalCommand> commandList = new ArrayList<>();
+
+        String sql = "select session_id, instance_id, username, display_nm, user, host, command, log_tm from terminal_command where 1=1";
+        sql += StringUtils.isNotEmpty(username) ? " and username=?" : "";
+        sql += StringUtils.isNotEmpty(displayNm) ? " and display_nm=?" : "";
+        sql += StringUtils.isNotEmpty(query) ? " and command like ?" : "";
+        sql += startTm != null ? " and log_tm >= ?" : "";
+        sql += endTm != null ? " and log_tm < ?" : "";
+        sql += " order by log_tm desc limit ?";
+
+        Connection con = null;
+        try {
+            con = DBUtils.getConn();
+            PreparedStatement stmt = con.prepareStatement(sql);
+            int i = 1;
+            if (StringUtils.isNotEmpty(username)) {
+                stmt.setString(i++, username);
+            }
+            if (StringUtils.isNotEmpty(displayNm)) {
+                stmt.setString(i++, displayNm);
+            }
+            if (StringUtils.isNotEmpty(query)) {
+                stmt.setString(i++, "%" + query + "%");
+            }
+            if (startTm != null) {
+                stmt.setTimestamp(i++, new Timestamp(startTm.getTime()));
+            }
+            if (endTm != null) {
+                stmt.setTimestamp(i++, new Timestamp(endTm.getTime()));
+            }
+            stmt.setInt(i, limit);
+            log.debug("getTerminalCommands:" + stmt.toString());
+            ResultSet rs = stmt.executeQuery();
+            while (rs.next()) {
+                TerminalCommand terminalCommand = new TerminalCommand();
+                terminalCommand.setSessionId(rs.getLong("session_id"));
+                terminalCommand.setInstanceId(rs.getInt("instance_id"));
+                terminalCommand.setUsername(rs.getString("username"));
+                terminalCommand.setDisplayNm(rs.getString("display_nm"));
+                terminalCommand.setUser(rs.getString("user"));
+                terminalCommand.setHost(rs.getString("host"));
+                terminalCommand.setCommand(rs.getString("command"));
+                terminalCommand.setLogTm(rs.getTimestamp("log_tm"));
+                commandList.add(terminalCommand);
+            }
+            DBUtils.closeRs(rs);
+            DBUtils.closeStmt(stmt);
+
+        } catch (Exception e) {
+            log.error(e.toString(), e);
+        }
+        finally {
+            DBUtils.closeConn(con);
+        }
+        return commandList;
+    }
+
+    /**
+     * returns terminals whose recorded output contains all search terms, most recent first
+     *
+     * @param query   search query
+     * @param startTm only match output logged at or after this time, may be null
+     * @param endTm   only match output logged before this time, may be null
+     * @param limit   max number of terminals returned
+     * @return matching terminals
+     */
+    public static List<AuditSearchResult> searchTerminalOutput(String query, Date startTm, Date endTm, int limit) {
+
+        List<AuditSearchResult> resultList = new ArrayList<>();
+        List<String> termList = AuditSearchUtil.parseQuery(query);
+        if (termList.isEmpty()) {
+            return resultList;
+        }
+
+        String sql = "select term_match.session_id, term_match.instance_id, term_match.first_tm, term_match.last_tm, session_log.username, session_log.first_nm, session_log.last_nm"
+                + " from (select session_id, instance_id, min(first_tm) as first_tm, max(last_tm) as last_tm from terminal_term where term in (" + StringUtils.repeat("?", ",", termList.size()) + ")"
+                + (startTm != null ? " and last_tm >= ?" : "")
+                + (endTm != null ? " and first_tm < ?" : "")
+                + " group by session_id, instance_id having count(distinct term) = ?) term_match, session_log"
+                + " where session_log.id = term_match.session_id order by term_match.last_tm desc limit ?";
+
+        Connection con = null;
+        try {
+            con = DBUtils.getConn();
+            PreparedStatement stmt = con.prepareStatement(sql);
+            int i = 1;
+            for (String term : termList) {
+                stmt.setString(i++, term);
+            }
+            if (startTm != null) {
+                stmt.setTimestamp(i++, new Timestamp(startTm.getTime()));
+            }
+            if (endTm != null) {
+                stmt.setTimestamp(i++, new Timestamp(endTm.getTime()));
+            }
+            stmt.setInt(i++, termList.size());
+            stmt.setInt(i, limit);
+            log.debug("searchTerminalOutput:" + stmt.toString());
+            ResultSet rs = stmt.executeQuery();
+            while (rs.next()) {
+                AuditSearchResult result = new AuditSearchResult();
+                result.setSessionId(rs.getLong("session_id"));
+                result.setInstanceId(rs.getInt("instance_id"));
+                result.setFirstMatchTm(rs.getTimestamp("first_tm"));
+                result.setLastMatchTm(rs.getTimestamp("last_tm"));
+                result.setUsername(rs.getString("username"));
+                result.setFirstNm(rs.getString("first_nm"));
+                result.setLastNm(rs.getString("last_nm"));
+                resultList.add(result);
             }
+            DBUtils.closeRs(rs);
+            DBUtils.closeStmt(stmt);
 
         } catch (Exception e) {
             log.error(e.toString(), e);
         }
+        finally {
+            DBUtils.closeConn(con);
+        }
+        return resultList;
+    }
 
+    /**
+     * returns where clause matching terminals with all terms in the search index
+     *
+     * @param termList search terms
+     * @return sql for a subquery on terminal_term
+     */
+    private static String getTermMatchSQL(List<String> termList) {
+        return "term in (" + StringUtils.repeat("?", ",", termList.size()) + ") group by session_id, instance_id having count(distinct term) = ?";
     }
 
+    /**
+     * sets parameters for the term match subquery
+     *
+     * @param stmt     statement
+     * @param index    index of first parameter
+     * @param termList search terms
+     * @return index of the next parameter
+     * @throws SQLException if a parameter could not be set
+     */
+    private static int setTermMatchParams(PreparedStatement stmt, int index, List<String> termList) throws SQLException {
+        for (String term : termList) {
+            stmt.setString(index++, term);
+        }
+        stmt.setInt(index++, termList.size());
+        return index;
+    }
 
     /**
      * returns terminal logs for user session for host system
@@ -304,41 +965,317 @@ public class SessionAuditDB {
 
         List<SessionOutput> outputList = new LinkedList<>();
         try {
-            PreparedStatement stmt = con.prepareStatement("select * from terminal_log where instance_id=? and session_id=? order by log_tm asc");
-            stmt.setLong(1, instanceId);
-            stmt.setLong(2, sessionId);
-            log.debug("getTerminalLogsForSession:" + stmt.toString());
-            ResultSet rs = stmt.executeQuery();
-            StringBuilder outputBuilder = new StringBuilder("");
-            while (rs.next()) {
-                outputBuilder.append(rs.getString("output"));
-            }
-
-            String output = outputBuilder.toString();
-            output = output.replaceAll("\\u0007|\u001B\\[K|\\]0;|\\[\\d\\d;\\d\\dm|\\[\\dm","");
-            while (output.contains("\b")) {
-                output = output.replaceFirst(".\b", "");
-            }
-            DBUtils.closeRs(rs);
+            AuditOutputSanitizer sanitizer = new AuditOutputSanitizer();
+            streamTerminalLogs(con, sessionId, instanceId, 0, 0, sanitizer);
 
             SessionOutput sessionOutput = new SessionOutput();
             sessionOutput.setSessionId(sessionId);
             sessionOutput.setInstanceId(instanceId);
-            sessionOutput.getOutput().append(output);
+            sessionOutput.setOutput(sanitizer.finish());
 
             outputList.add(sessionOutput);
 
+        } catch (Exception e) {
+            log.error(e.toString(), e);
+        }
+        return outputList;
 
-            DBUtils.closeRs(rs);
+    }
+
+    /**
+     * returns a page of terminal logs for user session for host system. Pages continue from
+     * the cursor of the previous page, which also holds the last partial line and unprocessed
+     * output so backspaces and sequences that span pages are applied as for the full output.
+     *
+     * @param sessionId  session id
+     * @param instanceId instance id for terminal session
+     * @param cursor     cursor returned with the previous page, first page if empty
+     * @param limit      max number of log entries to return
+     * @return page of sanitized output
+     */
+    public static AuditOutputPage getTerminalLogPageForSession(Long sessionId, Integer instanceId, String cursor, int limit) {
+
+        AuditOutputPage page = new AuditOutputPage();
+        page.setSessionId(sessionId);
+        page.setInstanceId(instanceId);
+        page.setCursor(cursor);
+
+        Connection con = null;
+        try {
+            con = DBUtils.getConn();
+            AuditOutputCursor outputCursor = decodeCursor(cursor);
+            final AuditOutputSanitizer sanitizer = new AuditOutputSanitizer(outputCursor.getLine(), outputCursor.getCarry());
+            final int[] rows = {0};
+            String position = AuditStoreUtil.getAuditStore().readPage(con, sessionId, instanceId, outputCursor.getPosition(), limit, new AuditOutputHandler() {
+                @Override
+                public void output(long logTm, String output) {
+                    sanitizer.append(output);
+                    rows[0]++;
+                }
+            });
+            page.setComplete(rows[0] < limit);
+            if (page.isComplete()) {
+                page.setOutput(sanitizer.finish().toString());
+            } else {
+                page.setOutput(sanitizer.drainLines(MAX_HELD_LINE));
+                AuditOutputCursor nextCursor = new AuditOutputCursor();
+                nextCursor.setPosition(position);
+                nextCursor.setLine(sanitizer.getOutput().toString());
+                nextCursor.setCarry(sanitizer.getCarry());
+                page.setNextCursor(encodeCursor(nextCursor));
+            }
+
+        } catch (Exception e) {
+            log.error(e.toString(), e);
+        }
+        finally {
+            DBUtils.closeConn(con);
+        }
+        return page;
+    }
+
+    /**
+     * encodes page cursor for the client
+     *
+     * @param cursor page cursor
+     * @return url safe cursor value
+     */
+    private static String encodeCursor(AuditOutputCursor cursor) {
+        return Base64.encodeBase64URLSafeString(new Gson().toJson(cursor).getBytes(StandardCharsets.UTF_8));
+    }
 
+    /**
+     * decodes page cursor sent by the client
+     *
+     * @param cursor url safe cursor value, empty for the first page
+     * @return page cursor
+     */
+    private static AuditOutputCursor decodeCursor(String cursor) {
+        AuditOutputCursor outputCursor = null;
+        if (StringUtils.isNotEmpty(cursor)) {
+            outputCursor = new Gson().fromJson(new String(Base64.decodeBase64(cursor), StandardCharsets.UTF_8), AuditOutputCursor.class);
+        }
+        return outputCursor != null ? outputCursor : new AuditOutputCursor();
+    }
+
+    /**
+     * returns seek index for terminal playback with a keyframe for each interval containing output
+     *
+     * @param sessionId  session id
+     * @param instanceId instance id for terminal session
+     * @param interval   keyframe interval in seconds
+     * @return playback index
+     */
+    public static PlaybackIndex getPlaybackIndex(Long sessionId, Integer instanceId, int interval) {
+
+        PlaybackIndex index = new PlaybackIndex();
+        index.setSessionId(sessionId);
+        index.setInstanceId(instanceId);
+        index.setInterval(interval);
+
+        final long intervalMs = interval * 1000L;
+        Connection con = null;
+        try {
+            con = DBUtils.getConn();
+            final PlaybackIndex playbackIndex = index;
+            //only output times are read, the output itself is not needed for the index
+            AuditStoreUtil.getAuditStore().readTimes(con, sessionId, instanceId, interval, new AuditTimeHandler() {
+                long lastBucket = -1;
+
+                @Override
+                public void time(long logTm) {
+                    if (playbackIndex.getStartTm() == null) {
+                        playbackIndex.setStartTm(logTm);
+                    }
+                    long bucket = (logTm - playbackIndex.getStartTm()) / intervalMs;
+                    if (bucket != lastBucket) {
+                        playbackIndex.getKeyframes().add(logTm);
+                        lastBucket = bucket;
+                    }
+                    playbackIndex.setEndTm(logTm);
+                }
+            });
+
+        } catch (Exception e) {
+            log.error(e.toString(), e);
+        }
+        finally {
+            DBUtils.closeConn(con);
+        }
+        return index;
+    }
 
+    /**
+     * returns recorded output with times relative to the start of the recording
+     *
+     * @param sessionId  session id
+     * @param instanceId instance id for terminal session
+     * @param fromTm     log time in milliseconds to start from, start of recording if null
+     * @param fromOffset number of entries logged at fromTm already played
+     * @param limit      max number of log entries to return
+     * @return page of playback events
+     */
+    public static PlaybackPage getPlaybackPage(Long sessionId, Integer instanceId, Long fromTm, int fromOffset, int limit) {
+
+        PlaybackPage page = new PlaybackPage();
+        page.setSessionId(sessionId);
+        page.setInstanceId(instanceId);
+
+        Connection con = null;
+        try {
+            con = DBUtils.getConn();
+
+            PreparedStatement stmt = con.prepareStatement("select first_log_tm from session_host where session_id=? and instance_id=?");
+            stmt.setLong(1, sessionId);
+            stmt.setLong(2, instanceId);
+            ResultSet rs = stmt.executeQuery();
+            if (rs.next() && rs.getTimestamp(1) != null) {
+                page.setStartTm(rs.getTimestamp(1).getTime());
+            }
+            DBUtils.closeRs(rs);
             DBUtils.closeStmt(stmt);
 
+            if (page.getStartTm() == null) {
+                page.setComplete(true);
+                return page;
+            }
+            page.setFromTm(fromTm != null ? fromTm : page.getStartTm());
+            page.setFromOffset(fromTm != null ? fromOffset : 0);
+
+            //seek directly to the requested time without reading earlier output, skipping
+            //entries at that time returned with the previous page
+            final PlaybackPage playbackPage = page;
+            final long[] last = {page.getFromTm(), page.getFromOffset()};
+            AuditStoreUtil.getAuditStore().read(con, sessionId, instanceId, page.getFromTm(), page.getFromOffset(), limit, new AuditOutputHandler() {
+                @Override
+                public void output(long logTm, String output) {
+                    //count entries sharing the last log time so the next page continues within it
+                    if (logTm == last[0]) {
+                        last[1]++;
+                    } else {
+                        last[0] = logTm;
+                        last[1] = 1;
+                    }
+                    playbackPage.getEvents().add(new Object[]{(logTm - playbackPage.getStartTm()) / 1000.0, "o", output});
+                }
+            });
+
+            if (page.getEvents().size() < limit) {
+                page.setComplete(true);
+            } else {
+                page.setNextFromTm(last[0]);
+                page.setNextFromOffset((int) last[1]);
+            }
+
         } catch (Exception e) {
             log.error(e.toString(), e);
         }
-        return outputList;
+        finally {
+            DBUtils.closeConn(con);
+        }
+        return page;
+    }
+
+    /**
+     * streams recorded output for the terminals of a session, or of all sessions for a user
+     * started within a date range, to the export writer
+     *
+     * @param sessionId  session id, sessions of the user within the range if null
+     * @param instanceId instance id for terminal session, all terminals of the session if null
+     * @param username   username for sessions, any user if null
+     * @param startTm    sessions started at or after this time, no lower bound if null
+     * @param endTm      sessions started before this time, no upper bound if null
+     * @param writer     writer receiving the output
+     * @return number of terminals exported
+     * @throws SQLException if the log could not be read
+     * @throws IOException  if the output could not be read or written
+     */
+    public static int exportTerminalLogs(Long sessionId, Integer instanceId, String username, Date startTm, Date endTm, AuditExportWriter writer) throws SQLException, IOException {
+
+        List<SessionOutput> terminalList = new ArrayList<>();
+        Map<Long, String> usernameMap = new LinkedHashMap<>();
+
+        Connection con = null;
+        try {
+            con = DBUtils.getConn();
+
+            String sql = "select session_host.session_id, session_host.instance_id, session_host.display_nm, session_host.user, session_host.host, session_host.port, session_host.first_log_tm, session_log.username "
+                    + "from session_log, session_host where session_log.id = session_host.session_id";
+            sql += sessionId != null ? " and session_log.id=?" : "";
+            sql += instanceId != null ? " and session_host.instance_id=?" : "";
+            sql += StringUtils.isNotEmpty(username) ? " and session_log.username=?" : "";
+            sql += startTm != null ? " and session_log.session_tm >= ?" : "";
+            sql += endTm != null ? " and session_log.session_tm < ?" : "";
+            sql += " order by session_log.session_tm, session_host.session_id, session_host.instance_id";
+
+            PreparedStatement stmt = con.prepareStatement(sql);
+            int i = 1;
+            if (sessionId != null) {
+                stmt.setLong(i++, sessionId);
+            }
+            if (instanceId != null) {
+                stmt.setInt(i++, instanceId);
+            }
+            if (StringUtils.isNotEmpty(username)) {
+                stmt.setString(i++, username);
+            }
+            if (startTm != null) {
+                stmt.setTimestamp(i++, new Timestamp(startTm.getTime()));
+            }
+            if (endTm != null) {
+                stmt.setTimestamp(i, new Timestamp(endTm.getTime()));
+            }
+            log.debug("exportTerminalLogs:" + stmt.toString());
+            ResultSet rs = stmt.executeQuery();
+            while (rs.next()) {
+                SessionOutput terminal = new SessionOutput();
+                terminal.setSessionId(rs.getLong("session_id"));
+                terminal.setInstanceId(rs.getInt("instance_id"));
+                terminal.setDisplayNm(rs.getString("display_nm"));
+                terminal.setUser(rs.getString("user"));
+                terminal.setHost(rs.getString("host"));
+                terminal.setPort(rs.getInt("port"));
+                terminal.setLogTm(rs.getTimestamp("first_log_tm"));
+                terminalList.add(terminal);
+                usernameMap.put(terminal.getSessionId(), rs.getString("username"));
+            }
+            DBUtils.closeRs(rs);
+            DBUtils.closeStmt(stmt);
+
+            //terminal list is read first so output can be streamed from the store one terminal at a time
+            for (SessionOutput terminal : terminalList) {
+                writer.startTerminal(terminal, usernameMap.get(terminal.getSessionId()), terminal.getLogTm() != null ? terminal.getLogTm().getTime() : 0);
+                AuditStoreUtil.getAuditStore().read(con, terminal.getSessionId(), terminal.getInstanceId(), null, 0, 0, writer);
+            }
+            writer.flush();
 
+        } finally {
+            DBUtils.closeConn(con);
+        }
+        return terminalList.size();
+    }
+
+    /**
+     * passes terminal log entries to the sanitizer as they are read from the audit store
+     *
+     * @param con        DB connection
+     * @param sessionId  session id
+     * @param instanceId instance id for terminal session
+     * @param offset     number of log entries to skip
+     * @param limit      max number of log entries to read, all entries if <= 0
+     * @param sanitizer  sanitizer receiving the output
+     * @return number of log entries read
+     * @throws SQLException if the log could not be read
+     * @throws IOException  if the audit store could not read the output
+     */
+    private static int streamTerminalLogs(Connection con, Long sessionId, Integer instanceId, int offset, int limit, final AuditOutputSanitizer sanitizer) throws SQLException, IOException {
+
+        return AuditStoreUtil.getAuditStore().read(con, sessionId, instanceId, null, offset, limit, new AuditOutputHandler() {
+            @Override
+            public void output(long logTm, String output) {
+                sanitizer.append(output);
+            }
+        });
     }
 
     /**
@@ -352,7 +1289,7 @@ public class SessionAuditDB {
 
         List<HostSystem> hostSystemList = new ArrayList<>();
         try {
-            PreparedStatement stmt = con.prepareStatement("select distinct instance_id, display_nm, user, host, port from terminal_log where session_id=?");
+            PreparedStatement stmt = con.prepareStatement("select instance_id, display_nm, user, host, port from session_host where session_id=? order by instance_id");
             stmt.setLong(1, sessionId);
             log.debug("getHostSystemsForSession:" + stmt.toString());
             ResultSet rs = stmt.executeQuery();
@@ -421,4 +1358,39 @@ public class SessionAuditDB {
 
     }
 
+    /**
+     * output times and size for a terminal within a batch
+     */
+    /**
+     * times a term was found in the output of a terminal within a batch
+     */
+    private static class TermSpan {
+
+        String term;
+        SessionOutput sessionOutput;
+        long firstTm;
+        long lastTm;
+
+        TermSpan(String term, SessionOutput sessionOutput, long logTm) {
+            this.term = term;
+            this.sessionOutput = sessionOutput;
+            this.firstTm = logTm;
+            this.lastTm = logTm;
+        }
+    }
+
+    private static class SessionHost {
+
+        SessionOutput sessionOutput;
+        long firstLogTm;
+        long lastLogTm;
+        long outputSize = 0;
+
+        SessionHost(SessionOutput sessionOutput, long logTm) {
+            this.sessionOutput = sessionOutput;
+            this.firstLogTm = logTm;
+            this.lastLogTm = logTm;
+        }
+    }
+
 }
@@ -285,6 +285,44 @@ public class SystemStatusDB {
     }
 
 
+    /**
+     * returns all systems that have not been connected to or need a password or passphrase
+     *
+     * @param userId user id
+     * @return pending systems
+     */
+    public static List<HostSystem> getPendingSystemList(Long userId) {
+
+        List<HostSystem> hostSystemList = new ArrayList<>();
+        Connection con = null;
+        try {
+            con = DBUtils.getConn();
+            PreparedStatement stmt = con.prepareStatement("select * from status where (status_cd like ? or status_cd like ? or status_cd like ?) and user_id=? order by id asc");
+            stmt.setString(1,HostSystem.INITIAL_STATUS);
+            stmt.setString(2,HostSystem.AUTH_FAIL_STATUS);
+            stmt.setString(3,HostSystem.PUBLIC_KEY_FAIL_STATUS);
+            stmt.setLong(4, userId);
+            log.debug("getPendingSystemList:" + stmt.toString());
+            ResultSet rs = stmt.executeQuery();
+
+            while (rs.next()) {
+                HostSystem hostSystem = SystemDB.getSystem(con, rs.getLong("id"));
+                hostSystem.setStatusCd(rs.getString(STATUS_CD));
+                hostSystemList.add(hostSystem);
+            }
+            DBUtils.closeRs(rs);
+            DBUtils.closeStmt(stmt);
+
+        } catch (Exception e) {
+            log.error(e.toString(), e);
+        }
+        finally {
+            DBUtils.closeConn(con);
+        }
+        return hostSystemList;
+
+    }
+
     /**
      * returns the first system that authorized keys has not been tried
      *
@@ -0,0 +1,268 @@
+/**
+ * Copyright 2013 Sean Kavanagh - sean.p.kavanagh6@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.keybox.manage.db;
+
+import com.keybox.manage.model.SessionOutput;
+import com.keybox.manage.util.DBUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.List;
+
+/**
+ * Audit store keeping each output chunk as a row in terminal_log
+ */
+public class TerminalLogAuditStore implements AuditStore {
+
+    private static Logger log = LoggerFactory.getLogger(TerminalLogAuditStore.class);
+
+    private static final String INSERT_TERMINAL_LOG_SQL = "insert into terminal_log (session_id, instance_id, display_nm, user, host, port, output, log_tm) values";
+    private static final String INSERT_TERMINAL_LOG_VALUES = "(?,?,?,?,?,?,?,?)";
+    //max rows in a single multi-row insert
+    private static final int MAX_MULTI_ROW_INSERT = 100;
+    //rows fetched per round trip when reading terminal logs
+    private static final int FETCH_SIZE = 500;
+
+    /**
+     * insert batch of terminal history using multi-row inserts on MySQL and JDBC batches otherwise
+     *
+     * @param con               DB connection
+     * @param sessionOutputList output from session terminals
+     * @throws SQLException if the batch could not be written
+     */
+    @Override
+    public void write(Connection con, List<SessionOutput> sessionOutputList) throws SQLException {
+
+        if (DBUtils.isMySQL(con)) {
+            for (int i = 0; i < sessionOutputList.size(); i = i + MAX_MULTI_ROW_INSERT) {
+                List<SessionOutput> rows = sessionOutputList.subList(i, Math.min(i + MAX_MULTI_ROW_INSERT, sessionOutputList.size()));
+                StringBuilder sql = new StringBuilder(INSERT_TERMINAL_LOG_SQL);
+                for (int j = 0; j < rows.size(); j++) {
+                    sql.append(j > 0 ? "," : "").append(INSERT_TERMINAL_LOG_VALUES);
+                }
+                PreparedStatement stmt = con.prepareStatement(sql.toString());
+                for (int j = 0; j < rows.size(); j++) {
+                    setTerminalLogParams(stmt, j * 8, rows.get(j));
+                }
+                stmt.execute();
+                DBUtils.closeStmt(stmt);
+            }
+        } else {
+            PreparedStatement stmt = con.prepareStatement(INSERT_TERMINAL_LOG_SQL + INSERT_TERMINAL_LOG_VALUES);
+            for (SessionOutput sessionOutput : sessionOutputList) {
+                setTerminalLogParams(stmt, 0, sessionOutput);
+                stmt.addBatch();
+            }
+            stmt.executeBatch();
+            DBUtils.closeStmt(stmt);
+        }
+    }
+
+    /**
+     * passes terminal log entries to the handler as they are read from the result set
+     */
+    @Override
+    public int read(Connection con, Long sessionId, Integer instanceId, Long fromTm, int offset, int limit, AuditOutputHandler handler) throws SQLException, IOException {
+
+        String sql = "select output, log_tm from terminal_log where instance_id=? and session_id=?";
+        if (fromTm != null) {
+            sql = sql + " and log_tm >= ?";
+        }
+        //id breaks ties between entries logged within the timestamp resolution
+        sql = sql + " order by log_tm asc, id asc";
+        if (limit > 0) {
+            sql = sql + " limit ? offset ?";
+        }
+        PreparedStatement stmt = con.prepareStatement(sql);
+        int i = 1;
+        stmt.setLong(i++, instanceId);
+        stmt.setLong(i++, sessionId);
+        if (fromTm != null) {
+            stmt.setTimestamp(i++, new Timestamp(fromTm));
+        }
+        if (limit > 0) {
+            stmt.setInt(i++, limit);
+            stmt.setInt(i, offset);
+        }
+        //MySQL only streams rows instead of loading the whole result when the fetch size is Integer.MIN_VALUE
+        stmt.setFetchSize(DBUtils.isMySQL(con) ? Integer.MIN_VALUE : FETCH_SIZE);
+        log.debug("read:" + stmt.toString());
+        ResultSet rs = null;
+        int rows = 0;
+        try {
+            rs = stmt.executeQuery();
+            while (rs.next()) {
+                handler.output(rs.getTimestamp("log_tm").getTime(), rs.getString("output"));
+                rows++;
+            }
+        } finally {
+            //a streaming MySQL result holds the connection until it is closed
+            DBUtils.closeRs(rs);
+            DBUtils.closeStmt(stmt);
+        }
+        return rows;
+    }
+
+    /**
+     * passes the first and last time of each interval from the start of the output,
+     * grouped in the DB from the (log_tm, id) index so entries are not returned one by one
+     */
+    @Override
+    public void readTimes(Connection con, Long sessionId, Integer instanceId, int interval, AuditTimeHandler handler) throws SQLException {
+
+        PreparedStatement stmt = con.prepareStatement("select min(log_tm) as start_tm from terminal_log where instance_id=? and session_id=?");
+        ResultSet rs = null;
+        Timestamp startTm = null;
+        try {
+            stmt.setLong(1, instanceId);
+            stmt.setLong(2, sessionId);
+            rs = stmt.executeQuery();
+            if (rs.next()) {
+                startTm = rs.getTimestamp("start_tm");
+            }
+        } finally {
+            DBUtils.closeRs(rs);
+            DBUtils.closeStmt(stmt);
+        }
+        if (startTm == null) {
+            return;
+        }
+
+        //intervals are measured from the start in the same units as the caller's milliseconds
+        boolean mysql = DBUtils.isMySQL(con);
+        String bucket = mysql ? "timestampdiff(MICROSECOND, ?, log_tm) div ?" : "datediff('MILLISECOND', ?, log_tm) / ?";
+        stmt = con.prepareStatement("select min(log_tm) as first_tm, max(log_tm) as last_tm from terminal_log where instance_id=? and session_id=?"
+                + " group by " + bucket + " order by first_tm asc");
+        try {
+            stmt.setLong(1, instanceId);
+            stmt.setLong(2, sessionId);
+            stmt.setTimestamp(3, startTm);
+            stmt.setLong(4, Math.max(interval, 1) * (mysql ? 1000000L : 1000L));
+            log.debug("readTimes:" + stmt.toString());
+            rs = stmt.executeQuery();
+            while (rs.next()) {
+                handler.time(rs.getTimestamp("first_tm").getTime());
+                handler.time(rs.getTimestamp("last_tm").getTime());
+            }
+        } finally {
+            DBUtils.closeRs(rs);
+            DBUtils.closeStmt(stmt);
+        }
+    }
+
+    /**
+     * seeks to the position with the (log_tm, id) index instead of skipping rows, the position is log_tm:id of the last entry read
+     */
+    @Override
+    public String readPage(Connection con, Long sessionId, Integer instanceId, String position, int limit, AuditOutputHandler handler) throws SQLException, IOException {
+
+        Long lastTm = null;
+        Long lastId = null;
+        String[] key = StringUtils.split(position, ':');
+        if (key != null && key.length == 2 && StringUtils.isNumeric(key[0]) && StringUtils.isNumeric(key[1])) {
+            lastTm = Long.parseLong(key[0]);
+            lastId = Long.parseLong(key[1]);
+        }
+
+        String sql = "select id, output, log_tm from terminal_log where instance_id=? and session_id=?";
+        if (lastTm != null) {
+            sql = sql + " and (log_tm > ? or (log_tm = ? and id > ?))";
+        }
+        sql = sql + " order by log_tm asc, id asc limit ?";
+        PreparedStatement stmt = con.prepareStatement(sql);
+        ResultSet rs = null;
+        try {
+            int i = 1;
+            stmt.setLong(i++, instanceId);
+            stmt.setLong(i++, sessionId);
+            if (lastTm != null) {
+                stmt.setTimestamp(i++, new Timestamp(lastTm));
+                stmt.setTimestamp(i++, new Timestamp(lastTm));
+                stmt.setLong(i++, lastId);
+            }
+            stmt.setInt(i, limit);
+            log.debug("readPage:" + stmt.toString());
+            rs = stmt.executeQuery();
+            while (rs.next()) {
+                lastTm = rs.getTimestamp("log_tm").getTime();
+                lastId = rs.getLong("id");
+                handler.output(lastTm, rs.getString("output"));
+            }
+        } finally {
+            DBUtils.closeRs(rs);
+            DBUtils.closeStmt(stmt);
+        }
+        return lastTm != null ? lastTm + ":" + lastId : null;
+    }
+
+    @Override
+    public boolean hasHeldOutput() {
+        return false;
+    }
+
+    /**
+     * output is written as it arrives so there is nothing to flush
+     */
+    @Override
+    public void flush(Connection con, boolean all) {
+    }
+
+    /**
+     * output is only written in the caller's transaction so there is nothing to release
+     */
+    @Override
+    public void commit() {
+    }
+
+    @Override
+    public void rollback() {
+    }
+
+    @Override
+    public void close(Long sessionId, Integer instanceId) {
+    }
+
+    @Override
+    public long delete(Connection con, List<Long> sessionIdList, int rowLimit) throws SQLException {
+        return SessionAuditDB.deleteSessionRows(con, "delete from terminal_log where session_id in (" + StringUtils.repeat("?", ",", sessionIdList.size()) + ") limit ?", sessionIdList, rowLimit);
+    }
+
+    /**
+     * sets terminal log insert parameters
+     *
+     * @param stmt          insert statement
+     * @param offset        number of parameters set for previous rows
+     * @param sessionOutput output from session terminal
+     * @throws SQLException if a parameter could not be set
+     */
+    private static void setTerminalLogParams(PreparedStatement stmt, int offset, SessionOutput sessionOutput) throws SQLException {
+        stmt.setLong(offset + 1, sessionOutput.getSessionId());
+        stmt.setLong(offset + 2, sessionOutput.getInstanceId());
+        stmt.setString(offset + 3, sessionOutput.getDisplayNm());
+        stmt.setString(offset + 4, sessionOutput.getUser());
+        stmt.setString(offset + 5, sessionOutput.getHost());
+        stmt.setInt(offset + 6, sessionOutput.getPort());
+        stmt.setString(offset + 7, sessionOutput.getOutput().toString());
+        stmt.setTimestamp(offset + 8, new Timestamp(sessionOutput.getLogTm() != null ? sessionOutput.getLogTm().getTime() : System.currentTimeMillis()));
+    }
+}
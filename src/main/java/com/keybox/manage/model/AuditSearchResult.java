@@ -0,0 +1,88 @@
+/**
+ * Copyright 2013 Sean Kavanagh - sean.p.kavanagh6@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.keybox.manage.model;
+
+import java.util.Date;
+
+/**
+ * Terminal matching a search of recorded terminal output
+ */
+public class AuditSearchResult {
+
+    Long sessionId;
+    Integer instanceId;
+    String username;
+    String firstNm;
+    String lastNm;
+    Date firstMatchTm;
+    Date lastMatchTm;
+
+    public Long getSessionId() {
+        return sessionId;
+    }
+
+    public void setSessionId(Long sessionId) {
+        this.sessionId = sessionId;
+    }
+
+    public Integer getInstanceId() {
+        return instanceId;
+    }
+
+    public void setInstanceId(Integer instanceId) {
+        this.instanceId = instanceId;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public void setUsername(String username) {
+        this.username = username;
+    }
+
+    public String getFirstNm() {
+        return firstNm;
+    }
+
+    public void setFirstNm(String firstNm) {
+        this.firstNm = firstNm;
+    }
+
+    public String getLastNm() {
+        return lastNm;
+    }
+
+    public void setLastNm(String lastNm) {
+        this.lastNm = lastNm;
+    }
+
+    public Date getFirstMatchTm() {
+        return firstMatchTm;
+    }
+
+    public void setFirstMatchTm(Date firstMatchTm) {
+        this.firstMatchTm = firstMatchTm;
+    }
+
+    public Date getLastMatchTm() {
+        return lastMatchTm;
+    }
+
+    public void setLastMatchTm(Date lastMatchTm) {
+        this.lastMatchTm = lastMatchTm;
+    }
+}
@@ -0,0 +1,81 @@
+/**
+ * Copyright 2013 Sean Kavanagh - sean.p.kavanagh6@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.keybox.manage.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Seek index for terminal playback. Keyframes are the log times, in milliseconds,
+ * of the first output in each interval of the recording.
+ */
+public class PlaybackIndex {
+
+    Long sessionId;
+    Integer instanceId;
+    Long startTm;
+    Long endTm;
+    Integer interval;
+    List<Long> keyframes = new ArrayList<>();
+
+    public Long getSessionId() {
+        return sessionId;
+    }
+
+    public void setSessionId(Long sessionId) {
+        this.sessionId = sessionId;
+    }
+
+    public Integer getInstanceId() {
+        return instanceId;
+    }
+
+    public void setInstanceId(Integer instanceId) {
+        this.instanceId = instanceId;
+    }
+
+    public Long getStartTm() {
+        return startTm;
+    }
+
+    public void setStartTm(Long startTm) {
+        this.startTm = startTm;
+    }
+
+    public Long getEndTm() {
+        return endTm;
+    }
+
+    public void setEndTm(Long endTm) {
+        this.endTm = endTm;
+    }
+
+    public Integer getInterval() {
+        return interval;
+    }
+
+    public void setInterval(Integer interval) {
+        this.interval = interval;
+    }
+
+    public List<Long> getKeyframes() {
+        return keyframes;
+    }
+
+    public void setKeyframes(List<Long> keyframes) {
+        this.keyframes = keyframes;
+    }
+}
@@ -0,0 +1,108 @@
+/**
+ * Copyright 2013 Sean Kavanagh - sean.p.kavanagh6@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.keybox.manage.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Page of recorded terminal output for playback. Events are asciicast style
+ * [seconds since start of recording, "o", output] entries.
+ */
+public class PlaybackPage {
+
+    Long sessionId;
+    Integer instanceId;
+    Long startTm;
+    Long fromTm;
+    Integer fromOffset;
+    Long nextFromTm;
+    Integer nextFromOffset;
+    boolean complete;
+    List<Object[]> events = new ArrayList<>();
+
+    public Long getSessionId() {
+        return sessionId;
+    }
+
+    public void setSessionId(Long sessionId) {
+        this.sessionId = sessionId;
+    }
+
+    public Integer getInstanceId() {
+        return instanceId;
+    }
+
+    public void setInstanceId(Integer instanceId) {
+        this.instanceId = instanceId;
+    }
+
+    public Long getStartTm() {
+        return startTm;
+    }
+
+    public void setStartTm(Long startTm) {
+        this.startTm = startTm;
+    }
+
+    public Long getFromTm() {
+        return fromTm;
+    }
+
+    public void setFromTm(Long fromTm) {
+        this.fromTm = fromTm;
+    }
+
+    public Integer getFromOffset() {
+        return fromOffset;
+    }
+
+    public void setFromOffset(Integer fromOffset) {
+        this.fromOffset = fromOffset;
+    }
+
+    public Integer getNextFromOffset() {
+        return nextFromOffset;
+    }
+
+    public void setNextFromOffset(Integer nextFromOffset) {
+        this.nextFromOffset = nextFromOffset;
+    }
+
+    public Long getNextFromTm() {
+        return nextFromTm;
+    }
+
+    public void setNextFromTm(Long nextFromTm) {
+        this.nextFromTm = nextFromTm;
+    }
+
+    public boolean isComplete() {
+        return complete;
+    }
+
+    public void setComplete(boolean complete) {
+        this.complete = complete;
+    }
+
+    public List<Object[]> getEvents() {
+        return events;
+    }
+
+    public void setEvents(List<Object[]> events) {
+        this.events = events;
+    }
+}
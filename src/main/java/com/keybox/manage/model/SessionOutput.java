@@ -15,6 +15,7 @@
  */
 package com.keybox.manage.model;
 
+import java.util.Date;
 
 /**
  * Output from ssh session
@@ -22,6 +23,14 @@ package com.keybox.manage.model;
 public class SessionOutput extends HostSystem {
     Long sessionId;
     StringBuilder output = new StringBuilder();
+    //pending output for a live terminal, not serialized
+    transient TermOutputBuffer outputBuffer;
+    //time output was read from the terminal, not serialized
+    transient Date logTm;
+    //keys sent to the terminal queued for the audit log in order with its output, not serialized
+    transient String input;
+    //entries for the terminal were dropped from the audit queue before this one, not serialized
+    transient boolean auditGap = false;
 
     public SessionOutput() {
 
@@ -54,4 +63,36 @@ public class SessionOutput extends HostSystem {
         this.output = output;
     }
 
+    public Date getLogTm() {
+        return logTm;
+    }
+
+    public void setLogTm(Date logTm) {
+        this.logTm = logTm;
+    }
+
+    public String getInput() {
+        return input;
+    }
+
+    public void setInput(String input) {
+        this.input = input;
+    }
+
+    public boolean isAuditGap() {
+        return auditGap;
+    }
+
+    public void setAuditGap(boolean auditGap) {
+        this.auditGap = auditGap;
+    }
+
+    public TermOutputBuffer getOutputBuffer() {
+        return outputBuffer;
+    }
+
+    public void setOutputBuffer(TermOutputBuffer outputBuffer) {
+        this.outputBuffer = outputBuffer;
+    }
+
 }
\ No newline at end of file
@@ -26,6 +26,12 @@ public class SortedSet {
     private String orderByDirection = "asc";
     private List itemList;
     private HashMap<String, String> filterMap = new HashMap<>();
+    private Integer pageSize = null;
+    private String cursor = null;
+    private boolean previousPage = false;
+    private String nextCursor = null;
+    private String previousCursor = null;
+    private Long totalCount = null;
 
     public SortedSet() {
         
@@ -78,4 +84,52 @@ public class SortedSet {
     public void setFilterMap(HashMap<String, String> filterMap) {
         this.filterMap = filterMap;
     }
+
+    public Integer getPageSize() {
+        return pageSize;
+    }
+
+    public void setPageSize(Integer pageSize) {
+        this.pageSize = pageSize;
+    }
+
+    public String getCursor() {
+        return cursor;
+    }
+
+    public void setCursor(String cursor) {
+        this.cursor = cursor;
+    }
+
+    public boolean isPreviousPage() {
+        return previousPage;
+    }
+
+    public void setPreviousPage(boolean previousPage) {
+        this.previousPage = previousPage;
+    }
+
+    public String getNextCursor() {
+        return nextCursor;
+    }
+
+    public void setNextCursor(String nextCursor) {
+        this.nextCursor = nextCursor;
+    }
+
+    public String getPreviousCursor() {
+        return previousCursor;
+    }
+
+    public void setPreviousCursor(String previousCursor) {
+        this.previousCursor = previousCursor;
+    }
+
+    public Long getTotalCount() {
+        return totalCount;
+    }
+
+    public void setTotalCount(Long totalCount) {
+        this.totalCount = totalCount;
+    }
 }
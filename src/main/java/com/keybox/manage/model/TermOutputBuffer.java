@@ -0,0 +1,197 @@
+/**
+ * Copyright 2013 Sean Kavanagh - sean.p.kavanagh6@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.keybox.manage.model;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+
+/**
+ * Fixed capacity ring buffer holding terminal output until it is sent to the client.
+ * When the buffer is full the oldest output is discarded and counted. Output drained
+ * from the buffer is tracked as in flight until it is released after being sent so
+ * the terminal reader can be paused while the client catches up.
+ */
+public class TermOutputBuffer {
+
+    private static final int INITIAL_SIZE = 4096;
+
+    private final int capacity;
+    private final boolean offHeap;
+    private CharBuffer buffer;
+    private int head = 0;
+    private int size = 0;
+    private long droppedCount = 0;
+    private int inFlight = 0;
+
+    /**
+     * @param capacity max number of characters held
+     * @param offHeap  true to hold output in a direct buffer outside of the java heap
+     */
+    public TermOutputBuffer(int capacity, boolean offHeap) {
+        this.capacity = capacity;
+        this.offHeap = offHeap;
+        if (offHeap) {
+            //direct buffers are allocated once at full capacity
+            this.buffer = ByteBuffer.allocateDirect(capacity * 2).asCharBuffer();
+        } else {
+            //heap buffers grow up to capacity so idle terminals stay small
+            this.buffer = CharBuffer.allocate(Math.min(INITIAL_SIZE, capacity));
+        }
+    }
+
+    /**
+     * appends output to the buffer, discarding the oldest output if capacity is exceeded
+     *
+     * @param value  Array that is the source of characters
+     * @param offset The initial offset
+     * @param count  The length
+     */
+    public synchronized void write(char[] value, int offset, int count) {
+
+        if (count >= capacity) {
+            //only the newest output fits
+            droppedCount = droppedCount + size + (count - capacity);
+            offset = offset + (count - capacity);
+            count = capacity;
+            head = 0;
+            size = 0;
+        } else if (size + count > capacity) {
+            int drop = size + count - capacity;
+            head = (head + drop) % buffer.capacity();
+            size = size - drop;
+            droppedCount = droppedCount + drop;
+        }
+
+        if (size + count > buffer.capacity()) {
+            grow(size + count);
+        }
+
+        int tail = (head + size) % buffer.capacity();
+        int first = Math.min(count, buffer.capacity() - tail);
+        CharBuffer dup = buffer.duplicate();
+        dup.position(tail);
+        dup.put(value, offset, first);
+        if (first < count) {
+            dup.position(0);
+            dup.put(value, offset + first, count - first);
+        }
+        size = size + count;
+    }
+
+    /**
+     * moves all buffered output to the given builder and empties the buffer
+     *
+     * @param output builder to append output to
+     * @return number of characters drained
+     */
+    public synchronized int drain(StringBuilder output) {
+        int drained = size;
+        if (size > 0) {
+            char[] chars = new char[size];
+            int first = Math.min(size, buffer.capacity() - head);
+            CharBuffer dup = buffer.duplicate();
+            dup.position(head);
+            dup.get(chars, 0, first);
+            if (first < size) {
+                dup.position(0);
+                dup.get(chars, first, size - first);
+            }
+            output.append(chars);
+        }
+        head = 0;
+        size = 0;
+        inFlight = inFlight + drained;
+        return drained;
+    }
+
+    /**
+     * releases drained output once it has been sent and wakes a paused reader
+     *
+     * @param count number of characters sent
+     */
+    public synchronized void release(int count) {
+        inFlight = Math.max(0, inFlight - count);
+        notifyAll();
+    }
+
+    /**
+     * blocks while buffered and in flight output exceeds the pause threshold
+     * until it falls to the resume threshold
+     *
+     * @param pauseThreshold  pending characters at which to pause
+     * @param resumeThreshold pending characters at which to resume
+     * @param timeout         max time to wait in milliseconds
+     * @return true if output is below the resume threshold
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public synchronized boolean awaitCapacity(int pauseThreshold, int resumeThreshold, long timeout) throws InterruptedException {
+        if (size + inFlight < pauseThreshold) {
+            return true;
+        }
+        long deadline = System.currentTimeMillis() + timeout;
+        long remaining = timeout;
+        while (size + inFlight > resumeThreshold && remaining > 0) {
+            wait(remaining);
+            remaining = deadline - System.currentTimeMillis();
+        }
+        return size + inFlight <= resumeThreshold;
+    }
+
+    /**
+     * grows heap buffer to hold at least the required number of characters
+     *
+     * @param required required size
+     */
+    private void grow(int required) {
+        int newSize = buffer.capacity();
+        while (newSize < required) {
+            newSize = newSize * 2;
+        }
+        CharBuffer grown = CharBuffer.allocate(Math.min(newSize, capacity));
+        int first = Math.min(size, buffer.capacity() - head);
+        CharBuffer dup = buffer.duplicate();
+        dup.position(head);
+        dup.limit(head + first);
+        grown.put(dup);
+        if (first < size) {
+            dup.clear();
+            dup.limit(size - first);
+            grown.put(dup);
+        }
+        buffer = grown;
+        head = 0;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized int getPending() {
+        return size + inFlight;
+    }
+
+    public synchronized long getDroppedCount() {
+        return droppedCount;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public boolean isOffHeap() {
+        return offHeap;
+    }
+}
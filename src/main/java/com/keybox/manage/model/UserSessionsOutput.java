@@ -23,6 +23,10 @@ public class UserSessionsOutput {
     //instance id, host output
     Map<Integer, SessionOutput> sessionOutputMap = new ConcurrentHashMap<>();
 
+    //signals the web socket output task that new output is available
+    private final Object outputLock = new Object();
+    private boolean outputPending = false;
+
 
     public Map<Integer, SessionOutput> getSessionOutputMap() {
         return sessionOutputMap;
@@ -31,6 +35,34 @@ public class UserSessionsOutput {
     public void setSessionOutputMap(Map<Integer, SessionOutput> sessionOutputMap) {
         this.sessionOutputMap = sessionOutputMap;
     }
+
+    /**
+     * notifies any waiting output task that output has been added
+     */
+    public void signalOutput() {
+        synchronized (outputLock) {
+            outputPending = true;
+            outputLock.notifyAll();
+        }
+    }
+
+    /**
+     * waits until output has been signaled or the timeout has elapsed and clears the signal
+     *
+     * @param timeout max time to wait in milliseconds
+     * @return true if output was signaled
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean awaitOutput(long timeout) throws InterruptedException {
+        synchronized (outputLock) {
+            if (!outputPending) {
+                outputLock.wait(timeout);
+            }
+            boolean pending = outputPending;
+            outputPending = false;
+            return pending;
+        }
+    }
 }
 
 
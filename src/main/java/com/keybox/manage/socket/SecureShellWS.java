@@ -19,11 +19,16 @@ import com.google.gson.Gson;
 import com.keybox.common.util.AppConfig;
 import com.keybox.common.util.AuthUtil;
 import com.keybox.manage.action.SecureShellAction;
+import com.keybox.manage.db.SessionAuditDB;
 import com.keybox.manage.db.UserDB;
 import com.keybox.manage.model.SchSession;
 import com.keybox.manage.model.UserSchSessions;
 import com.keybox.manage.task.SentOutputTask;
+import com.keybox.manage.util.SSHSessionUtil;
 import com.keybox.manage.util.SessionOutputUtil;
+import com.keybox.manage.util.TerminalCommandUtil;
+import com.keybox.manage.util.TerminalConnectUtil;
+import com.keybox.manage.util.TerminalReaderUtil;
 import org.apache.commons.lang3.StringUtils;
 
 import javax.servlet.http.HttpSession;
@@ -32,6 +37,7 @@ import javax.websocket.server.ServerEndpoint;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -66,7 +72,14 @@ public class SecureShellWS {
         this.sessionId = AuthUtil.getSessionId(httpSession);
         this.session = session;
 
-        Runnable run=new SentOutputTask(sessionId, session, UserDB.getUser(AuthUtil.getUserId(httpSession)));
+        //output protocol requested by the client, json session output list is used if not set
+        String protocol = null;
+        List<String> protocolParam = session.getRequestParameterMap().get("protocol");
+        if (protocolParam != null && !protocolParam.isEmpty()) {
+            protocol = protocolParam.get(0);
+        }
+
+        Runnable run=new SentOutputTask(sessionId, session, UserDB.getUser(AuthUtil.getUserId(httpSession)), protocol);
         Thread thread = new Thread(run);
         thread.start();
 
@@ -105,6 +118,7 @@ public class SecureShellWS {
                     } else {
                         schSession.getCommander().print(command);
                     }
+                    TerminalCommandUtil.input(sessionId, id, command, keyCode);
                 }
 
             }
@@ -129,9 +143,9 @@ public class SecureShellWS {
 
                     SchSession schSession = schSessionMap.get(sessionKey);
 
-                    //disconnect ssh session
+                    //close terminal and release its ssh session
                     schSession.getChannel().disconnect();
-                    schSession.getSession().disconnect();
+                    SSHSessionUtil.release(schSession.getSession());
                     schSession.setChannel(null);
                     schSession.setSession(null);
                     schSession.setInputToChannel(null);
@@ -140,12 +154,16 @@ public class SecureShellWS {
                     schSession = null;
                     //remove from map
                     schSessionMap.remove(sessionKey);
+                    //write output the audit store holds for the terminal
+                    SessionAuditDB.closeTerminalLogs(sessionId, sessionKey);
                 }
 
 
                 //clear and remove session map for user
                 schSessionMap.clear();
                 SecureShellAction.getUserSchSessionMap().remove(sessionId);
+                TerminalReaderUtil.stopReaders(sessionId);
+                TerminalConnectUtil.removeConnectStatus(sessionId);
                 SessionOutputUtil.removeUserSession(sessionId);
             }
         }
@@ -16,11 +16,15 @@
 package com.keybox.manage.task;
 
 import com.keybox.manage.util.SessionOutputUtil;
+import com.keybox.manage.util.TerminalReaderUtil;
 import com.keybox.manage.model.SessionOutput;
 
-import java.io.BufferedReader;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -32,6 +36,11 @@ public class SecureShellTask implements Runnable {
 
     private static Logger log = LoggerFactory.getLogger(SecureShellTask.class);
 
+    //read buffer grows when reads fill it and shrinks back when output slows down
+    private static final int MIN_BUFFER_SIZE = 1024;
+    private static final int MAX_BUFFER_SIZE = 32768;
+    private static final int SHRINK_AFTER_READS = 16;
+
     InputStream outFromChannel;
     SessionOutput sessionOutput;
 
@@ -42,25 +51,97 @@ public class SecureShellTask implements Runnable {
     }
 
     public void run() {
-        InputStreamReader isr = new InputStreamReader(outFromChannel);
-        BufferedReader br = new BufferedReader(isr);
+        //single decoder for the life of the terminal so multi-byte sequences split across reads are kept
+        CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        ByteBuffer byteBuffer = ByteBuffer.allocate(MIN_BUFFER_SIZE);
+        CharBuffer charBuffer = CharBuffer.allocate(MIN_BUFFER_SIZE);
         try {
 
             SessionOutputUtil.addOutput(sessionOutput);
 
-            char[] buff = new char[1024];
+            int smallReads = 0;
             int read;
-            while((read = br.read(buff)) != -1) {
+            while ((read = outFromChannel.read(byteBuffer.array(), byteBuffer.position(), byteBuffer.remaining())) != -1) {
+
+                boolean filled = read == byteBuffer.remaining();
+                byteBuffer.position(byteBuffer.position() + read);
+                decode(decoder, byteBuffer, charBuffer, false);
+
+                //stop reading while the client is behind so the ssh window fills and holds back the remote side
+                SessionOutputUtil.awaitOutputCapacity(sessionOutput.getSessionId(), sessionOutput.getInstanceId());
 
-                SessionOutputUtil.addToOutput(sessionOutput.getSessionId(), sessionOutput.getInstanceId(), buff,0,read);
-                Thread.sleep(50);
+                //adapt buffer size to the rate output is arriving
+                int capacity = byteBuffer.capacity();
+                if (filled && capacity < MAX_BUFFER_SIZE) {
+                    byteBuffer = resize(byteBuffer, capacity * 2);
+                    charBuffer = CharBuffer.allocate(capacity * 2);
+                    smallReads = 0;
+                } else if (read < capacity / 4 && capacity > MIN_BUFFER_SIZE) {
+                    if (++smallReads >= SHRINK_AFTER_READS) {
+                        byteBuffer = resize(byteBuffer, capacity / 2);
+                        charBuffer = CharBuffer.allocate(capacity / 2);
+                        smallReads = 0;
+                    }
+                } else {
+                    smallReads = 0;
+                }
             }
+            //flush any incomplete sequence left at end of stream
+            decode(decoder, byteBuffer, charBuffer, true);
+            decoder.flush(charBuffer);
+            writeOutput(charBuffer);
 
             SessionOutputUtil.removeOutput(sessionOutput.getSessionId(), sessionOutput.getInstanceId());
 
         } catch (Exception ex) {
             log.error(ex.toString(), ex);
+        } finally {
+            TerminalReaderUtil.removeReader(sessionOutput.getSessionId(), sessionOutput.getInstanceId());
+        }
+    }
+
+    /**
+     * decodes bytes read so far and adds the characters to the session output, leaving
+     * any partial multi-byte sequence in the byte buffer for the next read
+     *
+     * @param decoder     UTF-8 decoder
+     * @param byteBuffer  buffer in write mode containing bytes read
+     * @param charBuffer  buffer to decode into, at least as large as the byte buffer
+     * @param endOfInput  true if no more bytes will be read
+     */
+    private void decode(CharsetDecoder decoder, ByteBuffer byteBuffer, CharBuffer charBuffer, boolean endOfInput) {
+        byteBuffer.flip();
+        decoder.decode(byteBuffer, charBuffer, endOfInput);
+        byteBuffer.compact();
+        writeOutput(charBuffer);
+    }
+
+    /**
+     * adds decoded characters to the session output and clears the buffer
+     *
+     * @param charBuffer buffer in write mode containing decoded characters
+     */
+    private void writeOutput(CharBuffer charBuffer) {
+        if (charBuffer.position() > 0) {
+            SessionOutputUtil.addToOutput(sessionOutput.getSessionId(), sessionOutput.getInstanceId(), charBuffer.array(), 0, charBuffer.position());
         }
+        charBuffer.clear();
+    }
+
+    /**
+     * returns a new buffer of the given size containing the bytes not yet decoded
+     *
+     * @param byteBuffer buffer in write mode
+     * @param size       new buffer size
+     * @return resized buffer in write mode
+     */
+    private static ByteBuffer resize(ByteBuffer byteBuffer, int size) {
+        ByteBuffer resized = ByteBuffer.allocate(size);
+        byteBuffer.flip();
+        resized.put(byteBuffer);
+        return resized;
     }
 
 }
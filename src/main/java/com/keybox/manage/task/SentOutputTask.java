@@ -18,30 +18,43 @@ package com.keybox.manage.task;
 import com.google.gson.Gson;
 import com.keybox.manage.model.SessionOutput;
 import com.keybox.manage.model.User;
-import com.keybox.manage.util.DBUtils;
 import com.keybox.manage.util.SessionOutputUtil;
 
 import javax.websocket.Session;
-import java.sql.Connection;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.List;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * class to send output to web socket client
+ * class to send output to web socket client when output is signaled by the terminal tasks
  */
 public class SentOutputTask implements Runnable {
 
     private static Logger log = LoggerFactory.getLogger(SentOutputTask.class);
 
+    //max time to wait for output before checking if the web socket is still open
+    private static final long MAX_WAIT = 1000;
+
+    //client requested framed binary output instead of the json session output list
+    public static final String BINARY_PROTOCOL = "binary";
+
     Session session;
     Long sessionId;
     User user;
+    boolean binaryProtocol;
 
     public SentOutputTask(Long sessionId, Session session, User user) {
+        this(sessionId, session, user, null);
+    }
+
+    public SentOutputTask(Long sessionId, Session session, User user, String protocol) {
         this.sessionId = sessionId;
         this.session = session;
         this.user = user;
+        this.binaryProtocol = BINARY_PROTOCOL.equals(protocol);
     }
 
     public void run() {
@@ -49,21 +62,57 @@ public class SentOutputTask implements Runnable {
         Gson gson = new Gson();
 
         while (session.isOpen()) {
-            Connection con = DBUtils.getConn();
-            List<SessionOutput> outputList = SessionOutputUtil.getOutput(con, sessionId, user);
             try {
-                if (outputList != null && !outputList.isEmpty()) {
-                    String json = gson.toJson(outputList);
-                    //send json to session
-                    this.session.getBasicRemote().sendText(json);
+                //block until output is available so idle sessions do not keep a thread busy
+                if (SessionOutputUtil.waitForOutput(sessionId, MAX_WAIT) && session.isOpen()) {
+                    List<SessionOutput> outputList = SessionOutputUtil.getOutput(sessionId, user);
+                    if (outputList != null && !outputList.isEmpty()) {
+                        try {
+                            if (binaryProtocol) {
+                                //send instance id and output only
+                                this.session.getBasicRemote().sendBinary(encodeFrame(outputList));
+                            } else {
+                                String json = gson.toJson(outputList);
+                                //send json to session
+                                this.session.getBasicRemote().sendText(json);
+                            }
+                        } finally {
+                            //blocking send has completed, let paused terminal readers resume
+                            SessionOutputUtil.releaseOutput(sessionId, outputList);
+                        }
+                    }
                 }
-                Thread.sleep(25);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                break;
             } catch (Exception ex) {
                 log.error(ex.toString(), ex);
             }
-            finally {
-                DBUtils.closeConn(con);
-            }
         }
     }
+
+    /**
+     * encodes output as a binary frame of records containing a 4 byte instance id,
+     * 4 byte output length and the UTF-8 encoded output
+     *
+     * @param outputList session output list
+     * @return binary frame
+     */
+    static ByteBuffer encodeFrame(List<SessionOutput> outputList) {
+        List<byte[]> encodedList = new ArrayList<>(outputList.size());
+        int size = 0;
+        for (SessionOutput sessionOutput : outputList) {
+            byte[] encoded = sessionOutput.getOutput().toString().getBytes(StandardCharsets.UTF_8);
+            encodedList.add(encoded);
+            size = size + 8 + encoded.length;
+        }
+        ByteBuffer frame = ByteBuffer.allocate(size);
+        for (int i = 0; i < outputList.size(); i++) {
+            frame.putInt(outputList.get(i).getInstanceId());
+            frame.putInt(encodedList.get(i).length);
+            frame.put(encodedList.get(i));
+        }
+        frame.flip();
+        return frame;
+    }
 }
@@ -0,0 +1,141 @@
+/**
+ * Copyright 2013 Sean Kavanagh - sean.p.kavanagh6@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.keybox.manage.task;
+
+import com.keybox.manage.db.SessionAuditDB;
+import com.keybox.manage.model.SessionOutput;
+import com.keybox.manage.util.DBUtils;
+import com.keybox.manage.util.TerminalAuditUtil;
+import com.keybox.manage.util.TerminalCommandUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Task to write queued terminal output to the audit log in batches
+ */
+public class TerminalAuditTask implements Runnable {
+
+    private static Logger log = LoggerFactory.getLogger(TerminalAuditTask.class);
+
+    //times a batch is written before it is dropped
+    private static final int WRITE_ATTEMPTS = 3;
+    private static final long RETRY_WAIT = 1000;
+
+    BlockingQueue<SessionOutput> queue;
+    int batchSize;
+    long flushInterval;
+
+    public TerminalAuditTask(BlockingQueue<SessionOutput> queue, int batchSize, long flushInterval) {
+        this.queue = queue;
+        this.batchSize = batchSize;
+        this.flushInterval = flushInterval;
+    }
+
+    public void run() {
+
+        List<SessionOutput> batch = new ArrayList<>(batchSize);
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                SessionOutput first = queue.poll(1, TimeUnit.SECONDS);
+                if (first == null) {
+                    //write output the audit store held back once it is due
+                    SessionAuditDB.flushTerminalLogs(false);
+                    continue;
+                }
+                batch.add(first);
+
+                //fill batch until it is full or the oldest chunk has waited the flush interval
+                long deadline = System.currentTimeMillis() + flushInterval;
+                while (batch.size() < batchSize) {
+                    queue.drainTo(batch, batchSize - batch.size());
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (batch.size() >= batchSize || remaining <= 0) {
+                        break;
+                    }
+                    SessionOutput next = queue.poll(remaining, TimeUnit.MILLISECONDS);
+                    if (next != null) {
+                        batch.add(next);
+                    }
+                }
+                write(batch);
+
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            } catch (Exception ex) {
+                log.error(ex.toString(), ex);
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * writes everything remaining in the queue
+     */
+    public void flush() {
+        List<SessionOutput> batch = new ArrayList<>(batchSize);
+        while (queue.drainTo(batch, batchSize) > 0) {
+            write(batch);
+            batch.clear();
+        }
+        SessionAuditDB.flushTerminalLogs(true);
+    }
+
+    /**
+     * writes batch to the audit log, retrying a batch that could not be written before it is dropped
+     *
+     * @param batch terminal output
+     */
+    private void write(List<SessionOutput> batch) {
+        long start = System.currentTimeMillis();
+        boolean written = false;
+        for (int attempt = 1; !written && attempt <= WRITE_ATTEMPTS; attempt++) {
+            Connection con = null;
+            try {
+                con = DBUtils.getConn();
+                SessionAuditDB.insertTerminalLogs(con, batch);
+                written = true;
+            } catch (Exception ex) {
+                log.error("Unable to write " + batch.size() + " terminal output chunks to audit log (attempt " + attempt + " of " + WRITE_ATTEMPTS + "): " + ex.toString(), ex);
+            } finally {
+                DBUtils.closeConn(con);
+            }
+            if (!written && attempt < WRITE_ATTEMPTS) {
+                try {
+                    Thread.sleep(RETRY_WAIT * attempt);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        if (written) {
+            //write output the audit store held back once it is due
+            SessionAuditDB.flushTerminalLogs(false);
+        } else if (TerminalCommandUtil.COMMAND_INDEX_ENABLED) {
+            //keys in the dropped batch no longer match the output that follows
+            TerminalCommandUtil.reset(batch);
+        }
+        TerminalAuditUtil.recordBatch(written ? batch.size() : 0, written ? 0 : batch.size(), System.currentTimeMillis() - start);
+    }
+
+}
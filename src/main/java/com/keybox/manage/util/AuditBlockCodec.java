@@ -0,0 +1,137 @@
+/**
+ * Copyright 2013 Sean Kavanagh - sean.p.kavanagh6@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.keybox.manage.util;
+
+import com.keybox.common.util.AppConfig;
+import com.keybox.manage.db.AuditOutputHandler;
+import com.keybox.manage.model.SessionOutput;
+import org.apache.commons.lang3.StringUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Encodes terminal output entries as a deflate compressed block. A block is the
+ * uncompressed length and entry count followed by the compressed entries, each
+ * entry being the log time, the UTF-8 length and the UTF-8 output.
+ */
+public class AuditBlockCodec {
+
+    public static final int COMPRESSION_LEVEL = StringUtils.isNumeric(AppConfig.getProperty("auditCompressionLevel")) ? Integer.parseInt(AppConfig.getProperty("auditCompressionLevel")) : Deflater.DEFAULT_COMPRESSION;
+
+    //length of the uncompressed length and entry count
+    private static final int HEADER_LENGTH = 8;
+
+    private AuditBlockCodec() {
+    }
+
+    /**
+     * encodes output entries as a compressed block
+     *
+     * @param sessionOutputList output from a session terminal in log order
+     * @return compressed block
+     * @throws IOException if the block could not be written
+     */
+    public static byte[] encode(List<SessionOutput> sessionOutputList) throws IOException {
+
+        ByteArrayOutputStream raw = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(raw);
+        for (SessionOutput sessionOutput : sessionOutputList) {
+            byte[] output = sessionOutput.getOutput().toString().getBytes(StandardCharsets.UTF_8);
+            out.writeLong(sessionOutput.getLogTm() != null ? sessionOutput.getLogTm().getTime() : System.currentTimeMillis());
+            out.writeInt(output.length);
+            out.write(output);
+        }
+        out.flush();
+
+        Deflater deflater = new Deflater(COMPRESSION_LEVEL);
+        ByteArrayOutputStream block = new ByteArrayOutputStream(raw.size() / 4 + HEADER_LENGTH);
+        try {
+            deflater.setInput(raw.toByteArray());
+            deflater.finish();
+            DataOutputStream blockOut = new DataOutputStream(block);
+            blockOut.writeInt(raw.size());
+            blockOut.writeInt(sessionOutputList.size());
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                int length = deflater.deflate(buffer);
+                blockOut.write(buffer, 0, length);
+            }
+            blockOut.flush();
+        } finally {
+            deflater.end();
+        }
+        return block.toByteArray();
+    }
+
+    /**
+     * returns the number of entries in a block without decompressing it
+     *
+     * @param block compressed block
+     * @return entry count
+     */
+    public static int getEntryCount(byte[] block) {
+        return ByteBuffer.wrap(block).getInt(4);
+    }
+
+    /**
+     * decompresses a block passing each entry to the handler
+     *
+     * @param block   compressed block
+     * @param handler handler receiving the output
+     * @return number of entries
+     * @throws IOException if the block is not valid
+     */
+    public static int decode(byte[] block, AuditOutputHandler handler) throws IOException {
+
+        ByteBuffer header = ByteBuffer.wrap(block, 0, HEADER_LENGTH);
+        byte[] raw = new byte[header.getInt()];
+        int count = header.getInt();
+
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(block, HEADER_LENGTH, block.length - HEADER_LENGTH);
+            int length = 0;
+            while (length < raw.length && !inflater.finished()) {
+                int inflated = inflater.inflate(raw, length, raw.length - length);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Truncated audit block");
+                }
+                length = length + inflated;
+            }
+        } catch (DataFormatException ex) {
+            throw new IOException(ex);
+        } finally {
+            inflater.end();
+        }
+
+        ByteBuffer entries = ByteBuffer.wrap(raw);
+        for (int i = 0; i < count; i++) {
+            long logTm = entries.getLong();
+            int length = entries.getInt();
+            handler.output(logTm, new String(raw, entries.position(), length, StandardCharsets.UTF_8));
+            entries.position(entries.position() + length);
+        }
+        return count;
+    }
+}
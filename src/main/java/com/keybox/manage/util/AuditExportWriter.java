@@ -0,0 +1,137 @@
+/**
+ * Copyright 2013 Sean Kavanagh - sean.p.kavanagh6@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.keybox.manage.util;
+
+import com.google.gson.stream.JsonWriter;
+import com.keybox.manage.db.AuditOutputHandler;
+import com.keybox.manage.model.SessionOutput;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes recorded terminal output to a stream as it is read from the audit store, one line
+ * per entry, so exports of any size are written without holding the output in memory.
+ * NDJSON lines carry the session and terminal of each entry, asciicast v2 writes a header
+ * followed by output events relative to the start of the recording.
+ */
+public class AuditExportWriter implements AuditOutputHandler {
+
+    public static final String FORMAT_NDJSON = "ndjson";
+    public static final String FORMAT_ASCIICAST = "asciicast";
+
+    //terminal size is not recorded, use the term.js default
+    private static final int ASCIICAST_WIDTH = 80;
+    private static final int ASCIICAST_HEIGHT = 24;
+
+    private final boolean asciicast;
+    private final Writer writer;
+    private final JsonWriter json;
+
+    private SessionOutput terminal;
+    private String username;
+    private long startTm;
+    private long count = 0;
+
+    /**
+     * @param format export format, ndjson or asciicast
+     * @param out    stream to write to
+     */
+    public AuditExportWriter(String format, OutputStream out) {
+        this.asciicast = FORMAT_ASCIICAST.equals(format);
+        this.writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        this.json = new JsonWriter(writer);
+        //each line is a separate top level value
+        json.setLenient(true);
+    }
+
+    /**
+     * returns true if format is a supported export format
+     *
+     * @param format export format
+     * @return true if supported
+     */
+    public static boolean isFormat(String format) {
+        return FORMAT_NDJSON.equals(format) || FORMAT_ASCIICAST.equals(format);
+    }
+
+    /**
+     * starts output for a terminal, entries passed to the handler belong to this terminal until the next call
+     *
+     * @param terminal session and host of the terminal
+     * @param username user of the session
+     * @param startTm  time the terminal output starts in milliseconds
+     * @throws IOException if the header could not be written
+     */
+    public void startTerminal(SessionOutput terminal, String username, long startTm) throws IOException {
+        this.terminal = terminal;
+        this.username = username;
+        this.startTm = startTm;
+
+        if (asciicast) {
+            json.beginObject();
+            json.name("version").value(2);
+            json.name("width").value(ASCIICAST_WIDTH);
+            json.name("height").value(ASCIICAST_HEIGHT);
+            json.name("timestamp").value(startTm / 1000);
+            json.name("title").value(username + " - " + terminal.getDisplayLabel());
+            json.endObject();
+            writer.write('\n');
+        }
+    }
+
+    @Override
+    public void output(long logTm, String output) throws IOException {
+        if (asciicast) {
+            json.beginArray();
+            json.value((logTm - startTm) / 1000.0);
+            json.value("o");
+            json.value(output);
+            json.endArray();
+        } else {
+            json.beginObject();
+            json.name("session_id").value(terminal.getSessionId());
+            json.name("instance_id").value(terminal.getInstanceId());
+            json.name("username").value(username);
+            json.name("display_nm").value(terminal.getDisplayNm());
+            json.name("user").value(terminal.getUser());
+            json.name("host").value(terminal.getHost());
+            json.name("port").value(terminal.getPort());
+            json.name("log_tm").value(logTm);
+            json.name("output").value(output);
+            json.endObject();
+        }
+        writer.write('\n');
+        count++;
+    }
+
+    /**
+     * writes any buffered output to the stream
+     *
+     * @throws IOException if the output could not be written
+     */
+    public void flush() throws IOException {
+        writer.flush();
+    }
+
+    public long getCount() {
+        return count;
+    }
+}
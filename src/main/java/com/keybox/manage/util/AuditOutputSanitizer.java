@@ -0,0 +1,170 @@
+/**
+ * Copyright 2013 Sean Kavanagh - sean.p.kavanagh6@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.keybox.manage.util;
+
+/**
+ * Single pass cleanup of recorded terminal output for the audit viewer. Removes bell,
+ * erase line, window title and color sequences and applies backspaces as output is
+ * appended, carrying incomplete sequences over to the next chunk.
+ */
+public class AuditOutputSanitizer {
+
+    private static final char BEL = '\u0007';
+    private static final char ESC = '\u001B';
+    private static final char BS = '\b';
+    private static final char LINE_SEPARATOR = (char) 0x2028;
+    private static final char PARAGRAPH_SEPARATOR = (char) 0x2029;
+
+    //longest sequence removed is [dd;ddm
+    private static final int MAX_SEQUENCE_LENGTH = 7;
+
+    private final StringBuilder output;
+    private String carry = "";
+
+    public AuditOutputSanitizer() {
+        this(new StringBuilder());
+    }
+
+    public AuditOutputSanitizer(StringBuilder output) {
+        this.output = output;
+    }
+
+    /**
+     * continues sanitizing from the state left by a previous page
+     *
+     * @param line  partial line held back from the previous page
+     * @param carry unprocessed output carried over from the previous page
+     */
+    public AuditOutputSanitizer(String line, String carry) {
+        this(new StringBuilder(line != null ? line : ""));
+        this.carry = carry != null ? carry : "";
+    }
+
+    /**
+     * appends chunk of recorded output
+     *
+     * @param chunk recorded terminal output
+     */
+    public void append(String chunk) {
+        if (chunk != null && !chunk.isEmpty()) {
+            process(carry.isEmpty() ? chunk : carry + chunk, false);
+        }
+    }
+
+    /**
+     * processes any output carried over from the last chunk
+     *
+     * @return sanitized output
+     */
+    public StringBuilder finish() {
+        process(carry, true);
+        return output;
+    }
+
+    /**
+     * returns output sanitized so far and empties the builder, keeping carried over output
+     *
+     * @return sanitized output
+     */
+    public String drain() {
+        String drained = output.toString();
+        output.setLength(0);
+        return drained;
+    }
+
+    /**
+     * returns complete lines sanitized so far and empties them from the builder, the last
+     * partial line is kept so backspaces in later output can still be applied to it
+     *
+     * @param maxLine partial line length past which it is returned as well
+     * @return sanitized lines
+     */
+    public String drainLines(int maxLine) {
+        //lines end with \r\n so a page is not split between the two
+        int end = output.lastIndexOf("\n") + 1;
+        if (output.length() - end > maxLine) {
+            end = output.charAt(output.length() - 1) == '\r' ? output.length() - 1 : output.length();
+        }
+        String drained = output.substring(0, end);
+        output.delete(0, end);
+        return drained;
+    }
+
+    /**
+     * returns output carried over to the next chunk because a sequence may continue in it
+     *
+     * @return unprocessed output
+     */
+    public String getCarry() {
+        return carry;
+    }
+
+    public StringBuilder getOutput() {
+        return output;
+    }
+
+    private void process(String value, boolean endOfInput) {
+        carry = "";
+        int length = value.length();
+        int i = 0;
+        while (i < length) {
+            char c = value.charAt(i);
+            int remaining = length - i;
+
+            if (c == BEL) {
+                i++;
+            } else if (c == BS) {
+                deleteLast();
+                i++;
+            } else if ((c == ESC || c == '[' || c == ']') && remaining < MAX_SEQUENCE_LENGTH && !endOfInput) {
+                //sequence may continue in the next chunk
+                carry = value.substring(i);
+                return;
+            } else if (c == ESC && remaining >= 3 && value.charAt(i + 1) == '[' && value.charAt(i + 2) == 'K') {
+                i = i + 3;
+            } else if (c == ']' && remaining >= 3 && value.charAt(i + 1) == '0' && value.charAt(i + 2) == ';') {
+                i = i + 3;
+            } else if (c == '[' && remaining >= 7 && isDigit(value, i + 1) && isDigit(value, i + 2) && value.charAt(i + 3) == ';'
+                    && isDigit(value, i + 4) && isDigit(value, i + 5) && value.charAt(i + 6) == 'm') {
+                i = i + 7;
+            } else if (c == '[' && remaining >= 3 && isDigit(value, i + 1) && value.charAt(i + 2) == 'm') {
+                i = i + 3;
+            } else {
+                output.append(c);
+                i++;
+            }
+        }
+    }
+
+    /**
+     * removes the last character of the current line for a backspace
+     */
+    private void deleteLast() {
+        int length = output.length();
+        if (length > 0 && !isLineTerminator(output.charAt(length - 1))) {
+            output.setLength(length - 1);
+        }
+    }
+
+    private static boolean isDigit(String value, int index) {
+        char c = value.charAt(index);
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isLineTerminator(char c) {
+        return c == '\n' || c == '\r' || c == '\u0085' || c == LINE_SEPARATOR || c == PARAGRAPH_SEPARATOR;
+    }
+}
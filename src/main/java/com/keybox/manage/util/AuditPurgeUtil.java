@@ -0,0 +1,197 @@
+/**
+ * Copyright 2013 Sean Kavanagh - sean.p.kavanagh6@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.keybox.manage.util;
+
+import com.keybox.common.util.AppConfig;
+import com.keybox.manage.db.SessionAuditDB;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.time.DateUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Date;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Removes audit history older than the retention period on a schedule. Sessions are
+ * deleted a batch at a time and terminal log rows in bounded statements, each committed
+ * on its own, so a purge never holds a long transaction and resumes where it stopped.
+ */
+public class AuditPurgeUtil {
+
+    private static Logger log = LoggerFactory.getLogger(AuditPurgeUtil.class);
+
+    public static final int RETENTION_DAYS = StringUtils.isNumeric(AppConfig.getProperty("deleteAuditLogAfter")) ? Integer.parseInt(AppConfig.getProperty("deleteAuditLogAfter")) : 90;
+    public static final int PURGE_INTERVAL = StringUtils.isNumeric(AppConfig.getProperty("auditPurgeInterval")) ? Integer.parseInt(AppConfig.getProperty("auditPurgeInterval")) : 60;
+    public static final int PURGE_SESSION_BATCH_SIZE = StringUtils.isNumeric(AppConfig.getProperty("auditPurgeSessionBatchSize")) ? Integer.parseInt(AppConfig.getProperty("auditPurgeSessionBatchSize")) : 100;
+    public static final int PURGE_ROW_BATCH_SIZE = StringUtils.isNumeric(AppConfig.getProperty("auditPurgeRowBatchSize")) ? Integer.parseInt(AppConfig.getProperty("auditPurgeRowBatchSize")) : 5000;
+    public static final long PURGE_PAUSE = StringUtils.isNumeric(AppConfig.getProperty("auditPurgePause")) ? Long.parseLong(AppConfig.getProperty("auditPurgePause")) : 100;
+
+    //sessions without output are only removed once they are a day old so active sessions are kept
+    private static final int EMPTY_SESSION_AGE_DAYS = 1;
+
+    private static final AtomicBoolean running = new AtomicBoolean(false);
+    private static Timer timer;
+
+    //highest session id checked for missing terminal output
+    private static long emptySessionCheckpoint = 0;
+
+    private static volatile Date lastPurgeTm;
+    private static volatile long lastPurgeTime = 0;
+    private static volatile long lastSessionsRemoved = 0;
+    private static volatile long lastRowsRemoved = 0;
+    private static volatile long totalSessionsRemoved = 0;
+    private static volatile long totalRowsRemoved = 0;
+
+    private AuditPurgeUtil() {
+    }
+
+    /**
+     * start timer to purge audit history
+     */
+    public static synchronized void startAuditPurgeTimerTask() {
+        if (timer == null && RETENTION_DAYS > 0 && PURGE_INTERVAL > 0) {
+            timer = new Timer("keybox-audit-purge", true);
+            //first run shortly after startup then at a fixed delay
+            timer.schedule(new AuditPurgeTimerTask(), 60 * 1000, PURGE_INTERVAL * 60 * 1000L);
+        }
+    }
+
+    /**
+     * deletes audit history older than the retention period
+     *
+     * @return false if a purge is already running
+     */
+    public static boolean purge() {
+
+        if (!running.compareAndSet(false, true)) {
+            return false;
+        }
+        long start = System.currentTimeMillis();
+        long sessions = 0;
+        long rows = 0;
+        Connection con = null;
+        try {
+            con = DBUtils.getConn();
+            con.setAutoCommit(true);
+
+            Date now = new Date();
+            Date cutoff = DateUtils.addDays(now, -1 * RETENTION_DAYS);
+            //expired months of a partitioned terminal_log are dropped whole before the batch deletes
+            if (TerminalLogPartitionUtil.PARTITION_ENABLED && DBUtils.isMySQL(con)) {
+                //partition changes failing must not stop expired sessions from being removed
+                try {
+                    if (TerminalLogPartitionUtil.isPartitioned(con)) {
+                        rows = rows + TerminalLogPartitionUtil.maintainPartitions(con, cutoff);
+                    }
+                } catch (SQLException ex) {
+                    log.error("Unable to maintain terminal_log partitions: " + ex.toString(), ex);
+                }
+            }
+            List<Long> sessionIdList = SessionAuditDB.getSessionIdsBefore(con, cutoff, PURGE_SESSION_BATCH_SIZE);
+            while (!sessionIdList.isEmpty()) {
+                rows = rows + SessionAuditDB.purgeSessions(con, sessionIdList, PURGE_ROW_BATCH_SIZE);
+                sessions = sessions + sessionIdList.size();
+                log.debug("Audit purge removed " + sessions + " sessions, " + rows + " terminal log rows so far");
+                pause();
+                sessionIdList = SessionAuditDB.getSessionIdsBefore(con, cutoff, PURGE_SESSION_BATCH_SIZE);
+            }
+
+            Date emptyBefore = DateUtils.addDays(now, -1 * EMPTY_SESSION_AGE_DAYS);
+            sessionIdList = SessionAuditDB.getEmptySessionIds(con, emptySessionCheckpoint, emptyBefore, PURGE_SESSION_BATCH_SIZE);
+            while (!sessionIdList.isEmpty()) {
+                SessionAuditDB.purgeSessions(con, sessionIdList, PURGE_ROW_BATCH_SIZE);
+                sessions = sessions + sessionIdList.size();
+                emptySessionCheckpoint = sessionIdList.get(sessionIdList.size() - 1);
+                pause();
+                sessionIdList = SessionAuditDB.getEmptySessionIds(con, emptySessionCheckpoint, emptyBefore, PURGE_SESSION_BATCH_SIZE);
+            }
+
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (Exception ex) {
+            log.error(ex.toString(), ex);
+        } finally {
+            DBUtils.closeConn(con);
+
+            lastPurgeTm = new Date(start);
+            lastPurgeTime = System.currentTimeMillis() - start;
+            lastSessionsRemoved = sessions;
+            lastRowsRemoved = rows;
+            totalSessionsRemoved = totalSessionsRemoved + sessions;
+            totalRowsRemoved = totalRowsRemoved + rows;
+            running.set(false);
+        }
+        log.info("Audit purge removed " + sessions + " sessions and " + rows + " terminal log rows in " + lastPurgeTime + "ms");
+        return true;
+    }
+
+    /**
+     * pauses between batches so other statements get a turn at the tables
+     *
+     * @throws InterruptedException if interrupted while paused
+     */
+    private static void pause() throws InterruptedException {
+        if (PURGE_PAUSE > 0) {
+            Thread.sleep(PURGE_PAUSE);
+        }
+    }
+
+    public static boolean isRunning() {
+        return running.get();
+    }
+
+    public static Date getLastPurgeTm() {
+        return lastPurgeTm;
+    }
+
+    public static long getLastPurgeTime() {
+        return lastPurgeTime;
+    }
+
+    public static long getLastSessionsRemoved() {
+        return lastSessionsRemoved;
+    }
+
+    public static long getLastRowsRemoved() {
+        return lastRowsRemoved;
+    }
+
+    public static long getTotalSessionsRemoved() {
+        return totalSessionsRemoved;
+    }
+
+    public static long getTotalRowsRemoved() {
+        return totalRowsRemoved;
+    }
+
+    /**
+     * Timer task to purge audit history
+     */
+    private static class AuditPurgeTimerTask extends TimerTask {
+
+        @Override
+        public void run() {
+            purge();
+        }
+    }
+
+}
@@ -0,0 +1,181 @@
+/**
+ * Copyright 2013 Sean Kavanagh - sean.p.kavanagh6@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.keybox.manage.util;
+
+import com.keybox.common.util.AppConfig;
+import com.keybox.manage.model.SessionOutput;
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Utility to build search terms for the terminal output search index. Terms are
+ * extracted as the audit writer persists output and stored in terminal_term with one
+ * row per term and terminal, so a term is only written again when its last time is due
+ * to be moved on.
+ */
+public class AuditSearchUtil {
+
+    public static final boolean SEARCH_INDEX_ENABLED = !"false".equals(AppConfig.getProperty("auditSearchIndex"));
+    //max number of terms in a search query
+    public static final int MAX_QUERY_TERMS = 10;
+
+    //max number of open terminals with terms held between chunks
+    private static final int MAX_TERMINALS = 5000;
+    //max number of recently indexed terms remembered per terminal
+    private static final int MAX_INDEXED_TERMS = 2000;
+    //time in ms before the last time of an indexed term is updated again
+    private static final long TERM_UPDATE_INTERVAL = 60000;
+
+    private static final ConcurrentHashMap<String, TerminalTerms> terminalTermsMap = new ConcurrentHashMap<>();
+
+    private AuditSearchUtil() {
+    }
+
+    /**
+     * returns terms completed by the output chunk that are new to the terminal or due
+     * to have their last time updated, continuing any term left unfinished by the
+     * previous chunk for the same terminal
+     *
+     * @param sessionOutput output from session terminal
+     * @return set of lower case terms
+     */
+    public static Set<String> getTerms(SessionOutput sessionOutput) {
+        Set<String> termSet = new LinkedHashSet<>();
+        TerminalTerms terminalTerms = getTerminalTerms(sessionOutput.getSessionId(), sessionOutput.getInstanceId());
+        long logTm = sessionOutput.getLogTm() != null ? sessionOutput.getLogTm().getTime() : System.currentTimeMillis();
+        synchronized (terminalTerms) {
+            terminalTerms.tokenizer.tokenize(sessionOutput.getOutput().toString(), termSet);
+            Iterator<String> it = termSet.iterator();
+            while (it.hasNext()) {
+                String term = it.next();
+                Long indexedTm = terminalTerms.indexedMap.get(term);
+                if (indexedTm != null && logTm - indexedTm < TERM_UPDATE_INTERVAL) {
+                    it.remove();
+                } else {
+                    terminalTerms.indexedMap.put(term, logTm);
+                }
+            }
+        }
+        return termSet;
+    }
+
+    /**
+     * forgets the indexed terms of terminals in a batch that was not written, so
+     * they are written again with the retried batch
+     *
+     * @param sessionOutputList output from session terminals
+     */
+    public static void rollback(List<SessionOutput> sessionOutputList) {
+        Set<TerminalTerms> terminalTermsSet = Collections.newSetFromMap(new IdentityHashMap<TerminalTerms, Boolean>());
+        for (SessionOutput sessionOutput : sessionOutputList) {
+            TerminalTerms terminalTerms = terminalTermsMap.get(sessionOutput.getSessionId() + ":" + sessionOutput.getInstanceId());
+            if (terminalTerms != null) {
+                terminalTermsSet.add(terminalTerms);
+            }
+        }
+        for (TerminalTerms terminalTerms : terminalTermsSet) {
+            synchronized (terminalTerms) {
+                terminalTerms.indexedMap.clear();
+            }
+        }
+    }
+
+    /**
+     * removes terms held for a closed terminal
+     *
+     * @param sessionId  session id
+     * @param instanceId instance id
+     */
+    public static void removeTerminal(Long sessionId, Integer instanceId) {
+        terminalTermsMap.remove(sessionId + ":" + instanceId);
+    }
+
+    /**
+     * returns terms held for the terminal, dropping terms of another terminal when
+     * too many have not been closed
+     */
+    private static TerminalTerms getTerminalTerms(Long sessionId, Integer instanceId) {
+        String key = sessionId + ":" + instanceId;
+        TerminalTerms terminalTerms = terminalTermsMap.get(key);
+        if (terminalTerms == null) {
+            if (terminalTermsMap.size() >= MAX_TERMINALS) {
+                Iterator<String> it = terminalTermsMap.keySet().iterator();
+                if (it.hasNext()) {
+                    it.next();
+                    it.remove();
+                }
+            }
+            terminalTerms = new TerminalTerms();
+            TerminalTerms existing = terminalTermsMap.putIfAbsent(key, terminalTerms);
+            if (existing != null) {
+                terminalTerms = existing;
+            }
+        }
+        return terminalTerms;
+    }
+
+    /**
+     * splits a search query into index terms using the same rules as terminal output
+     *
+     * @param query search query
+     * @return list of lower case terms
+     */
+    public static List<String> parseQuery(String query) {
+        Set<String> termSet = new LinkedHashSet<>();
+        if (StringUtils.isNotBlank(query)) {
+            for (String word : query.trim().split("\\s+")) {
+                //query words are matched whole, parts are only used for words that are not indexed whole
+                Set<String> wordTerms = new LinkedHashSet<>();
+                AuditTermTokenizer tokenizer = new AuditTermTokenizer();
+                tokenizer.tokenize(word, wordTerms);
+                tokenizer.finish(wordTerms);
+                String whole = word.toLowerCase();
+                if (wordTerms.contains(whole)) {
+                    termSet.add(whole);
+                } else {
+                    termSet.addAll(wordTerms);
+                }
+            }
+        }
+        List<String> termList = new ArrayList<>(termSet);
+        return termList.size() > MAX_QUERY_TERMS ? termList.subList(0, MAX_QUERY_TERMS) : termList;
+    }
+
+    /**
+     * unfinished term and recently indexed terms of a terminal
+     */
+    private static class TerminalTerms {
+
+        AuditTermTokenizer tokenizer = new AuditTermTokenizer();
+        //term to the log time it was last written
+        Map<String, Long> indexedMap = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                return size() > MAX_INDEXED_TERMS;
+            }
+        };
+    }
+}
@@ -0,0 +1,69 @@
+/**
+ * Copyright 2013 Sean Kavanagh - sean.p.kavanagh6@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.keybox.manage.util;
+
+import com.keybox.common.util.AppConfig;
+import com.keybox.manage.db.AuditStore;
+import com.keybox.manage.db.BlockAuditStore;
+import com.keybox.manage.db.SegmentAuditStore;
+import com.keybox.manage.db.TerminalLogAuditStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Utility to select the store for recorded terminal output. The auditStore property is
+ * 'db' for rows in terminal_log, 'segment' for compressed segment files, 'block' for
+ * compressed blocks in terminal_log_block or the class name of an AuditStore implementation.
+ */
+public class AuditStoreUtil {
+
+    private static Logger log = LoggerFactory.getLogger(AuditStoreUtil.class);
+
+    public static final String DB_STORE = "db";
+    public static final String SEGMENT_STORE = "segment";
+    public static final String BLOCK_STORE = "block";
+
+    public static final String AUDIT_STORE = AppConfig.getProperty("auditStore", DB_STORE);
+
+    private static final AuditStore auditStore = createAuditStore();
+
+    private AuditStoreUtil() {
+    }
+
+    /**
+     * returns configured audit store
+     *
+     * @return audit store
+     */
+    public static AuditStore getAuditStore() {
+        return auditStore;
+    }
+
+    private static AuditStore createAuditStore() {
+        if (SEGMENT_STORE.equals(AUDIT_STORE)) {
+            return new SegmentAuditStore();
+        } else if (BLOCK_STORE.equals(AUDIT_STORE)) {
+            return new BlockAuditStore();
+        } else if (!DB_STORE.equals(AUDIT_STORE)) {
+            try {
+                return (AuditStore) Class.forName(AUDIT_STORE).getDeclaredConstructor().newInstance();
+            } catch (Exception ex) {
+                log.error("Unable to create audit store " + AUDIT_STORE + ", using terminal_log: " + ex.toString(), ex);
+            }
+        }
+        return new TerminalLogAuditStore();
+    }
+}
@@ -0,0 +1,148 @@
+/**
+ * Copyright 2013 Sean Kavanagh - sean.p.kavanagh6@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.keybox.manage.util;
+
+import java.util.Set;
+
+/**
+ * Splits terminal output into search terms for the audit search index. Escape sequences
+ * are skipped and backspaces applied, and a term left unfinished at the end of a chunk is
+ * continued by the next chunk so commands echoed one keystroke at a time are indexed whole.
+ */
+public class AuditTermTokenizer {
+
+    public static final int MIN_TERM_LENGTH = 2;
+    public static final int MAX_TERM_LENGTH = 64;
+
+    private static final char ESC = '\u001B';
+    private static final char BEL = '\u0007';
+    private static final char BS = '\b';
+
+    //characters that are part of a term in addition to letters and digits
+    private static final String TERM_CHARS = "_-./:@=+~$%,";
+    //characters a term is also split on so parts of paths and options can be searched
+    private static final String PART_SEPARATORS = "/:@=,";
+
+    private static final int NORMAL = 0;
+    private static final int ESCAPE = 1;
+    private static final int CSI = 2;
+    private static final int OSC = 3;
+
+    private final StringBuilder term = new StringBuilder();
+    private int state = NORMAL;
+    //progress through a backspace, space, backspace erase sequence
+    private int erase = 0;
+
+    /**
+     * adds terms completed by the chunk of output to the set
+     *
+     * @param chunk   terminal output
+     * @param termSet set of lower case terms
+     */
+    public void tokenize(String chunk, Set<String> termSet) {
+        if (chunk == null) {
+            return;
+        }
+        for (int i = 0; i < chunk.length(); i++) {
+            char c = chunk.charAt(i);
+            if (state == ESCAPE) {
+                state = c == '[' ? CSI : c == ']' ? OSC : NORMAL;
+            } else if (state == CSI) {
+                //final byte ends the control sequence
+                if (c >= '@' && c <= '~') {
+                    state = NORMAL;
+                }
+            } else if (state == OSC) {
+                if (c == BEL || c == ESC) {
+                    state = NORMAL;
+                }
+            } else if (c == ESC) {
+                endErase(termSet);
+                state = ESCAPE;
+            } else if (c == BS) {
+                if (erase == 2) {
+                    //erased character was already removed by the first backspace
+                    erase = 0;
+                } else {
+                    endErase(termSet);
+                    if (term.length() > 0) {
+                        term.setLength(term.length() - 1);
+                    }
+                    erase = 1;
+                }
+            } else if (c == ' ' && erase == 1) {
+                erase = 2;
+            } else {
+                endErase(termSet);
+                if (Character.isLetterOrDigit(c) || TERM_CHARS.indexOf(c) >= 0) {
+                    term.append(Character.toLowerCase(c));
+                } else {
+                    endTerm(termSet);
+                }
+            }
+        }
+    }
+
+    /**
+     * adds any unfinished term to the set
+     *
+     * @param termSet set of lower case terms
+     */
+    public void finish(Set<String> termSet) {
+        endTerm(termSet);
+    }
+
+    /**
+     * ends a backspace sequence, a space that did not lead to a second backspace ends the term
+     */
+    private void endErase(Set<String> termSet) {
+        if (erase == 2) {
+            endTerm(termSet);
+        }
+        erase = 0;
+    }
+
+    private void endTerm(Set<String> termSet) {
+        if (term.length() > 0) {
+            addTerm(term.toString(), termSet);
+            term.setLength(0);
+        }
+    }
+
+    /**
+     * adds term and its parts to the set
+     *
+     * @param value   term
+     * @param termSet set of lower case terms
+     */
+    private static void addTerm(String value, Set<String> termSet) {
+        if (value.length() >= MIN_TERM_LENGTH && value.length() <= MAX_TERM_LENGTH) {
+            termSet.add(value);
+        }
+        int start = 0;
+        for (int i = 0; i <= value.length(); i++) {
+            if (i == value.length() || PART_SEPARATORS.indexOf(value.charAt(i)) >= 0) {
+                if (start > 0 || i < value.length()) {
+                    String part = value.substring(start, i);
+                    if (part.length() >= MIN_TERM_LENGTH && part.length() <= MAX_TERM_LENGTH) {
+                        termSet.add(part);
+                    }
+                }
+                start = i + 1;
+            }
+        }
+    }
+}
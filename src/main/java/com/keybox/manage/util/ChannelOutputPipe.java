@@ -0,0 +1,278 @@
+/**
+ * Copyright 2013 Sean Kavanagh - sean.p.kavanagh6@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.keybox.manage.util;
+
+import com.jcraft.jsch.Buffer;
+import com.jcraft.jsch.Channel;
+import com.jcraft.jsch.Packet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+
+/**
+ * Pipe for the output of a channel that never blocks the session's reader thread. JSch reads
+ * every channel of a session on one thread and its own pipe blocks that thread once full, so a
+ * terminal paused for its client would hold up the other channels of a shared session. Output
+ * is held here instead and once too much is unread the channel's ssh window is held back, so
+ * the remote side stops sending for this channel only until the terminal reader catches up.
+ */
+public class ChannelOutputPipe extends InputStream {
+
+    private static Logger log = LoggerFactory.getLogger(ChannelOutputPipe.class);
+
+    private static final byte SSH_MSG_CHANNEL_WINDOW_ADJUST = 93;
+    //unread bytes at which the window is held back, it is opened again at half
+    private static final int HOLD_THRESHOLD = 32768;
+    private static final int INITIAL_SIZE = 4096;
+
+    //JSch window fields, null if they can not be reached and writes block as with the JSch pipe
+    private static final Field windowSizeField = getField("lwsize");
+    private static final Field windowSizeMaxField = getField("lwsize_max");
+    private static final Method recipientMethod = getRecipientMethod();
+    private static final boolean WINDOW_CONTROL = windowSizeField != null && windowSizeMaxField != null && recipientMethod != null;
+
+    private final Channel channel;
+    private final int windowSizeMax;
+    private byte[] buffer = new byte[INITIAL_SIZE];
+    private int head = 0;
+    private int size = 0;
+    private boolean held = false;
+    private boolean closed = false;
+
+    /**
+     * creates pipe and sets it as the output stream of the channel, call before the channel is connected
+     *
+     * @param channel channel to read output from
+     */
+    public ChannelOutputPipe(Channel channel) {
+        this.channel = channel;
+        this.windowSizeMax = WINDOW_CONTROL ? getInt(windowSizeMaxField) : 0;
+        channel.setOutputStream(new PipeOutputStream());
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        int read;
+        int adjust = 0;
+        synchronized (this) {
+            try {
+                while (size == 0 && !closed) {
+                    wait();
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException(ex.toString());
+            }
+            if (size == 0) {
+                return -1;
+            }
+            read = Math.min(len, size);
+            int first = Math.min(read, buffer.length - head);
+            System.arraycopy(buffer, head, b, off, first);
+            System.arraycopy(buffer, 0, b, off + first, read - first);
+            head = (head + read) % buffer.length;
+            size = size - read;
+            if (held && size <= HOLD_THRESHOLD / 2) {
+                adjust = openWindow();
+            }
+            notifyAll();
+        }
+        //sent outside the lock as it waits for any key exchange the session thread is running
+        if (adjust > 0) {
+            sendWindowAdjust(adjust);
+        }
+        return read;
+    }
+
+    @Override
+    public synchronized int available() {
+        return size;
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+        size = 0;
+        notifyAll();
+    }
+
+    /**
+     * appends output on the session thread, holding back the window once too much is unread
+     */
+    private synchronized void write(byte[] b, int off, int len) throws IOException {
+        if (!WINDOW_CONTROL) {
+            //without window control wait for the reader as the JSch pipe does
+            try {
+                while (!closed && size + len > HOLD_THRESHOLD && size > 0) {
+                    wait();
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException(ex.toString());
+            }
+        }
+        if (closed) {
+            return;
+        }
+        if (size + len > buffer.length) {
+            grow(size + len);
+        }
+        int tail = (head + size) % buffer.length;
+        int first = Math.min(len, buffer.length - tail);
+        System.arraycopy(b, off, buffer, tail, first);
+        System.arraycopy(b, off + first, buffer, 0, len - first);
+        size = size + len;
+        if (!held && size >= HOLD_THRESHOLD && WINDOW_CONTROL) {
+            //the session thread checks the max right after this write and sends no adjust while it is 0
+            setInt(windowSizeMaxField, 0);
+            held = true;
+        }
+        notifyAll();
+    }
+
+    /**
+     * grows the buffer to hold at least the required number of bytes
+     *
+     * @param required required size
+     */
+    private void grow(int required) {
+        int newSize = buffer.length;
+        while (newSize < required) {
+            newSize = newSize * 2;
+        }
+        byte[] grown = new byte[newSize];
+        int first = Math.min(size, buffer.length - head);
+        System.arraycopy(buffer, head, grown, 0, first);
+        System.arraycopy(buffer, 0, grown, first, size - first);
+        buffer = grown;
+        head = 0;
+    }
+
+    /**
+     * restores the window max and refills the window as the session thread would have
+     *
+     * @return bytes to add to the remote side's window, 0 if no adjust is due
+     */
+    private int openWindow() {
+        held = false;
+        setInt(windowSizeMaxField, windowSizeMax);
+        int windowSize = getInt(windowSizeField);
+        if (windowSize >= windowSizeMax / 2) {
+            return 0;
+        }
+        setInt(windowSizeField, windowSizeMax);
+        return windowSizeMax - windowSize;
+    }
+
+    /**
+     * sends a window adjust for the channel
+     *
+     * @param adjust bytes to add to the remote side's window
+     */
+    private void sendWindowAdjust(int adjust) {
+        try {
+            Buffer buf = new Buffer(100);
+            Packet packet = new Packet(buf);
+            packet.reset();
+            buf.putByte(SSH_MSG_CHANNEL_WINDOW_ADJUST);
+            buf.putInt((Integer) recipientMethod.invoke(channel));
+            buf.putInt(adjust);
+            //not synchronized on the channel as the session thread does, it may be waiting on that lock during a key exchange
+            if (channel.isConnected()) {
+                channel.getSession().write(packet);
+            }
+        } catch (Exception ex) {
+            log.error(ex.toString(), ex);
+        }
+    }
+
+    private int getInt(Field field) {
+        try {
+            return field.getInt(channel);
+        } catch (IllegalAccessException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private void setInt(Field field, int value) {
+        try {
+            field.setInt(channel, value);
+        } catch (IllegalAccessException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static Field getField(String name) {
+        try {
+            Field field = Channel.class.getDeclaredField(name);
+            field.setAccessible(true);
+            return field;
+        } catch (Exception ex) {
+            log.warn("Channel window control is not available, terminal output will block shared sessions: " + ex.toString());
+            return null;
+        }
+    }
+
+    private static Method getRecipientMethod() {
+        try {
+            Method method = Channel.class.getDeclaredMethod("getRecipient");
+            method.setAccessible(true);
+            return method;
+        } catch (Exception ex) {
+            log.warn("Channel window control is not available, terminal output will block shared sessions: " + ex.toString());
+            return null;
+        }
+    }
+
+    /**
+     * Output stream JSch writes channel data to on the session thread
+     */
+    private class PipeOutputStream extends OutputStream {
+
+        @Override
+        public void write(int b) throws IOException {
+            ChannelOutputPipe.this.write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            ChannelOutputPipe.this.write(b, off, len);
+        }
+
+        @Override
+        public void close() {
+            synchronized (ChannelOutputPipe.this) {
+                closed = true;
+                ChannelOutputPipe.this.notifyAll();
+            }
+        }
+    }
+}
@@ -50,6 +50,21 @@ public class DBUtils {
 
     }
 
+    /**
+     * checks if connection is to a MySQL database
+     *
+     * @param con DB connection
+     * @return true if MySQL
+     */
+    public static boolean isMySQL(Connection con) {
+        try {
+            return con.getMetaData().getDatabaseProductName().toLowerCase().contains("mysql");
+        } catch (Exception ex) {
+            log.error(ex.toString(), ex);
+        }
+        return false;
+    }
+
     /**
      * close DB connection
      *
@@ -0,0 +1,211 @@
+/**
+ * Copyright 2013 Sean Kavanagh - sean.p.kavanagh6@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.keybox.manage.util;
+
+import com.jcraft.jsch.Session;
+import com.keybox.common.util.AppConfig;
+import com.keybox.manage.model.HostSystem;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * Keeps authenticated ssh sessions so shell, exec and sftp channels for the same KeyBox user
+ * and system account are opened over one connection instead of repeating the key exchange and
+ * authentication. Sessions are reference counted by the channels using them and disconnected
+ * once unused for sshSessionIdleTimeout seconds. Key distribution run by the application uses
+ * its own sessions, separate from those of any user.
+ */
+public class SSHSessionUtil {
+
+    private static Logger log = LoggerFactory.getLogger(SSHSessionUtil.class);
+
+    //seconds an unused session is kept, sessions are not reused if 0
+    public static final int SESSION_IDLE_TIMEOUT = StringUtils.isNumeric(AppConfig.getProperty("sshSessionIdleTimeout")) ? Integer.parseInt(AppConfig.getProperty("sshSessionIdleTimeout")) : 300;
+    //channels opened over one session, sshd allows 10 by default
+    public static final int MAX_CHANNELS = StringUtils.isNumeric(AppConfig.getProperty("sshSessionMaxChannels")) && Integer.parseInt(AppConfig.getProperty("sshSessionMaxChannels")) > 0 ? Integer.parseInt(AppConfig.getProperty("sshSessionMaxChannels")) : 8;
+    private static final long EXPIRE_INTERVAL = 30000;
+
+    //user:account@host:port, session
+    private static final Map<String, PooledSession> sessionMap = new HashMap<>();
+    private static final Map<Session, PooledSession> pooledSessionMap = new IdentityHashMap<>();
+
+    private static Timer expireTimer = null;
+
+    private SSHSessionUtil() {
+    }
+
+    /**
+     * returns a connected session for the user and system if one is kept with channels to spare, counting the caller as using it
+     *
+     * @param userId     user id, null for the application
+     * @param hostSystem host system
+     * @return session or null if a new session is needed
+     */
+    public static Session getSession(Long userId, HostSystem hostSystem) {
+
+        if (SESSION_IDLE_TIMEOUT <= 0) {
+            return null;
+        }
+        synchronized (sessionMap) {
+            PooledSession pooledSession = sessionMap.get(getKey(userId, hostSystem));
+            if (pooledSession != null) {
+                if (!pooledSession.session.isConnected()) {
+                    remove(pooledSession);
+                } else if (pooledSession.refCount < MAX_CHANNELS) {
+                    pooledSession.refCount++;
+                    return pooledSession.session;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * keeps a newly connected session for reuse with the caller counted as using it
+     *
+     * @param userId     user id, null for the application
+     * @param hostSystem host system
+     * @param session    connected session
+     */
+    public static void addSession(Long userId, HostSystem hostSystem, Session session) {
+
+        if (SESSION_IDLE_TIMEOUT <= 0) {
+            return;
+        }
+        String key = getKey(userId, hostSystem);
+        synchronized (sessionMap) {
+            PooledSession existing = sessionMap.get(key);
+            //a session opened while another for the key is open is used once and not kept
+            if (existing == null || !existing.session.isConnected()) {
+                if (existing != null) {
+                    remove(existing);
+                }
+                PooledSession pooledSession = new PooledSession(key, session);
+                sessionMap.put(key, pooledSession);
+                pooledSessionMap.put(session, pooledSession);
+                startExpireTimer();
+            }
+        }
+    }
+
+    /**
+     * releases a session once the caller has closed its channel, sessions that are not kept are disconnected
+     *
+     * @param session session
+     */
+    public static void release(Session session) {
+
+        if (session == null) {
+            return;
+        }
+        synchronized (sessionMap) {
+            PooledSession pooledSession = pooledSessionMap.get(session);
+            if (pooledSession != null) {
+                pooledSession.refCount = Math.max(0, pooledSession.refCount - 1);
+                pooledSession.lastUsedTm = System.currentTimeMillis();
+                if (session.isConnected()) {
+                    return;
+                }
+                remove(pooledSession);
+            }
+        }
+        session.disconnect();
+    }
+
+    /**
+     * disconnects sessions that are not in use, so new sessions authenticate with the current keys
+     */
+    public static void disconnectIdle() {
+        expire(0);
+    }
+
+    /**
+     * disconnects sessions unused for longer than the timeout
+     *
+     * @param timeout idle time in milliseconds
+     */
+    private static void expire(long timeout) {
+
+        List<Session> expiredList = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        synchronized (sessionMap) {
+            Iterator<PooledSession> it = sessionMap.values().iterator();
+            while (it.hasNext()) {
+                PooledSession pooledSession = it.next();
+                if (!pooledSession.session.isConnected() || (pooledSession.refCount == 0 && now - pooledSession.lastUsedTm >= timeout)) {
+                    it.remove();
+                    pooledSessionMap.remove(pooledSession.session);
+                    expiredList.add(pooledSession.session);
+                }
+            }
+        }
+        for (Session session : expiredList) {
+            log.debug("Disconnecting idle ssh session " + session.getUserName() + "@" + session.getHost() + ":" + session.getPort());
+            session.disconnect();
+        }
+    }
+
+    private static void remove(PooledSession pooledSession) {
+        sessionMap.remove(pooledSession.key);
+        pooledSessionMap.remove(pooledSession.session);
+    }
+
+    private static void startExpireTimer() {
+        if (expireTimer == null) {
+            expireTimer = new Timer("keybox-ssh-session-expire", true);
+            expireTimer.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    try {
+                        expire(SESSION_IDLE_TIMEOUT * 1000L);
+                    } catch (Exception ex) {
+                        log.error(ex.toString(), ex);
+                    }
+                }
+            }, EXPIRE_INTERVAL, EXPIRE_INTERVAL);
+        }
+    }
+
+    private static String getKey(Long userId, HostSystem hostSystem) {
+        return (userId != null ? userId.toString() : "app") + ":" + hostSystem.getUser() + "@" + hostSystem.getHost() + ":" + hostSystem.getPort();
+    }
+
+    /**
+     * session with the number of channels using it
+     */
+    private static class PooledSession {
+
+        final String key;
+        final Session session;
+        int refCount = 1;
+        long lastUsedTm = System.currentTimeMillis();
+
+        PooledSession(String key, Session session) {
+            this.key = key;
+            this.session = session;
+        }
+    }
+}
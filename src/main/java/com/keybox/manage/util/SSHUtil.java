@@ -25,9 +25,12 @@ import org.apache.commons.lang3.StringUtils;
 
 import java.io.*;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -41,6 +44,7 @@ public class SSHUtil {
 	public static final String PUBLIC_KEY = "publicKey";
 	private static Logger log = LoggerFactory.getLogger(SSHUtil.class);
 	public static final boolean keyManagementEnabled = "true".equals(AppConfig.getProperty("keyManagementEnabled"));
+	public static final boolean atomicAuthKeysSync = !"false".equals(AppConfig.getProperty("atomicAuthKeysSync"));
 
 	//system path to public/private key
 	public static final String KEY_PATH = AppConfig.CONFIG_DIR + "/keydb";
@@ -59,6 +63,16 @@ public class SSHUtil {
 	public static final int SESSION_TIMEOUT = 60000;
 	public static final int CHANNEL_TIMEOUT = 60000;
 
+	//application key and the JSch holding its decrypted identity
+	private static ApplicationKey applicationKey = null;
+	private static JSch applicationJSch = null;
+
+	//system id, digest of the authorized keys last synced
+	private static Map<Long, String> syncedKeysMap = new ConcurrentHashMap<>();
+
+	//session id, instance ids of terminals being opened
+	private static final Map<Long, Set<Integer>> reservedInstanceIdMap = new HashMap<>();
+
 	private SSHUtil() {
 	}
 
@@ -216,34 +230,13 @@ public class SSHUtil {
 	public static HostSystem authAndAddPubKey(HostSystem hostSystem, String passphrase, String password) {
 
 
-		JSch jsch = new JSch();
 		Session session = null;
 		hostSystem.setStatusCd(HostSystem.SUCCESS_STATUS);
 		try {
-			ApplicationKey appKey = PrivateKeyDB.getApplicationKey();
-			//check to see if passphrase has been provided
-			if (passphrase == null || passphrase.trim().equals("")) {
-				passphrase = appKey.getPassphrase();
-				//check for null inorder to use key without passphrase
-				if (passphrase == null) {
-					passphrase = "";
-				}
-			}
-			//add private key
-			jsch.addIdentity(appKey.getId().toString(), appKey.getPrivateKey().trim().getBytes(), appKey.getPublicKey().getBytes(), passphrase.getBytes());
-
-			//create session
-			session = jsch.getSession(hostSystem.getUser(), hostSystem.getHost(), hostSystem.getPort());
-
-			//set password if passed in
-			if (password != null && !password.equals("")) {
-				session.setPassword(password);
-			}
-			session.setConfig("StrictHostKeyChecking", "no");
-			session.setConfig("PreferredAuthentications", "publickey,keyboard-interactive,password");
-			session.setServerAliveInterval(SERVER_ALIVE_INTERVAL);
-			session.connect(SESSION_TIMEOUT);
+			ApplicationKey appKey = getApplicationKey();
 
+			//distribution runs for the application, not for a user
+			session = getSession(null, hostSystem, appKey, passphrase, password);
 
 			addPubKey(hostSystem, session, appKey.getPublicKey());
 
@@ -264,13 +257,128 @@ public class SSHUtil {
 
 		}
 
+		SSHSessionUtil.release(session);
+
+		return hostSystem;
+
+
+	}
+
+
+	/**
+	 * returns the application key, read from the DB on first use
+	 *
+	 * @return app key values
+	 */
+	public static synchronized ApplicationKey getApplicationKey() {
+		if (applicationKey == null) {
+			applicationKey = PrivateKeyDB.getApplicationKey();
+		}
+		return applicationKey;
+	}
+
+
+	/**
+	 * returns JSch holding the decrypted application identity, parsed on first use
+	 *
+	 * @return JSch shared by sessions using the application key
+	 * @throws JSchException if the key could not be parsed
+	 */
+	private static synchronized JSch getApplicationJSch() throws JSchException {
+		if (applicationJSch == null) {
+			applicationJSch = createJSch(getApplicationKey(), null);
+		}
+		return applicationJSch;
+	}
+
+
+	/**
+	 * clears the cached application key after it is replaced and disconnects idle sessions opened with the old key
+	 */
+	public static synchronized void resetApplicationKey() {
+		applicationKey = null;
+		applicationJSch = null;
+		SSHSessionUtil.disconnectIdle();
+	}
+
+
+	/**
+	 * creates JSch with the application identity added
+	 *
+	 * @param appKey     application key
+	 * @param passphrase key passphrase, application key passphrase if empty
+	 * @return JSch with identity
+	 * @throws JSchException if the key could not be parsed
+	 */
+	private static JSch createJSch(ApplicationKey appKey, String passphrase) throws JSchException {
+
+		JSch jsch = new JSch();
+		//check to see if passphrase has been provided
+		if (passphrase == null || passphrase.trim().equals("")) {
+			passphrase = appKey.getPassphrase();
+			//check for null inorder to use key without passphrase
+			if (passphrase == null) {
+				passphrase = "";
+			}
+		}
+		//add private key
+		jsch.addIdentity(appKey.getId().toString(), appKey.getPrivateKey().trim().getBytes(), appKey.getPublicKey().getBytes(), passphrase.getBytes());
+
+		return jsch;
+	}
+
+
+	/**
+	 * returns an authenticated session for the system, reusing an open session of the user if one is kept
+	 *
+	 * @param userId     user id, null for the application
+	 * @param hostSystem host system
+	 * @param appKey     application key
+	 * @param passphrase key passphrase, application key passphrase if empty
+	 * @param password   password, key authentication only if empty
+	 * @return connected session to release with SSHSessionUtil when done
+	 * @throws JSchException if the session could not be connected
+	 */
+	private static Session getSession(Long userId, HostSystem hostSystem, ApplicationKey appKey, String passphrase, String password) throws JSchException {
+
+		//parsed application identity is reused unless a passphrase is entered for the key
+		JSch jsch = passphrase == null || passphrase.trim().equals("") ? getApplicationJSch() : createJSch(appKey, passphrase);
+		return getSession(jsch, userId, hostSystem, password);
+	}
+
+
+	/**
+	 * returns an authenticated session for the system, reusing an open session of the user if one is kept
+	 *
+	 * @param jsch       JSch with the identity to authenticate with
+	 * @param userId     user id, null for the application
+	 * @param hostSystem host system
+	 * @param password   password, key authentication only if empty
+	 * @return connected session to release with SSHSessionUtil when done
+	 * @throws JSchException if the session could not be connected
+	 */
+	static Session getSession(JSch jsch, Long userId, HostSystem hostSystem, String password) throws JSchException {
+
+		Session session = SSHSessionUtil.getSession(userId, hostSystem);
 		if (session != null) {
-			session.disconnect();
+			return session;
 		}
 
-		return hostSystem;
+		//create session
+		session = jsch.getSession(hostSystem.getUser(), hostSystem.getHost(), hostSystem.getPort());
 
+		//set password if it exists
+		if (password != null && !password.trim().equals("")) {
+			session.setPassword(password);
+		}
+		session.setConfig("StrictHostKeyChecking", "no");
+		session.setConfig("PreferredAuthentications", "publickey,keyboard-interactive,password");
+		session.setServerAliveInterval(SERVER_ALIVE_INTERVAL);
+		session.connect(SESSION_TIMEOUT);
 
+		SSHSessionUtil.addSession(userId, hostSystem, session);
+
+		return session;
 	}
 
 
@@ -330,9 +438,52 @@ public class SSHUtil {
 	 * @return status of key distribution
 	 */
 	public static HostSystem addPubKey(HostSystem hostSystem, Session session, String appPublicKey) {
+		return addPubKey(hostSystem, session, appPublicKey, true);
+	}
+
+
+	/**
+	 * distributes authorized keys for host system
+	 *
+	 * @param hostSystem   object contains host system information
+	 * @param session      an established SSH session
+	 * @param appPublicKey application public key value
+	 * @param force        false to skip the remote sync if the keys for the system are unchanged since last synced
+	 * @return status of key distribution
+	 */
+	public static HostSystem addPubKey(HostSystem hostSystem, Session session, String appPublicKey, boolean force) {
 
 		try {
 			String authorizedKeys = hostSystem.getAuthorizedKeys().replaceAll("~\\/|~", "");
+			String appPubKey = appPublicKey.replace("\n", "").trim();
+
+			StringBuilder assignedKeysBuilder = new StringBuilder("");
+			if (keyManagementEnabled) {
+				//get keys assigned to system
+				List<String> assignedKeys = PublicKeyDB.getPublicKeysForSystem(hostSystem.getId());
+				for (String key : assignedKeys) {
+					assignedKeysBuilder.append(key.replace("\n", "").trim()).append("\n");
+				}
+				assignedKeysBuilder.append(appPubKey);
+			}
+
+			//digest of the key set the file should hold
+			String keysDigest = EncryptionUtil.hash(keyManagementEnabled + "\n" + authorizedKeys + "\n" + (keyManagementEnabled ? assignedKeysBuilder.toString() : appPubKey));
+			if (!force && keysDigest != null && keysDigest.equals(syncedKeysMap.get(hostSystem.getId()))) {
+				return hostSystem;
+			}
+			syncedKeysMap.remove(hostSystem.getId());
+
+			if (atomicAuthKeysSync) {
+				String newKeys = keyManagementEnabled ? assignedKeysBuilder.toString() : null;
+				if (syncAuthorizedKeys(session, authorizedKeys, newKeys, appPubKey)) {
+					log.info("Update Public Keys  ==> " + (newKeys != null ? newKeys : appPubKey));
+				}
+				if (keysDigest != null) {
+					syncedKeysMap.put(hostSystem.getId(), keysDigest);
+				}
+				return hostSystem;
+			}
 
 			Channel channel = session.openChannel("exec");
 			((ChannelExec) channel).setCommand("cat " + authorizedKeys);
@@ -345,7 +496,6 @@ public class SSHUtil {
 
 			channel.connect(CHANNEL_TIMEOUT);
 
-			String appPubKey = appPublicKey.replace("\n", "").trim();
 			StringBuilder existingKeysBuilder = new StringBuilder("");
 
 			String currentKey;
@@ -360,12 +510,7 @@ public class SSHUtil {
 
 			StringBuilder newKeysBuilder = new StringBuilder("");
 			if (keyManagementEnabled) {
-				//get keys assigned to system
-				List<String> assignedKeys = PublicKeyDB.getPublicKeysForSystem(hostSystem.getId());
-				for (String key : assignedKeys) {
-					newKeysBuilder.append(key.replace("\n", "").trim()).append("\n");
-				}
-				newKeysBuilder.append(appPubKey);
+				newKeysBuilder.append(assignedKeysBuilder);
 			} else {
 				if (existingKeys.indexOf(appPubKey) < 0) {
 					newKeysBuilder.append(existingKeys).append("\n").append(appPubKey);
@@ -386,6 +531,10 @@ public class SSHUtil {
 				channel.disconnect();
 			}
 
+			if (keysDigest != null) {
+				syncedKeysMap.put(hostSystem.getId(), keysDigest);
+			}
+
 		} catch (Exception e) {
 			log.info(e.toString(), e);
 			hostSystem.setErrorMsg(e.getMessage());
@@ -395,26 +544,136 @@ public class SSHUtil {
 	}
 
 	/**
-	 * return the next instance id based on ids defined in the session map
+	 * reserves the lowest instance id not used by the session map or by a terminal still
+	 * being opened, so terminals opened at the same time get different ids
 	 *
 	 * @param sessionId      session id
 	 * @param userSessionMap user session map
-	 * @return
+	 * @return instance id
 	 */
-	private static int getNextInstanceId(Long sessionId, Map<Long, UserSchSessions> userSessionMap) {
+	private static int reserveInstanceId(Long sessionId, Map<Long, UserSchSessions> userSessionMap) {
 
-		Integer instanceId = 1;
-		if (userSessionMap.get(sessionId) != null) {
+		synchronized (reservedInstanceIdMap) {
+			Set<Integer> reservedIds = reservedInstanceIdMap.get(sessionId);
+			if (reservedIds == null) {
+				reservedIds = new HashSet<>();
+				reservedInstanceIdMap.put(sessionId, reservedIds);
+			}
+			UserSchSessions userSchSessions = userSessionMap.get(sessionId);
+			int instanceId = 1;
+			while (reservedIds.contains(instanceId) || (userSchSessions != null && userSchSessions.getSchSessionMap().containsKey(instanceId))) {
+				instanceId++;
+			}
+			reservedIds.add(instanceId);
+			return instanceId;
+		}
+	}
 
-			for (Integer id : userSessionMap.get(sessionId).getSchSessionMap().keySet()) {
-				if (!id.equals(instanceId) && userSessionMap.get(sessionId).getSchSessionMap().get(instanceId) == null) {
-					return instanceId;
+	/**
+	 * adds the opened terminal to the session map and releases its reserved instance id
+	 *
+	 * @param sessionId      session id
+	 * @param instanceId     instance id
+	 * @param schSession     opened terminal, null if it could not be opened
+	 * @param userSessionMap user session map
+	 */
+	private static void addSchSession(Long sessionId, int instanceId, SchSession schSession, Map<Long, UserSchSessions> userSessionMap) {
+
+		synchronized (reservedInstanceIdMap) {
+			if (schSession != null) {
+				//get the server maps for user, if no user session create a new one
+				UserSchSessions userSchSessions = userSessionMap.get(sessionId);
+				if (userSchSessions == null) {
+					userSchSessions = new UserSchSessions();
+					userSessionMap.put(sessionId, userSchSessions);
+				}
+				userSchSessions.getSchSessionMap().put(instanceId, schSession);
+			}
+			Set<Integer> reservedIds = reservedInstanceIdMap.get(sessionId);
+			if (reservedIds != null) {
+				reservedIds.remove(instanceId);
+				if (reservedIds.isEmpty()) {
+					reservedInstanceIdMap.remove(sessionId);
 				}
-				instanceId = instanceId + 1;
 			}
 		}
-		return instanceId;
+	}
+
 
+	/**
+	 * syncs authorized_keys in one command, the file is compared on the system and only replaced
+	 * if different by renaming a temp file over it so it is never left partly written. A symlinked
+	 * authorized_keys is replaced by a regular file.
+	 *
+	 * @param session        an established SSH session
+	 * @param authorizedKeys authorized_keys path relative to home
+	 * @param newKeys        keys the file should hold, null to only append the application key if missing
+	 * @param appPubKey      application public key value
+	 * @return true if the file was updated
+	 * @throws JSchException if the command could not be run
+	 * @throws IOException   if the command failed on the system
+	 */
+	private static boolean syncAuthorizedKeys(Session session, String authorizedKeys, String newKeys, String appPubKey) throws JSchException, IOException {
+
+		StringBuilder command = new StringBuilder("umask 077; f=").append(shellQuote(authorizedKeys)).append("; t=\"$f.keybox$$\"; ");
+		if (newKeys != null) {
+			//keys are sent on stdin
+			command.append("cat > \"$t\" || { rm -f \"$t\"; exit 1; }; ")
+					.append("if cmp -s \"$t\" \"$f\"; then rm -f \"$t\"; echo unchanged; ")
+					.append("else mv -f \"$t\" \"$f\" && echo updated; fi");
+		} else {
+			command.append("k=").append(shellQuote(appPubKey)).append("; ")
+					.append("if grep -qF -- \"$k\" \"$f\" 2>/dev/null; then echo unchanged; ")
+					.append("else { if [ -f \"$f\" ]; then awk 1 \"$f\"; fi; echo \"$k\"; } > \"$t\" && mv -f \"$t\" \"$f\" && echo updated || { rm -f \"$t\"; exit 1; }; fi");
+		}
+
+		ChannelExec channel = (ChannelExec) session.openChannel("exec");
+		try {
+			//run with sh as the login shell may be csh, tcsh or fish
+			channel.setCommand("sh -c " + shellQuote(command.toString()));
+			ByteArrayOutputStream err = new ByteArrayOutputStream();
+			channel.setErrStream(err);
+			OutputStream out = channel.getOutputStream();
+			BufferedReader reader = new BufferedReader(new InputStreamReader(channel.getInputStream()));
+
+			channel.connect(CHANNEL_TIMEOUT);
+
+			//same content echo wrote so existing files compare equal
+			if (newKeys != null) {
+				out.write((newKeys + "\n").getBytes("UTF-8"));
+			}
+			out.close();
+
+			String result = reader.readLine();
+			reader.close();
+			//exit status is set once the channel closes
+			long timeout = System.currentTimeMillis() + CHANNEL_TIMEOUT;
+			while (!channel.isClosed() && System.currentTimeMillis() < timeout) {
+				try {
+					Thread.sleep(10);
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+			if (channel.getExitStatus() != 0 || result == null) {
+				throw new IOException("authorized_keys sync failed: " + err.toString("UTF-8").trim());
+			}
+			return "updated".equals(result.trim());
+		} finally {
+			channel.disconnect();
+		}
+	}
+
+
+	/**
+	 * quotes value as a single shell word
+	 *
+	 * @param value value
+	 * @return quoted value
+	 */
+	private static String shellQuote(String value) {
+		return "'" + value.replace("'", "'\\''") + "'";
 	}
 
 
@@ -431,54 +690,33 @@ public class SSHUtil {
 	 */
 	public static HostSystem openSSHTermOnSystem(String passphrase, String password, Long userId, Long sessionId, HostSystem hostSystem, Map<Long, UserSchSessions> userSessionMap) {
 
-		JSch jsch = new JSch();
-
-		int instanceId = getNextInstanceId(sessionId, userSessionMap);
+		int instanceId = reserveInstanceId(sessionId, userSessionMap);
 		hostSystem.setStatusCd(HostSystem.SUCCESS_STATUS);
 		hostSystem.setInstanceId(instanceId);
 
 
 		SchSession schSession = null;
+		Session session = null;
+		Channel channel = null;
 
 		try {
-			ApplicationKey appKey = PrivateKeyDB.getApplicationKey();
-			//check to see if passphrase has been provided
-			if (passphrase == null || passphrase.trim().equals("")) {
-				passphrase = appKey.getPassphrase();
-				//check for null inorder to use key without passphrase
-				if (passphrase == null) {
-					passphrase = "";
-				}
-			}
-			//add private key
-			jsch.addIdentity(appKey.getId().toString(), appKey.getPrivateKey().trim().getBytes(), appKey.getPublicKey().getBytes(), passphrase.getBytes());
+			ApplicationKey appKey = getApplicationKey();
 
-			//create session
-			Session session = jsch.getSession(hostSystem.getUser(), hostSystem.getHost(), hostSystem.getPort());
-
-			//set password if it exists
-			if (password != null && !password.trim().equals("")) {
-				session.setPassword(password);
-			}
-			session.setConfig("StrictHostKeyChecking", "no");
-			session.setConfig("PreferredAuthentications", "publickey,keyboard-interactive,password");
-			session.setServerAliveInterval(SERVER_ALIVE_INTERVAL);
-			session.connect(SESSION_TIMEOUT);
-			Channel channel = session.openChannel("shell");
+			session = getSession(userId, hostSystem, appKey, passphrase, password);
+			channel = session.openChannel("shell");
 			if ("true".equals(AppConfig.getProperty("agentForwarding"))) {
 				((ChannelShell) channel).setAgentForwarding(true);
 			}
 			((ChannelShell) channel).setPtyType("xterm");
 
-			InputStream outFromChannel = channel.getInputStream();
+			//output is held outside the session thread so pausing this terminal does not hold up other channels of the session
+			InputStream outFromChannel = new ChannelOutputPipe(channel);
 
 
 			//new session output
 			SessionOutput sessionOutput = new SessionOutput(sessionId, hostSystem);
 
-			Runnable run = new SecureShellTask(sessionOutput, outFromChannel);
-			Thread thread = new Thread(run);
-			thread.start();
+			TerminalReaderUtil.startReader(sessionId, instanceId, new SecureShellTask(sessionOutput, outFromChannel));
 
 
 			OutputStream inputToChannel = channel.getOutputStream();
@@ -496,8 +734,8 @@ public class SSHUtil {
 			schSession.setOutFromChannel(outFromChannel);
 			schSession.setHostSystem(hostSystem);
 
-			//refresh keys for session
-			addPubKey(hostSystem, session, appKey.getPublicKey());
+			//refresh keys for session if they changed since last synced
+			addPubKey(hostSystem, session, appKey.getPublicKey(), false);
 
 
 		} catch (Exception e) {
@@ -513,26 +751,16 @@ public class SSHUtil {
 			} else {
 				hostSystem.setStatusCd(HostSystem.GENERIC_FAIL_STATUS);
 			}
+			//release connection if the terminal could not be started
+			if (channel != null) {
+				channel.disconnect();
+			}
+			SSHSessionUtil.release(session);
 		}
 
 
 		//add session to map
-		if (hostSystem.getStatusCd().equals(HostSystem.SUCCESS_STATUS)) {
-			//get the server maps for user
-			UserSchSessions userSchSessions = userSessionMap.get(sessionId);
-
-			//if no user session create a new one
-			if (userSchSessions == null) {
-				userSchSessions = new UserSchSessions();
-			}
-			Map<Integer, SchSession> schSessionMap = userSchSessions.getSchSessionMap();
-
-			//add server information
-			schSessionMap.put(instanceId, schSession);
-			userSchSessions.setSchSessionMap(schSessionMap);
-			//add back to map
-			userSessionMap.put(sessionId, userSchSessions);
-		}
+		addSchSession(sessionId, instanceId, HostSystem.SUCCESS_STATUS.equals(hostSystem.getStatusCd()) ? schSession : null, userSessionMap);
 
 		SystemStatusDB.updateSystemStatus(hostSystem, userId);
 		SystemDB.updateSystem(hostSystem);
@@ -15,33 +15,47 @@
  */
 package com.keybox.manage.util;
 
-import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonSerializationContext;
-import com.google.gson.JsonSerializer;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 import com.keybox.manage.model.AuditWrapper;
-import java.lang.reflect.Type;
-import java.util.Date;
+import com.keybox.manage.model.SessionOutput;
+import com.keybox.manage.model.User;
+
+import java.io.IOException;
+
+/**
+ * Writes system audit records field by field to the JSON stream without building an object tree
+ */
+public class SessionOutputSerializer extends TypeAdapter<AuditWrapper> {
 
-public class SessionOutputSerializer implements JsonSerializer<Object> {
     @Override
-    public JsonElement serialize(Object src, Type typeOfSrc, JsonSerializationContext context) {
-        JsonObject object = new JsonObject();
-        if (typeOfSrc.equals(AuditWrapper.class)) {
-            AuditWrapper auditWrapper = (AuditWrapper) src;
-            object.addProperty("user_id", auditWrapper.getUser().getId());
-            object.addProperty("username", auditWrapper.getUser().getUsername());
-            object.addProperty("user_type", auditWrapper.getUser().getUserType());
-            object.addProperty("first_nm", auditWrapper.getUser().getFirstNm());
-            object.addProperty("last_nm", auditWrapper.getUser().getLastNm());
-            object.addProperty("email", auditWrapper.getUser().getEmail());
-            object.addProperty("session_id", auditWrapper.getSessionOutput().getSessionId());
-            object.addProperty("instance_id", auditWrapper.getSessionOutput().getInstanceId());
-            object.addProperty("host_id", auditWrapper.getSessionOutput().getId());
-            object.addProperty("host", auditWrapper.getSessionOutput().getDisplayLabel());
-            object.addProperty("output", auditWrapper.getSessionOutput().getOutput().toString());
-            object.addProperty("timestamp", new Date().getTime());
+    public void write(JsonWriter out, AuditWrapper auditWrapper) throws IOException {
+        if (auditWrapper == null) {
+            out.nullValue();
+            return;
         }
-        return object;
+        User user = auditWrapper.getUser();
+        SessionOutput sessionOutput = auditWrapper.getSessionOutput();
+        out.beginObject();
+        out.name("user_id").value(user.getId());
+        out.name("username").value(user.getUsername());
+        out.name("user_type").value(user.getUserType());
+        out.name("first_nm").value(user.getFirstNm());
+        out.name("last_nm").value(user.getLastNm());
+        out.name("email").value(user.getEmail());
+        out.name("session_id").value(sessionOutput.getSessionId());
+        out.name("instance_id").value(sessionOutput.getInstanceId());
+        out.name("host_id").value(sessionOutput.getId());
+        out.name("host").value(sessionOutput.getDisplayLabel());
+        out.name("output").value(sessionOutput.getOutput().toString());
+        //time the output was drained from the terminal
+        out.name("timestamp").value(sessionOutput.getLogTm() != null ? sessionOutput.getLogTm().getTime() : System.currentTimeMillis());
+        out.endObject();
+    }
+
+    @Override
+    public AuditWrapper read(JsonReader in) throws IOException {
+        throw new UnsupportedOperationException("System audit records are write only");
     }
 }
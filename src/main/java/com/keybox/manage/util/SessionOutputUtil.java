@@ -18,18 +18,18 @@ package com.keybox.manage.util;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.keybox.common.util.AppConfig;
-import com.keybox.manage.db.SessionAuditDB;
 import com.keybox.manage.model.AuditWrapper;
 import com.keybox.manage.model.SessionOutput;
+import com.keybox.manage.model.TermOutputBuffer;
 import com.keybox.manage.model.User;
 import com.keybox.manage.model.UserSessionsOutput;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.apache.commons.lang3.StringUtils;
 
-import java.sql.Connection;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Utility to is used to store the output for a session until the ajax call that brings it to the screen
@@ -38,11 +38,20 @@ public class SessionOutputUtil {
 
     private static Logger log = LoggerFactory.getLogger(SessionOutputUtil.class);
 
-    private static Map<Long, UserSessionsOutput> userSessionsOutputMap = new ConcurrentHashMap<>();
+    private static ConcurrentMap<Long, UserSessionsOutput> userSessionsOutputMap = new ConcurrentHashMap<>();
     public final static boolean enableInternalAudit = "true".equals(AppConfig.getProperty("enableInternalAudit"));
     private static Gson gson = new GsonBuilder().registerTypeAdapter(AuditWrapper.class, new SessionOutputSerializer()).create();
     private static Logger systemAuditLogger = LoggerFactory.getLogger("com.keybox.manage.util.SystemAudit");
 
+    //max characters of pending output held per terminal before the oldest output is discarded
+    public static final int TERMINAL_BUFFER_SIZE = StringUtils.isNumeric(AppConfig.getProperty("terminalBufferSize")) ? Integer.parseInt(AppConfig.getProperty("terminalBufferSize")) : 262144;
+    public static final boolean TERMINAL_BUFFER_OFF_HEAP = "true".equals(AppConfig.getProperty("terminalBufferOffHeap"));
+    //pending characters per terminal at which reading from the ssh channel is paused until sent output is released
+    public static final int TERMINAL_PAUSE_THRESHOLD = StringUtils.isNumeric(AppConfig.getProperty("terminalPauseThreshold")) ? Integer.parseInt(AppConfig.getProperty("terminalPauseThreshold")) : 65536;
+    private static final int TERMINAL_RESUME_THRESHOLD = TERMINAL_PAUSE_THRESHOLD / 2;
+    //max time to pause before checking whether the terminal is still open
+    private static final long MAX_PAUSE = 1000;
+
     private SessionOutputUtil() {
     }
 
@@ -55,11 +64,47 @@ public class SessionOutputUtil {
         UserSessionsOutput userSessionsOutput = userSessionsOutputMap.get(sessionId);
         if (userSessionsOutput != null) {
             userSessionsOutput.getSessionOutputMap().clear();
+            //wake output task so it can exit
+            userSessionsOutput.signalOutput();
         }
         userSessionsOutputMap.remove(sessionId);
 
     }
 
+    /**
+     * returns output container for user session and creates it if it does not exist
+     *
+     * @param sessionId session id
+     * @return user session output
+     */
+    private static UserSessionsOutput getUserSessionsOutput(Long sessionId) {
+        UserSessionsOutput userSessionsOutput = userSessionsOutputMap.get(sessionId);
+        if (userSessionsOutput == null) {
+            userSessionsOutputMap.putIfAbsent(sessionId, new UserSessionsOutput());
+            userSessionsOutput = userSessionsOutputMap.get(sessionId);
+        }
+        return userSessionsOutput;
+    }
+
+    /**
+     * waits for terminal output to be added to the user session
+     *
+     * @param sessionId session id
+     * @param timeout   max time to wait in milliseconds
+     * @return true if output was added before the timeout, false if the session has been removed
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public static boolean waitForOutput(Long sessionId, long timeout) throws InterruptedException {
+        //do not re-create output for a session removed while the task was waiting
+        UserSessionsOutput userSessionsOutput = userSessionsOutputMap.get(sessionId);
+        if (userSessionsOutput == null) {
+            //no terminals yet or session closed, wait so the caller does not spin
+            Thread.sleep(timeout);
+            return false;
+        }
+        return userSessionsOutput.awaitOutput(timeout);
+    }
+
     /**
      * removes session output for host system
      *
@@ -81,11 +126,8 @@ public class SessionOutputUtil {
      */
     public static void addOutput(SessionOutput sessionOutput) {
 
-        UserSessionsOutput userSessionsOutput = userSessionsOutputMap.get(sessionOutput.getSessionId());
-        if (userSessionsOutput == null) {
-            userSessionsOutputMap.put(sessionOutput.getSessionId(), new UserSessionsOutput());
-            userSessionsOutput = userSessionsOutputMap.get(sessionOutput.getSessionId());
-        }
+        sessionOutput.setOutputBuffer(new TermOutputBuffer(TERMINAL_BUFFER_SIZE, TERMINAL_BUFFER_OFF_HEAP));
+        UserSessionsOutput userSessionsOutput = getUserSessionsOutput(sessionOutput.getSessionId());
         userSessionsOutput.getSessionOutputMap().put(sessionOutput.getInstanceId(), sessionOutput);
 
 
@@ -105,9 +147,70 @@ public class SessionOutputUtil {
 
         UserSessionsOutput userSessionsOutput = userSessionsOutputMap.get(sessionId);
         if (userSessionsOutput != null) {
-            userSessionsOutput.getSessionOutputMap().get(instanceId).getOutput().append(value, offset, count);
+            SessionOutput sessionOutput = userSessionsOutput.getSessionOutputMap().get(instanceId);
+            if (sessionOutput != null && sessionOutput.getOutputBuffer() != null) {
+                sessionOutput.getOutputBuffer().write(value, offset, count);
+                userSessionsOutput.signalOutput();
+            }
+        }
+
+    }
+
+
+    /**
+     * blocks the terminal reader while the client has not caught up with pending output.
+     * While paused the ssh channel is not read so the remote side is held back by the SSH window.
+     *
+     * @param sessionId  session id
+     * @param instanceId id of host system instance
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public static void awaitOutputCapacity(Long sessionId, Integer instanceId) throws InterruptedException {
+
+        if (TERMINAL_PAUSE_THRESHOLD <= 0) {
+            return;
+        }
+        TermOutputBuffer outputBuffer = getOutputBuffer(sessionId, instanceId);
+        while (outputBuffer != null
+                && !outputBuffer.awaitCapacity(TERMINAL_PAUSE_THRESHOLD, TERMINAL_RESUME_THRESHOLD, MAX_PAUSE)) {
+            //stop waiting if the terminal has been removed
+            outputBuffer = getOutputBuffer(sessionId, instanceId);
         }
+    }
 
+    /**
+     * releases output that has been sent to the client so paused terminal readers can resume
+     *
+     * @param sessionId  session id
+     * @param outputList output that was sent
+     */
+    public static void releaseOutput(Long sessionId, List<SessionOutput> outputList) {
+
+        for (SessionOutput sessionOutput : outputList) {
+            TermOutputBuffer outputBuffer = getOutputBuffer(sessionId, sessionOutput.getInstanceId());
+            if (outputBuffer != null) {
+                outputBuffer.release(sessionOutput.getOutput().length());
+            }
+        }
+    }
+
+    /**
+     * returns output buffer for live terminal
+     *
+     * @param sessionId  session id
+     * @param instanceId id of host system instance
+     * @return output buffer or null if the terminal is no longer open
+     */
+    private static TermOutputBuffer getOutputBuffer(Long sessionId, Integer instanceId) {
+
+        UserSessionsOutput userSessionsOutput = userSessionsOutputMap.get(sessionId);
+        if (userSessionsOutput != null) {
+            SessionOutput sessionOutput = userSessionsOutput.getSessionOutputMap().get(instanceId);
+            if (sessionOutput != null) {
+                return sessionOutput.getOutputBuffer();
+            }
+        }
+        return null;
     }
 
 
@@ -118,7 +221,7 @@ public class SessionOutputUtil {
      * @param user user auth object
      * @return session output list
      */
-    public static List<SessionOutput> getOutput(Connection con, Long sessionId, User user) {
+    public static List<SessionOutput> getOutput(Long sessionId, User user) {
         List<SessionOutput> outputList = new ArrayList<>();
 
         UserSessionsOutput userSessionsOutput = userSessionsOutputMap.get(sessionId);
@@ -128,20 +231,31 @@ public class SessionOutputUtil {
 
                 //get output chars and set to output
                 try {
-                    SessionOutput sessionOutput = userSessionsOutput.getSessionOutputMap().get(key);
-                    if (sessionOutput!=null && sessionOutput.getOutput() != null
-                            && StringUtils.isNotEmpty(sessionOutput.getOutput())) {
+                    SessionOutput liveOutput = userSessionsOutput.getSessionOutputMap().get(key);
+                    if (liveOutput != null && liveOutput.getOutputBuffer() != null
+                            && liveOutput.getOutputBuffer().size() > 0) {
+
+                        //drain pending output into a snapshot so the terminal can keep writing
+                        SessionOutput sessionOutput = new SessionOutput(sessionId, liveOutput);
+                        liveOutput.getOutputBuffer().drain(sessionOutput.getOutput());
+                        sessionOutput.setLogTm(new Date());
 
                         outputList.add(sessionOutput);
 
-                        //send to audit logger
-                        systemAuditLogger.info(gson.toJson(new AuditWrapper(user, sessionOutput)));
+                        //send to audit logger, skipped entirely unless the system audit logger is configured
+                        if (systemAuditLogger.isInfoEnabled()) {
+                            systemAuditLogger.info(gson.toJson(new AuditWrapper(user, sessionOutput)));
+                        }
 
+                        //queue for batched write to the internal audit log
                         if(enableInternalAudit) {
-                            SessionAuditDB.insertTerminalLog(con, sessionOutput);
+                            TerminalAuditUtil.enqueue(sessionOutput);
                         }
 
-                        userSessionsOutput.getSessionOutputMap().put(key, new SessionOutput(sessionId, sessionOutput));
+                        long dropped = liveOutput.getOutputBuffer().getDroppedCount();
+                        if (dropped > 0) {
+                            log.debug("Terminal output buffer full for session " + sessionId + " instance " + key + ", total characters discarded: " + dropped);
+                        }
                     }
                 } catch (Exception ex) {
                     log.error(ex.toString(), ex);
@@ -0,0 +1,202 @@
+/**
+ * Copyright 2013 Sean Kavanagh - sean.p.kavanagh6@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.keybox.manage.util;
+
+import com.keybox.common.util.AppConfig;
+import com.keybox.manage.model.SessionOutput;
+import com.keybox.manage.task.TerminalAuditTask;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Utility to queue terminal output for the internal audit log. Output is written in
+ * batches by a background task so a slow audit DB does not stall terminal output.
+ */
+public class TerminalAuditUtil {
+
+    private static Logger log = LoggerFactory.getLogger(TerminalAuditUtil.class);
+
+    public static final String BLOCK_WHEN_FULL = "block";
+    public static final String DROP_WHEN_FULL = "drop";
+
+    public static final int DEFAULT_QUEUE_SIZE = 10000;
+    public static final int QUEUE_SIZE = getQueueSize();
+    public static final int BATCH_SIZE = StringUtils.isNumeric(AppConfig.getProperty("auditBatchSize")) ? Integer.parseInt(AppConfig.getProperty("auditBatchSize")) : 500;
+    public static final long FLUSH_INTERVAL = StringUtils.isNumeric(AppConfig.getProperty("auditFlushInterval")) ? Long.parseLong(AppConfig.getProperty("auditFlushInterval")) : 1000;
+    //dropping by default keeps the terminal output loop from waiting on a slow audit DB
+    public static final String QUEUE_FULL_ACTION = AppConfig.getProperty("auditQueueFullAction", DROP_WHEN_FULL);
+    public static final long QUEUE_FULL_WAIT = StringUtils.isNumeric(AppConfig.getProperty("auditQueueFullWait")) ? Long.parseLong(AppConfig.getProperty("auditQueueFullWait")) : 5000;
+
+    //log a warning for the first dropped chunk and then every n chunks
+    private static final long DROP_WARN_INTERVAL = 1000;
+
+    private static final BlockingQueue<SessionOutput> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+
+    //terminals that lost queued entries since their last entry was queued
+    private static final Set<String> gapSet = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private static final AtomicLong enqueuedCount = new AtomicLong();
+    private static final AtomicLong writtenCount = new AtomicLong();
+    private static final AtomicLong droppedCount = new AtomicLong();
+    private static final AtomicLong failedCount = new AtomicLong();
+    private static final AtomicLong batchCount = new AtomicLong();
+    private static volatile long lastBatchTime = 0;
+
+    private static final TerminalAuditTask writerTask = new TerminalAuditTask(queue, BATCH_SIZE, FLUSH_INTERVAL);
+
+    static {
+        Thread thread = new Thread(writerTask, "keybox-audit-writer");
+        thread.setDaemon(true);
+        thread.start();
+
+        //write whatever is still queued when the server stops
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writerTask.flush();
+            }
+        }, "keybox-audit-writer-shutdown"));
+    }
+
+    private TerminalAuditUtil() {
+    }
+
+    /**
+     * returns configured queue size, an unset or invalid size uses the default
+     *
+     * @return audit queue size
+     */
+    private static int getQueueSize() {
+        String queueSize = AppConfig.getProperty("auditQueueSize");
+        if (StringUtils.isNumeric(queueSize) && Integer.parseInt(queueSize) > 0) {
+            return Integer.parseInt(queueSize);
+        }
+        if (StringUtils.isNotEmpty(queueSize)) {
+            log.warn("Invalid auditQueueSize " + queueSize + ", must be greater than 0. Using " + DEFAULT_QUEUE_SIZE);
+        }
+        return DEFAULT_QUEUE_SIZE;
+    }
+
+    /**
+     * queues terminal output to be written to the audit log
+     *
+     * @param sessionOutput output from session terminal
+     * @return true if queued, false if dropped because the queue is full
+     */
+    public static boolean enqueue(SessionOutput sessionOutput) {
+        return enqueue(sessionOutput, BLOCK_WHEN_FULL.equals(QUEUE_FULL_ACTION));
+    }
+
+    /**
+     * queues keys sent to a terminal, waiting for space whatever auditQueueFullAction is set to as
+     * keys are small and rare and a lost key leaves the command parser out of step with the output
+     *
+     * @param sessionOutput keys sent to session terminal
+     * @return true if queued, false if dropped because the queue stayed full
+     */
+    public static boolean enqueueInput(SessionOutput sessionOutput) {
+        return enqueue(sessionOutput, true);
+    }
+
+    /**
+     * queues output or keys, marking the first entry queued after a terminal lost entries
+     *
+     * @param sessionOutput output or keys from session terminal
+     * @param wait          true to wait for space when the queue is full
+     * @return true if queued
+     */
+    private static boolean enqueue(SessionOutput sessionOutput, boolean wait) {
+
+        if (sessionOutput.getLogTm() == null) {
+            sessionOutput.setLogTm(new Date());
+        }
+        String key = sessionOutput.getSessionId() + ":" + sessionOutput.getInstanceId();
+        if (gapSet.remove(key)) {
+            sessionOutput.setAuditGap(true);
+        }
+        boolean queued = queue.offer(sessionOutput);
+        if (!queued && wait) {
+            try {
+                queued = queue.offer(sessionOutput, QUEUE_FULL_WAIT, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        if (queued) {
+            enqueuedCount.incrementAndGet();
+        } else {
+            gapSet.add(key);
+            long dropped = droppedCount.incrementAndGet();
+            if (dropped == 1 || dropped % DROP_WARN_INTERVAL == 0) {
+                log.warn("Terminal audit queue full (" + QUEUE_SIZE + "), output dropped from audit log. Total dropped: " + dropped);
+            }
+        }
+        return queued;
+    }
+
+    /**
+     * records the result of a batch written by the audit task
+     *
+     * @param written number of chunks written
+     * @param failed  number of chunks that could not be written
+     * @param time    time to write batch in milliseconds
+     */
+    public static void recordBatch(int written, int failed, long time) {
+        writtenCount.addAndGet(written);
+        failedCount.addAndGet(failed);
+        batchCount.incrementAndGet();
+        lastBatchTime = time;
+    }
+
+    public static int getQueueDepth() {
+        return queue.size();
+    }
+
+    public static long getEnqueuedCount() {
+        return enqueuedCount.get();
+    }
+
+    public static long getWrittenCount() {
+        return writtenCount.get();
+    }
+
+    public static long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    public static long getFailedCount() {
+        return failedCount.get();
+    }
+
+    public static long getBatchCount() {
+        return batchCount.get();
+    }
+
+    public static long getLastBatchTime() {
+        return lastBatchTime;
+    }
+}
@@ -0,0 +1,219 @@
+/**
+ * Copyright 2013 Sean Kavanagh - sean.p.kavanagh6@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.keybox.manage.util;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Derives executed command lines for a terminal. Enter and Ctrl-C key presses sent to the
+ * terminal are queued in the order they were sent and the echoed output is followed line by
+ * line, skipping escape sequences and applying backspaces. When a line the shell ends starts
+ * with a prompt and an enter is waiting, the text after the prompt is the command, which also
+ * picks up tab completion and history recall. Lines without a prompt, such as program output,
+ * pasted lines still waiting for the shell and password entry, leave the queued keys for the
+ * next prompt line. A prompt line ending in ^C was interrupted and is not recorded. Cursor
+ * movement within a line is not followed.
+ */
+public class TerminalCommandParser {
+
+    private static final char ESC = '\u001B';
+    private static final char BEL = '\u0007';
+    private static final char BS = '\b';
+
+    //keys queued for prompt lines
+    private static final char ENTER = '\r';
+    private static final char INTERRUPT = '\u0003';
+    //echo of Ctrl-C at the end of an interrupted line
+    private static final String INTERRUPT_ECHO = "^C";
+
+    private static final int TEXT = 0;
+    private static final int ESCAPE = 1;
+    private static final int CSI = 2;
+    private static final int OSC = 3;
+    private static final int OSC_ESCAPE = 4;
+
+    public static final int MAX_COMMAND_LENGTH = 1000;
+    //max characters held for the current line
+    private static final int MAX_LINE_LENGTH = 4096;
+    //max keys waiting for their line, full screen programs take enters without ending prompt lines
+    private static final int MAX_PENDING = 16;
+
+    private final Pattern promptPattern;
+    private final StringBuilder line = new StringBuilder();
+    private int state = TEXT;
+    private boolean carriageReturn = false;
+    private final LinkedList<Character> pendingList = new LinkedList<>();
+
+    //state as of the last commit, restored on rollback
+    private final StringBuilder committedLine = new StringBuilder();
+    private int committedState = TEXT;
+    private boolean committedCarriageReturn = false;
+    private final LinkedList<Character> committedPendingList = new LinkedList<>();
+
+    /**
+     * @param promptPattern pattern matching the prompt at the start of a line
+     */
+    public TerminalCommandParser(Pattern promptPattern) {
+        this.promptPattern = promptPattern;
+    }
+
+    /**
+     * records enter key presses sent to the terminal
+     *
+     * @param count number of enters
+     */
+    public synchronized void enter(int count) {
+        for (int i = 0; i < count; i++) {
+            addPending(ENTER);
+        }
+    }
+
+    /**
+     * records a Ctrl-C sent to the terminal, which ends the line being edited at the prompt
+     */
+    public synchronized void cancel() {
+        addPending(INTERRUPT);
+    }
+
+    /**
+     * discards keys and the partial line, used when output or keys for the terminal were dropped
+     * so the queued keys no longer match the output
+     */
+    public synchronized void reset() {
+        pendingList.clear();
+        line.setLength(0);
+        state = TEXT;
+        carriageReturn = false;
+    }
+
+    /**
+     * keeps the current state once the commands found are persisted
+     */
+    public synchronized void commit() {
+        committedLine.setLength(0);
+        committedLine.append(line);
+        committedState = state;
+        committedCarriageReturn = carriageReturn;
+        committedPendingList.clear();
+        committedPendingList.addAll(pendingList);
+    }
+
+    /**
+     * returns to the state of the last commit so keys and output are not applied twice when
+     * a batch that could not be persisted is written again
+     */
+    public synchronized void rollback() {
+        line.setLength(0);
+        line.append(committedLine);
+        state = committedState;
+        carriageReturn = committedCarriageReturn;
+        pendingList.clear();
+        pendingList.addAll(committedPendingList);
+    }
+
+    private void addPending(char key) {
+        pendingList.add(key);
+        if (pendingList.size() > MAX_PENDING) {
+            pendingList.removeFirst();
+        }
+    }
+
+    /**
+     * follows a chunk of terminal output, adding commands for lines ended after an enter
+     *
+     * @param chunk       terminal output
+     * @param commandList list commands are added to
+     */
+    public synchronized void parse(String chunk, List<String> commandList) {
+        for (int i = 0; i < chunk.length(); i++) {
+            char c = chunk.charAt(i);
+            switch (state) {
+                case ESCAPE:
+                    state = c == '[' ? CSI : (c == ']' ? OSC : TEXT);
+                    continue;
+                case CSI:
+                    if (c >= 0x40 && c <= 0x7e) {
+                        state = TEXT;
+                    }
+                    continue;
+                case OSC:
+                    if (c == BEL) {
+                        state = TEXT;
+                    } else if (c == ESC) {
+                        state = OSC_ESCAPE;
+                    }
+                    continue;
+                case OSC_ESCAPE:
+                    state = c == '\\' ? TEXT : OSC;
+                    continue;
+                default:
+                    break;
+            }
+
+            //carriage return not followed by a new line redraws the line
+            if (carriageReturn && c != '\n') {
+                line.setLength(0);
+            }
+            carriageReturn = false;
+
+            if (c == ESC) {
+                state = ESCAPE;
+            } else if (c == '\r') {
+                carriageReturn = true;
+            } else if (c == '\n') {
+                endLine(commandList);
+            } else if (c == BS) {
+                if (line.length() > 0) {
+                    line.setLength(line.length() - 1);
+                }
+            } else if (c >= ' ' && line.length() < MAX_LINE_LENGTH) {
+                line.append(c);
+            }
+        }
+    }
+
+    /**
+     * adds the command if the line starts with a prompt and was ended by an enter
+     *
+     * @param commandList list commands are added to
+     */
+    private void endLine(List<String> commandList) {
+        Matcher matcher = promptPattern.matcher(line);
+        if (!pendingList.isEmpty() && matcher.find()) {
+            String command = line.substring(matcher.end()).trim();
+            if (command.endsWith(INTERRUPT_ECHO) && pendingList.contains(INTERRUPT)) {
+                //interrupted at the prompt, the line is ended by its Ctrl-C
+                while (!pendingList.isEmpty() && pendingList.removeFirst() != INTERRUPT) {
+                }
+            } else {
+                //Ctrl-C for a running program ends no prompt line
+                while (!pendingList.isEmpty() && pendingList.getFirst() == INTERRUPT) {
+                    pendingList.removeFirst();
+                }
+                if (!pendingList.isEmpty()) {
+                    pendingList.removeFirst();
+                    if (!command.isEmpty()) {
+                        commandList.add(command.length() > MAX_COMMAND_LENGTH ? command.substring(0, MAX_COMMAND_LENGTH) : command);
+                    }
+                }
+            }
+        }
+        line.setLength(0);
+    }
+}
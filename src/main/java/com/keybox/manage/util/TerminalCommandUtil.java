@@ -0,0 +1,197 @@
+/**
+ * Copyright 2013 Sean Kavanagh - sean.p.kavanagh6@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.keybox.manage.util;
+
+import com.keybox.common.util.AppConfig;
+import com.keybox.manage.model.SessionOutput;
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Utility to extract the commands run in each terminal. Enter and Ctrl-C key presses from the
+ * web socket are queued for the audit writer with the terminal output, which passes both to the
+ * terminal's parser in queue order as they are persisted, storing the commands found in
+ * terminal_command.
+ */
+public class TerminalCommandUtil {
+
+    public static final boolean COMMAND_INDEX_ENABLED = !"false".equals(AppConfig.getProperty("auditCommandIndex"));
+    //prompt at the start of a line, text up to the first $ # % or > followed by a space
+    private static final Pattern PROMPT_PATTERN = Pattern.compile(StringUtils.isNotEmpty(AppConfig.getProperty("auditCommandPrompt")) ? AppConfig.getProperty("auditCommandPrompt") : "^[^$#%>]*[$#%>] ");
+
+    private static final int ENTER_KEY = 13;
+    private static final int CTRL_C_KEY = 67;
+    //keys queued with terminal output
+    private static final char ENTER = '\r';
+    private static final char INTERRUPT = '\u0003';
+
+    //max number of terminals with parser state held
+    private static final int MAX_PARSERS = 5000;
+
+    private static final Map<String, TerminalCommandParser> parserMap = new LinkedHashMap<String, TerminalCommandParser>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, TerminalCommandParser> eldest) {
+            return size() > MAX_PARSERS;
+        }
+    };
+
+    private TerminalCommandUtil() {
+    }
+
+    /**
+     * queues enter and Ctrl-C key presses sent to a terminal for the audit writer
+     *
+     * @param sessionId  session id
+     * @param instanceId instance id for terminal session
+     * @param command    characters sent to the terminal
+     * @param keyCode    key code sent to the terminal
+     */
+    public static void input(Long sessionId, Integer instanceId, String command, Integer keyCode) {
+        if (!COMMAND_INDEX_ENABLED || !SessionOutputUtil.enableInternalAudit) {
+            return;
+        }
+        String input = null;
+        if (keyCode != null) {
+            if (keyCode == ENTER_KEY) {
+                input = String.valueOf(ENTER);
+            } else if (keyCode == CTRL_C_KEY) {
+                input = String.valueOf(INTERRUPT);
+            }
+        } else if (command != null) {
+            //pasted text may hold several lines
+            int enters = StringUtils.countMatches(command, "\r") + StringUtils.countMatches(command, "\n") - StringUtils.countMatches(command, "\r\n");
+            if (enters > 0) {
+                input = StringUtils.repeat(ENTER, enters);
+            }
+        }
+        if (input != null) {
+            SessionOutput sessionOutput = new SessionOutput();
+            sessionOutput.setSessionId(sessionId);
+            sessionOutput.setInstanceId(instanceId);
+            sessionOutput.setInput(input);
+            TerminalAuditUtil.enqueueInput(sessionOutput);
+        }
+    }
+
+    /**
+     * returns commands completed by the output chunk, or records the keys it carries
+     *
+     * @param sessionOutput output or input from session terminal
+     * @return list of commands
+     */
+    public static List<String> getCommands(SessionOutput sessionOutput) {
+        List<String> commandList = new ArrayList<>();
+        TerminalCommandParser parser = getParser(sessionOutput.getSessionId(), sessionOutput.getInstanceId());
+        //keys queued before the gap may belong to lines that were dropped
+        if (sessionOutput.isAuditGap()) {
+            parser.reset();
+        }
+        if (sessionOutput.getInput() != null) {
+            for (char c : sessionOutput.getInput().toCharArray()) {
+                if (c == INTERRUPT) {
+                    parser.cancel();
+                } else {
+                    parser.enter(1);
+                }
+            }
+        } else {
+            parser.parse(sessionOutput.getOutput().toString(), commandList);
+        }
+        return commandList;
+    }
+
+    /**
+     * keeps parser state for the terminals in the batch once its commands are persisted
+     *
+     * @param sessionOutputList output and keys passed to getCommands
+     */
+    public static void commit(List<SessionOutput> sessionOutputList) {
+        for (TerminalCommandParser parser : getParsers(sessionOutputList)) {
+            parser.commit();
+        }
+    }
+
+    /**
+     * returns parser state for the terminals in the batch to the last commit when its commands
+     * could not be persisted, so the batch is parsed from the same state if written again
+     *
+     * @param sessionOutputList output and keys passed to getCommands
+     */
+    public static void rollback(List<SessionOutput> sessionOutputList) {
+        for (TerminalCommandParser parser : getParsers(sessionOutputList)) {
+            parser.rollback();
+        }
+    }
+
+    /**
+     * discards keys and partial lines for the terminals in a batch that was dropped
+     *
+     * @param sessionOutputList output and keys that were not persisted
+     */
+    public static void reset(List<SessionOutput> sessionOutputList) {
+        for (TerminalCommandParser parser : getParsers(sessionOutputList)) {
+            parser.reset();
+            parser.commit();
+        }
+    }
+
+    /**
+     * removes parser state once a terminal is closed
+     *
+     * @param sessionId  session id
+     * @param instanceId instance id for terminal session
+     */
+    public static void removeParser(Long sessionId, Integer instanceId) {
+        synchronized (parserMap) {
+            parserMap.remove(sessionId + ":" + instanceId);
+        }
+    }
+
+    private static Set<TerminalCommandParser> getParsers(List<SessionOutput> sessionOutputList) {
+        Set<TerminalCommandParser> parserSet = Collections.newSetFromMap(new IdentityHashMap<TerminalCommandParser, Boolean>());
+        for (SessionOutput sessionOutput : sessionOutputList) {
+            parserSet.add(getParser(sessionOutput.getSessionId(), sessionOutput.getInstanceId()));
+        }
+        return parserSet;
+    }
+
+    /**
+     * returns parser for terminal, creating it on first use
+     *
+     * @param sessionId  session id
+     * @param instanceId instance id for terminal session
+     * @return command parser
+     */
+    private static TerminalCommandParser getParser(Long sessionId, Integer instanceId) {
+        String key = sessionId + ":" + instanceId;
+        synchronized (parserMap) {
+            TerminalCommandParser parser = parserMap.get(key);
+            if (parser == null) {
+                parser = new TerminalCommandParser(PROMPT_PATTERN);
+                parserMap.put(key, parser);
+            }
+            return parser;
+        }
+    }
+}
@@ -0,0 +1,204 @@
+/**
+ * Copyright 2013 Sean Kavanagh - sean.p.kavanagh6@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.keybox.manage.util;
+
+import com.keybox.common.util.AppConfig;
+import com.keybox.manage.model.HostSystem;
+import com.keybox.manage.model.UserSchSessions;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Utility to open the terminals for a composite session on several systems at once. Connects
+ * run on a shared pool that grows with demand, each call running at most terminalConnectThreads
+ * connects at a time so one user opening many systems does not hold up the others. The status
+ * of each system is kept per session so the browser can show progress while the terminals are
+ * opened.
+ */
+public class TerminalConnectUtil {
+
+    private static Logger log = LoggerFactory.getLogger(TerminalConnectUtil.class);
+
+    public static final int CONNECT_THREADS = StringUtils.isNumeric(AppConfig.getProperty("terminalConnectThreads")) && Integer.parseInt(AppConfig.getProperty("terminalConnectThreads")) > 0 ? Integer.parseInt(AppConfig.getProperty("terminalConnectThreads")) : 10;
+
+    private static final ThreadPoolExecutor executor = createExecutor();
+
+    //session id, system id, connect status
+    private static ConcurrentMap<Long, Map<Long, HostSystem>> connectStatusMap = new ConcurrentHashMap<>();
+
+    private TerminalConnectUtil() {
+    }
+
+    private static ThreadPoolExecutor createExecutor() {
+        //threads are limited per call, so the pool hands each connect straight to a thread
+        return new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60L, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(), new ConnectThreadFactory());
+    }
+
+    /**
+     * opens terminals on the systems at the same time and waits for all of them
+     *
+     * @param passphrase     key passphrase, application key passphrase if empty
+     * @param password       password, key authentication only if empty
+     * @param userId         user id
+     * @param sessionId      session id
+     * @param hostSystemList systems to open terminals on
+     * @param userSessionMap user session map
+     * @return status of each system in the order given
+     */
+    public static List<HostSystem> openSSHTerms(final String passphrase, final String password, final Long userId, final Long sessionId,
+                                                List<HostSystem> hostSystemList, final Map<Long, UserSchSessions> userSessionMap) {
+
+        Map<Long, HostSystem> statusMap = new ConcurrentHashMap<>();
+        for (HostSystem hostSystem : hostSystemList) {
+            statusMap.put(hostSystem.getId(), getStatus(hostSystem, HostSystem.INITIAL_STATUS));
+        }
+        connectStatusMap.put(sessionId, statusMap);
+
+        //connects running for this call
+        final Semaphore permits = new Semaphore(CONNECT_THREADS);
+        List<Future<HostSystem>> futureList = new ArrayList<>();
+        for (final HostSystem hostSystem : hostSystemList) {
+            try {
+                permits.acquire();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            futureList.add(executor.submit(new Callable<HostSystem>() {
+                @Override
+                public HostSystem call() {
+                    try {
+                        HostSystem result = SSHUtil.openSSHTermOnSystem(passphrase, password, userId, sessionId, hostSystem, userSessionMap);
+                        setStatus(sessionId, result);
+                        return result;
+                    } finally {
+                        permits.release();
+                    }
+                }
+            }));
+        }
+
+        List<HostSystem> resultList = new ArrayList<>();
+        for (int i = 0; i < hostSystemList.size(); i++) {
+            HostSystem hostSystem = hostSystemList.get(i);
+            if (i >= futureList.size()) {
+                //not started when the request was interrupted
+                hostSystem.setStatusCd(HostSystem.GENERIC_FAIL_STATUS);
+                setStatus(sessionId, hostSystem);
+                resultList.add(hostSystem);
+                continue;
+            }
+            try {
+                resultList.add(futureList.get(i).get());
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                hostSystem.setStatusCd(HostSystem.GENERIC_FAIL_STATUS);
+                resultList.add(hostSystem);
+            } catch (ExecutionException ex) {
+                log.error(ex.toString(), ex);
+                hostSystem.setErrorMsg(ex.getCause() != null ? ex.getCause().getMessage() : ex.getMessage());
+                hostSystem.setStatusCd(HostSystem.GENERIC_FAIL_STATUS);
+                setStatus(sessionId, hostSystem);
+                resultList.add(hostSystem);
+            }
+        }
+        return resultList;
+    }
+
+    /**
+     * returns status of the systems last opened for the session
+     *
+     * @param sessionId session id
+     * @return status of each system
+     */
+    public static List<HostSystem> getConnectStatus(Long sessionId) {
+        List<HostSystem> statusList = new ArrayList<>();
+        Map<Long, HostSystem> statusMap = sessionId != null ? connectStatusMap.get(sessionId) : null;
+        if (statusMap != null) {
+            statusList.addAll(statusMap.values());
+        }
+        return statusList;
+    }
+
+    /**
+     * removes connect status for the session
+     *
+     * @param sessionId session id
+     */
+    public static void removeConnectStatus(Long sessionId) {
+        if (sessionId != null) {
+            connectStatusMap.remove(sessionId);
+        }
+    }
+
+    private static void setStatus(Long sessionId, HostSystem hostSystem) {
+        Map<Long, HostSystem> statusMap = connectStatusMap.get(sessionId);
+        if (statusMap != null) {
+            statusMap.put(hostSystem.getId(), getStatus(hostSystem, hostSystem.getStatusCd()));
+        }
+    }
+
+    /**
+     * returns copy of the system with only what is shown for progress
+     *
+     * @param hostSystem host system
+     * @param statusCd   status
+     * @return status for system
+     */
+    private static HostSystem getStatus(HostSystem hostSystem, String statusCd) {
+        HostSystem status = new HostSystem();
+        status.setId(hostSystem.getId());
+        status.setDisplayNm(hostSystem.getDisplayNm());
+        status.setUser(hostSystem.getUser());
+        status.setHost(hostSystem.getHost());
+        status.setPort(hostSystem.getPort());
+        status.setStatusCd(statusCd);
+        status.setErrorMsg(HostSystem.SUCCESS_STATUS.equals(statusCd) ? null : hostSystem.getErrorMsg());
+        return status;
+    }
+
+    /**
+     * names connect threads and keeps them from holding up shutdown
+     */
+    private static class ConnectThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+        @Override
+        public Thread newThread(Runnable run) {
+            Thread thread = new Thread(run, "keybox-term-connect-" + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
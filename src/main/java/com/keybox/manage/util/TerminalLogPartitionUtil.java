@@ -0,0 +1,199 @@
+/**
+ * Copyright 2013 Sean Kavanagh - sean.p.kavanagh6@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.keybox.manage.util;
+
+import com.keybox.common.util.AppConfig;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Date;
+
+/**
+ * Utility to manage monthly range partitions of terminal_log on MySQL so expired audit
+ * output is removed by dropping a partition instead of deleting rows
+ */
+public class TerminalLogPartitionUtil {
+
+    private static Logger log = LoggerFactory.getLogger(TerminalLogPartitionUtil.class);
+
+    public static final boolean PARTITION_ENABLED = "true".equals(AppConfig.getProperty("mysqlPartitionTerminalLog"));
+    public static final int PARTITION_MONTHS_AHEAD = StringUtils.isNumeric(AppConfig.getProperty("mysqlPartitionMonthsAhead")) ? Integer.parseInt(AppConfig.getProperty("mysqlPartitionMonthsAhead")) : 3;
+
+    private static final String MAX_PARTITION = "pmax";
+
+    private TerminalLogPartitionUtil() {
+    }
+
+    /**
+     * returns partition clause for creating terminal_log with a partition for each month
+     * from the start of the retention period to the months ahead
+     *
+     * @param now           current time
+     * @param retentionDays days audit history is kept
+     * @return partition by clause
+     */
+    public static String getPartitionClause(Date now, int retentionDays) {
+
+        Calendar month = getMonthStart(now);
+        month.add(Calendar.DATE, -1 * retentionDays);
+        month = getMonthStart(month.getTime());
+        Calendar last = getMonthStart(now);
+        last.add(Calendar.MONTH, PARTITION_MONTHS_AHEAD);
+
+        StringBuilder clause = new StringBuilder("partition by range (unix_timestamp(log_tm)) (");
+        while (!month.after(last)) {
+            clause.append(getPartitionDefinition(month)).append(", ");
+            month.add(Calendar.MONTH, 1);
+        }
+        clause.append("partition ").append(MAX_PARTITION).append(" values less than maxvalue)");
+        return clause.toString();
+    }
+
+    /**
+     * returns true if terminal_log is partitioned
+     *
+     * @param con DB connection
+     * @return true if partitioned
+     * @throws SQLException if the schema could not be read
+     */
+    public static boolean isPartitioned(Connection con) throws SQLException {
+        PreparedStatement stmt = con.prepareStatement("select count(*) from information_schema.partitions where table_schema = database() and table_name = 'terminal_log' and partition_name is not null");
+        ResultSet rs = stmt.executeQuery();
+        boolean partitioned = rs.next() && rs.getInt(1) > 0;
+        DBUtils.closeRs(rs);
+        DBUtils.closeStmt(stmt);
+        return partitioned;
+    }
+
+    /**
+     * drops partitions holding only output logged before the cutoff and adds partitions for the months ahead
+     *
+     * @param con    DB connection
+     * @param cutoff output logged before this time is expired
+     * @return estimated number of rows dropped
+     * @throws SQLException if the partitions could not be changed
+     */
+    public static long maintainPartitions(Connection con, Date cutoff) throws SQLException {
+
+        long rows = 0;
+        //last month with a partition, from its name so the JVM and MySQL time zones need not match
+        Calendar lastMonth = null;
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+        Statement alterStmt = null;
+        try {
+            stmt = con.prepareStatement("select partition_name, partition_description, table_rows from information_schema.partitions where table_schema = database() and table_name = 'terminal_log' and partition_name is not null order by partition_ordinal_position");
+            rs = stmt.executeQuery();
+            alterStmt = con.createStatement();
+            while (rs.next()) {
+                String name = rs.getString("partition_name");
+                String description = rs.getString("partition_description");
+                if (MAX_PARTITION.equals(name) || !StringUtils.isNumeric(description)) {
+                    continue;
+                }
+                //description is the exclusive upper bound in seconds
+                long bound = Long.parseLong(description);
+                if (bound * 1000 <= cutoff.getTime()) {
+                    alterStmt.executeUpdate("alter table terminal_log drop partition " + name);
+                    rows = rows + rs.getLong("table_rows");
+                    log.info("Dropped expired terminal_log partition " + name);
+                } else {
+                    Calendar month = getPartitionMonth(name);
+                    if (month != null && (lastMonth == null || month.after(lastMonth))) {
+                        lastMonth = month;
+                    }
+                }
+            }
+
+            //split the max partition so the months ahead have their own partitions
+            Calendar month;
+            if (lastMonth != null) {
+                month = lastMonth;
+                month.add(Calendar.MONTH, 1);
+            } else {
+                month = getMonthStart(new Date());
+            }
+            Calendar last = getMonthStart(new Date());
+            last.add(Calendar.MONTH, PARTITION_MONTHS_AHEAD);
+            while (!month.after(last)) {
+                alterStmt.executeUpdate("alter table terminal_log reorganize partition " + MAX_PARTITION + " into ("
+                        + getPartitionDefinition(month) + ", partition " + MAX_PARTITION + " values less than maxvalue)");
+                log.info("Added terminal_log partition " + getPartitionName(month));
+                month.add(Calendar.MONTH, 1);
+            }
+        } finally {
+            DBUtils.closeRs(rs);
+            DBUtils.closeStmt(stmt);
+            DBUtils.closeStmt(alterStmt);
+        }
+        return rows;
+    }
+
+    /**
+     * returns the month a partition named pYYYYMM holds
+     *
+     * @param name partition name
+     * @return start of month or null if the name is not a month partition
+     */
+    private static Calendar getPartitionMonth(String name) {
+        if (name == null || !name.matches("p\\d{6}")) {
+            return null;
+        }
+        SimpleDateFormat format = new SimpleDateFormat("yyyyMM");
+        format.setLenient(false);
+        try {
+            return getMonthStart(format.parse(name.substring(1)));
+        } catch (ParseException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * returns definition of the partition for a month
+     *
+     * @param month start of month
+     * @return partition definition
+     */
+    private static String getPartitionDefinition(Calendar month) {
+        Calendar next = (Calendar) month.clone();
+        next.add(Calendar.MONTH, 1);
+        return "partition " + getPartitionName(month) + " values less than (unix_timestamp('" + new SimpleDateFormat("yyyy-MM-dd").format(next.getTime()) + "'))";
+    }
+
+    private static String getPartitionName(Calendar month) {
+        return "p" + new SimpleDateFormat("yyyyMM").format(month.getTime());
+    }
+
+    private static Calendar getMonthStart(Date date) {
+        Calendar month = Calendar.getInstance();
+        month.setTime(date);
+        month.set(Calendar.DAY_OF_MONTH, 1);
+        month.set(Calendar.HOUR_OF_DAY, 0);
+        month.set(Calendar.MINUTE, 0);
+        month.set(Calendar.SECOND, 0);
+        month.set(Calendar.MILLISECOND, 0);
+        return month;
+    }
+}
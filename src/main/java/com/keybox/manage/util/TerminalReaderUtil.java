@@ -0,0 +1,215 @@
+/**
+ * Copyright 2013 Sean Kavanagh - sean.p.kavanagh6@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.keybox.manage.util;
+
+import com.keybox.common.util.AppConfig;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Utility to run the tasks that read output from ssh terminals and track them per terminal instance
+ */
+public class TerminalReaderUtil {
+
+    private static Logger log = LoggerFactory.getLogger(TerminalReaderUtil.class);
+
+    public static final String POOL_MODE = "pool";
+    public static final String VIRTUAL_MODE = "virtual";
+
+    public static final String READER_MODE = AppConfig.getProperty("terminalReaderMode", POOL_MODE);
+    //parsed with sign so <=0 can turn the limit off
+    public static final int POOL_SIZE = NumberUtils.toInt(AppConfig.getProperty("terminalReaderPoolSize"), 2000);
+
+    private static final ExecutorService executor = createExecutor();
+
+    //session id, instance id, reader task
+    private static ConcurrentMap<Long, Map<Integer, Future<?>>> readerMap = new ConcurrentHashMap<>();
+
+    private TerminalReaderUtil() {
+    }
+
+    /**
+     * creates executor based on the configured reader mode
+     *
+     * @return executor for terminal readers
+     */
+    private static ExecutorService createExecutor() {
+
+        if (VIRTUAL_MODE.equals(READER_MODE)) {
+            try {
+                //resolved at runtime so the application can still be built and run on older JDKs
+                ExecutorService virtualExecutor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+                log.info("Terminal readers running on virtual threads");
+                return virtualExecutor;
+            } catch (Exception ex) {
+                log.warn("Virtual threads are not available on this JDK, falling back to " + POOL_MODE + " mode");
+            }
+        }
+
+        ThreadPoolExecutor poolExecutor = new ThreadPoolExecutor(0, POOL_SIZE > 0 ? POOL_SIZE : Integer.MAX_VALUE,
+                60L, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ReaderThreadFactory());
+        log.info("Terminal readers running on pool with max threads " + poolExecutor.getMaximumPoolSize());
+        return poolExecutor;
+    }
+
+    /**
+     * starts reader task for terminal instance
+     *
+     * @param sessionId  session id
+     * @param instanceId id of host system instance
+     * @param task       reader task
+     * @throws java.util.concurrent.RejectedExecutionException if max number of terminal readers has been reached
+     */
+    public static void startReader(Long sessionId, Integer instanceId, Runnable task) {
+
+        //tracked before it runs so a reader that exits at once is removed as well
+        FutureTask<Object> reader = new FutureTask<>(task, null);
+        synchronized (readerMap) {
+            Map<Integer, Future<?>> instanceMap = readerMap.get(sessionId);
+            if (instanceMap == null) {
+                instanceMap = new ConcurrentHashMap<>();
+                readerMap.put(sessionId, instanceMap);
+            }
+            instanceMap.put(instanceId, reader);
+        }
+        try {
+            executor.execute(reader);
+        } catch (RejectedExecutionException ex) {
+            removeReader(sessionId, instanceId, reader);
+            throw ex;
+        }
+    }
+
+    /**
+     * removes tracked reader for terminal instance once it has finished
+     *
+     * @param sessionId  session id
+     * @param instanceId id of host system instance
+     */
+    public static void removeReader(Long sessionId, Integer instanceId) {
+        removeReader(sessionId, instanceId, null);
+    }
+
+    /**
+     * removes tracked reader for terminal instance
+     *
+     * @param sessionId  session id
+     * @param instanceId id of host system instance
+     * @param reader     reader to remove, null for any reader of the instance
+     */
+    private static void removeReader(Long sessionId, Integer instanceId, Future<?> reader) {
+
+        synchronized (readerMap) {
+            Map<Integer, Future<?>> instanceMap = readerMap.get(sessionId);
+            if (instanceMap != null) {
+                if (reader == null) {
+                    instanceMap.remove(instanceId);
+                } else {
+                    instanceMap.remove(instanceId, reader);
+                }
+                if (instanceMap.isEmpty()) {
+                    readerMap.remove(sessionId);
+                }
+            }
+        }
+    }
+
+    /**
+     * stops reader for terminal instance
+     *
+     * @param sessionId  session id
+     * @param instanceId id of host system instance
+     */
+    public static void stopReader(Long sessionId, Integer instanceId) {
+
+        Future<?> reader = null;
+        synchronized (readerMap) {
+            Map<Integer, Future<?>> instanceMap = readerMap.get(sessionId);
+            if (instanceMap != null) {
+                reader = instanceMap.remove(instanceId);
+                if (instanceMap.isEmpty()) {
+                    readerMap.remove(sessionId);
+                }
+            }
+        }
+        if (reader != null) {
+            reader.cancel(true);
+        }
+    }
+
+    /**
+     * stops all readers for user session
+     *
+     * @param sessionId session id
+     */
+    public static void stopReaders(Long sessionId) {
+
+        Map<Integer, Future<?>> instanceMap;
+        synchronized (readerMap) {
+            instanceMap = readerMap.remove(sessionId);
+        }
+        if (instanceMap != null) {
+            for (Future<?> reader : instanceMap.values()) {
+                reader.cancel(true);
+            }
+            instanceMap.clear();
+        }
+    }
+
+    /**
+     * returns the number of terminal readers being tracked
+     *
+     * @return active reader count
+     */
+    public static int getActiveReaderCount() {
+        int count = 0;
+        for (Map<Integer, Future<?>> instanceMap : readerMap.values()) {
+            count = count + instanceMap.size();
+        }
+        return count;
+    }
+
+    /**
+     * Creates named daemon threads for terminal readers
+     */
+    private static class ReaderThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+        @Override
+        public Thread newThread(Runnable run) {
+            Thread thread = new Thread(run, "keybox-term-reader-" + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+}
@@ -123,6 +123,20 @@
             <s:else>
             <s:if test="currentSystemStatus==null ||currentSystemStatus.statusCd!='GENERICFAIL'">
             $("#composite_terms_frm").submit();
+
+            //show status of each system while the terminals are opened
+            setInterval(function () {
+                $.getJSON('getJSONConnectStatus.action?_csrf=<s:property value="#session['_csrf']"/>', function (statusList) {
+                    var html = '';
+                    $.each(statusList, function (i, status) {
+                        var label = $('<div/>').text(status.displayNm + ' - ( ' + status.user + '@' + status.host + ':' + status.port + ' )').html();
+                        var statusTxt = status.statusCd == 'INITIAL' ? 'Connecting' : (status.statusCd == 'SUCCESS' ? 'Connected'
+                                : (status.statusCd == 'AUTHFAIL' || status.statusCd == 'KEYAUTHFAIL' ? 'Authentication required' : 'Failed'));
+                        html = html + '<tr><td>' + label + '</td><td>' + statusTxt + '</td></tr>';
+                    });
+                    $('#connect_status').html(html);
+                });
+            }, 1000);
             </s:if>
             </s:else>
             </s:elseif>
@@ -260,7 +274,14 @@
             }
             ws_uri += "//" + loc.host + loc.pathname + '/../terms.ws?t=' + new Date().getTime();
 
+            //request framed binary output if the browser can decode it, otherwise fall back to json
+            var outputDecoder = window.TextDecoder ? new TextDecoder('utf-8') : null;
+            if (outputDecoder) {
+                ws_uri += '&protocol=binary';
+            }
+
             var connection = new WebSocket(ws_uri);
+            connection.binaryType = 'arraybuffer';
 
 
             // Log errors
@@ -270,20 +291,35 @@
 
             // Log messages from the server
             connection.onmessage = function (e) {
-                var json = jQuery.parseJSON(e.data);
-                $.each(json, function (key, val) {
-                    if (val.output != '') {
-                        if(!termMap[val.instanceId]) {
-                            createTermMap(val.instanceId, val.output);
-                        }else {
-                            termMap[val.instanceId].write(val.output);
-                        }
+                if (e.data instanceof ArrayBuffer) {
+                    //records of 4 byte instance id, 4 byte length and UTF-8 output
+                    var view = new DataView(e.data);
+                    var offset = 0;
+                    while (offset + 8 <= view.byteLength) {
+                        var instanceId = view.getInt32(offset);
+                        var length = view.getInt32(offset + 4);
+                        offset += 8;
+                        writeOutput(instanceId, outputDecoder.decode(new Uint8Array(e.data, offset, length)));
+                        offset += length;
                     }
-                        
-                });
+                } else {
+                    var json = jQuery.parseJSON(e.data);
+                    $.each(json, function (key, val) {
+                        writeOutput(val.instanceId, val.output);
+                    });
+                }
 
-                
             };
+
+            function writeOutput(id, output) {
+                if (output != '') {
+                    if(!termMap[id]) {
+                        createTermMap(id, output);
+                    }else {
+                        termMap[id].write(output);
+                    }
+                }
+            }
             
             function  createTermMap(id, output){
 
@@ -601,6 +637,9 @@
 
 <div class="term-container container">
 
+    <s:if test="pendingSystemStatus!=null">
+        <table id="connect_status" class="table-striped"></table>
+    </s:if>
 
     <div class="termwrapper">
 
@@ -711,6 +750,16 @@
                 <div class="modal-body">
                     <div class="row">
                         <div class="error">Error: <s:property value="currentSystemStatus.errorMsg"/></div>
+                        <s:if test="failedSystemList.size() > 1">
+                            <table class="table-striped">
+                                <s:iterator value="failedSystemList">
+                                    <tr>
+                                        <td><s:property value="displayLabel"/></td>
+                                        <td class="error"><s:property value="errorMsg"/></td>
+                                    </tr>
+                                </s:iterator>
+                            </table>
+                        </s:if>
                         <s:form id="error_frm" action="createTerms">
                             <s:hidden name="_csrf" value="%{#session['_csrf']}"/>
                             <s:hidden name="pendingSystemStatus.id"/>
@@ -0,0 +1,239 @@
+<%
+/**
+ * Copyright 2013 Sean Kavanagh - sean.p.kavanagh6@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+%>
+<%@ taglib prefix="s" uri="/struts-tags" %>
+<!DOCTYPE html>
+<html>
+<head>
+
+<jsp:include page="../_res/inc/header.jsp"/>
+
+<script type="text/javascript">
+$(document).ready(function() {
+
+    var baseUrl = 'sessionId=<s:property value="sessionAudit.id"/>&instanceId=<s:property value="hostSystem.instanceId"/>&_csrf=<s:property value="#session['_csrf']"/>';
+    //number of terminal log entries loaded per request
+    var pageSize = 500;
+    //load the next page when fewer events than this are queued
+    var lowWater = 100;
+
+    var term = new Terminal({
+        cols: Math.floor($('.output').innerWidth() / 7.2981), rows: 24,
+        screenKeys: false,
+        useStyle: true,
+        cursorBlink: false,
+        convertEol: true
+    });
+    term.open($('.output'));
+
+    var index = null;
+    var duration = 0;
+    var queue = [];
+    var position = 0;
+    var nextFromTm = null;
+    var nextFromOffset = 0;
+    var complete = false;
+    var loading = false;
+    var playing = false;
+    var lastTick = null;
+    //incremented on seek so responses for an earlier position are ignored
+    var generation = 0;
+
+    function loadPage(fromTm, fromOffset) {
+        var gen = generation;
+        loading = true;
+        $.getJSON('getJSONPlaybackForSession.action?' + baseUrl + '&fromTm=' + fromTm + '&fromOffset=' + fromOffset + '&limit=' + pageSize + '&t=' + new Date().getTime(), function (page) {
+            if (gen != generation) {
+                return;
+            }
+            queue = queue.concat(page.events);
+            nextFromTm = page.nextFromTm;
+            nextFromOffset = page.nextFromOffset;
+            complete = page.complete;
+            loading = false;
+        });
+    }
+
+    function seek(seconds) {
+        generation++;
+        queue = [];
+        complete = false;
+        loading = false;
+        position = seconds;
+        term.reset();
+
+        //start from the closest keyframe before the position, earlier output is written without delay
+        var targetTm = index.startTm + seconds * 1000;
+        var fromTm = index.startTm;
+        for (var i = 0; i < index.keyframes.length && index.keyframes[i] <= targetTm; i++) {
+            fromTm = index.keyframes[i];
+        }
+        loadPage(fromTm, 0);
+    }
+
+    function tick() {
+        var now = new Date().getTime();
+        if (playing) {
+            position = Math.min(duration, position + (now - lastTick) / 1000 * parseFloat($('#speed').val()));
+        }
+        lastTick = now;
+
+        var output = '';
+        while (queue.length > 0 && queue[0][0] <= position) {
+            output = output + queue.shift()[2];
+        }
+        if (output != '') {
+            term.write(output);
+        }
+        if (!complete && !loading && queue.length < lowWater && nextFromTm != null) {
+            loadPage(nextFromTm, nextFromOffset);
+        }
+        if (playing && position >= duration && queue.length == 0 && complete) {
+            setPlaying(false);
+        }
+        $('#seek').val(Math.floor(position));
+        $('#position').text(formatTime(position) + ' / ' + formatTime(duration));
+    }
+
+    function setPlaying(play) {
+        playing = play;
+        $('.play_btn').text(play ? 'Pause' : 'Play');
+    }
+
+    function formatTime(seconds) {
+        var s = Math.floor(seconds % 60);
+        return Math.floor(seconds / 60) + ':' + (s < 10 ? '0' : '') + s;
+    }
+
+    $('.play_btn').button().click(function () {
+        if (index != null) {
+            if (!playing && position >= duration) {
+                seek(0);
+            }
+            setPlaying(!playing);
+        }
+    });
+
+    $('#seek').change(function () {
+        if (index != null) {
+            seek(parseInt($(this).val()));
+        }
+    });
+
+    $.getJSON('getJSONPlaybackIndex.action?' + baseUrl + '&t=' + new Date().getTime(), function (playbackIndex) {
+        if (playbackIndex.startTm != null) {
+            index = playbackIndex;
+            duration = (index.endTm - index.startTm) / 1000;
+            $('#seek').attr('max', Math.ceil(duration));
+            seek(0);
+            setPlaying(true);
+            lastTick = new Date().getTime();
+            setInterval(tick, 50);
+        }
+    });
+
+});
+
+</script>
+<style type="text/css">
+    .run_cmd {
+        min-width:600px ;
+    }
+
+    .align-right {
+        padding: 10px 2px 10px 10px;
+        float: right;
+    }
+
+    .term-container {
+        width: 100%;
+        padding: 25px 0px;
+        margin: 0px;
+    }
+
+    .playback-controls {
+        padding: 10px 0px;
+    }
+
+    #seek {
+        display: inline-block;
+        width: 60%;
+        vertical-align: middle;
+    }
+
+</style>
+
+<title>KeyBox - Session Playback</title>
+
+</head>
+<body>
+<div class="navbar navbar-default navbar-fixed-top" role="navigation">
+    <div class="container" >
+
+        <div class="navbar-header">
+            <div class="navbar-brand" >
+            <div class="nav-img"><img src="<%= request.getContextPath() %>/img/keybox_40x40.png" alt="keybox"/></div>
+             KeyBox</div>
+            <button type="button" class="navbar-toggle" data-toggle="collapse" data-target=".navbar-collapse">
+                <span class="sr-only">Toggle navigation</span>
+                <span class="icon-bar"></span>
+                <span class="icon-bar"></span>
+                <span class="icon-bar"></span>
+            </button>
+        </div>
+        <div class="collapse navbar-collapse">
+            <ul class="nav navbar-nav">
+                 <li><a href="getTermsForSession.action?sessionId=<s:property value="sessionAudit.id"/>&_csrf=<s:property value="#session['_csrf']"/>">Exit Playback</a></li>
+            </ul>
+            <div class="align-right" style="padding-top: 15px">
+                <b>Playback  ( <s:property value="sessionAudit.username"/>
+                <s:if test="sessionAudit.lastNm!=null">
+                    - <s:property value="sessionAudit.lastNm"/>, <s:property value="sessionAudit.firstNm"/>
+                </s:if> ) </b>
+            </div>
+            <div class="clear"></div>
+        </div>
+        <!--/.nav-collapse -->
+    </div>
+</div>
+
+
+<div class="term-container container">
+    <s:if test="hostSystem!= null">
+        <div class="playback-controls">
+            <div class="btn btn-default play_btn spacer spacer-left">Play</div>
+            <input type="range" id="seek" min="0" max="0" value="0" step="1"/>
+            <span id="position">0:00 / 0:00</span>
+            <select id="speed">
+                <option value="0.5">0.5x</option>
+                <option value="1" selected="selected">1x</option>
+                <option value="2">2x</option>
+                <option value="4">4x</option>
+                <option value="8">8x</option>
+            </select>
+        </div>
+        <div id="run_cmd_<s:property value="hostSystem.instanceId"/>" class="run_cmd_active run_cmd">
+            <h6 class="term-header"><s:property value="hostSystem.displayLabel"/></h6>
+            <div class="term">
+                <div class="output"></div>
+            </div>
+        </div>
+    </s:if>
+</div>
+
+</body>
+</html>
@@ -30,6 +30,26 @@
             });
 
             $("#view_btn").button().click(function () {
+                clearPage();
+                $("#viewSessions").submit();
+            });
+
+            //start from the first page when the sort or filters change
+            function clearPage() {
+                $('#viewSessions_sortedSet_cursor').attr('value', '');
+                $('#viewSessions_sortedSet_previousPage').attr('value', 'false');
+                $('#viewSessions_sortedSet_totalCount').attr('value', '');
+            }
+
+            $(".next_btn").button().click(function () {
+                $('#viewSessions_sortedSet_cursor').attr('value', '<s:property value="sortedSet.nextCursor" escapeJavaScript="true"/>');
+                $('#viewSessions_sortedSet_previousPage').attr('value', 'false');
+                $("#viewSessions").submit();
+            });
+
+            $(".prev_btn").button().click(function () {
+                $('#viewSessions_sortedSet_cursor').attr('value', '<s:property value="sortedSet.previousCursor" escapeJavaScript="true"/>');
+                $('#viewSessions_sortedSet_previousPage').attr('value', 'true');
                 $("#viewSessions").submit();
             });
 
@@ -49,6 +69,7 @@
                 }
 
                 $('#viewSessions_sortedSet_orderByField').attr('value', id);
+                clearPage();
                 $("#viewSessions").submit();
 
             });
@@ -82,6 +103,9 @@
                                 <s:hidden name="_csrf" value="%{#session['_csrf']}"/>
                                 <s:hidden name="sortedSet.orderByDirection"/>
                                 <s:hidden name="sortedSet.orderByField"/>
+                                <s:hidden name="sortedSet.cursor" value=""/>
+                                <s:hidden name="sortedSet.previousPage" value="false"/>
+                                <s:hidden name="sortedSet.totalCount"/>
                                 <table>
                                 <tr>
                                     <s:if test="userList!= null && !userList.isEmpty()">
@@ -102,6 +126,12 @@
                                             headerValue="-Select System-"/>
                                         </td>
                                     </s:if>
+                                    <td class="align_left">
+                                        <s:textfield name="sortedSet.filterMap['%{@com.keybox.manage.db.SessionAuditDB@FILTER_BY_OUTPUT}']" placeholder="Search output" class="view_frm_select"/>
+                                    </td>
+                                    <td class="align_left">
+                                        <s:textfield name="sortedSet.filterMap['%{@com.keybox.manage.db.SessionAuditDB@FILTER_BY_COMMAND}']" placeholder="Search commands" class="view_frm_select"/>
+                                    </td>
                                     <td style="padding:5px 5px 0px 5px;">
                                         <div id="view_btn" class="btn btn-default">Filter</div>
                                     </td>
@@ -161,6 +191,15 @@
                 </tbody>
             </table>
         </div>
+        <div class="spacer">
+            <s:property value="sortedSet.itemList.size"/> of <s:property value="sortedSet.totalCount"/> sessions
+            <s:if test="sortedSet.previousCursor!=null">
+                <div class="btn btn-default prev_btn spacer spacer-left">Previous</div>
+            </s:if>
+            <s:if test="sortedSet.nextCursor!=null">
+                <div class="btn btn-default next_btn spacer spacer-right">Next</div>
+            </s:if>
+        </div>
         </s:if>
         <s:else>
             <p class="error">No session audits available</p>
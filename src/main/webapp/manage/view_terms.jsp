@@ -60,32 +60,39 @@ $(document).ready(function() {
 
    }
 
+  //number of terminal log entries loaded per request
+  var pageSize = 500;
+
   function loadTerms(){
 
         $(".output").each(function (index, value){
 
                var id = $(this).attr("id").replace("output_", "");
-
-               $.getJSON('getJSONTermOutputForSession.action?sessionId=<s:property value="sessionAudit.id"/>&instanceId='+id+'&t='+new Date().getTime() +'&_csrf=<s:property value="#session['_csrf']"/>', function(data) {
-                   $.each(data, function(key, val) {
-                       if (val.output != '' && val.instanceId!=null) {
-
-                               $("#output_"+val.instanceId+"> .terminal").empty();
-                               var output=val.output;
-                               output = output.replace(/\r\n\r\n/g, '\r\n \r\n');
-                               var outputList = output.split('\r\n');
-                               for(var i=0; i<outputList.length;i++){
-                                   $("#output_"+val.instanceId+"> .terminal").append("<pre>"+outputList[i]+"</pre>");;
-                               }
-
-
-                       }
-                   });
-                });
+               $("#output_"+id+"> .terminal").empty();
+               loadTermPage(id, '');
 
            });
   }
 
+  function loadTermPage(id, cursor){
+
+       $.getJSON('getJSONTermOutputForSession.action?sessionId=<s:property value="sessionAudit.id"/>&instanceId='+id+'&cursor='+encodeURIComponent(cursor)+'&limit='+pageSize+'&t='+new Date().getTime() +'&_csrf=<s:property value="#session['_csrf']"/>', function(page) {
+           //pages end on a complete line, the partial line is continued in the next page
+           var output = page.output != null ? page.output : '';
+           output = output.replace(/\r\n\r\n/g, '\r\n \r\n');
+           var outputList = output.split('\r\n');
+           if (!page.complete && outputList.length > 0 && outputList[outputList.length - 1] == '') {
+               outputList.pop();
+           }
+           for(var i=0; i<outputList.length;i++){
+               $("#output_"+id+"> .terminal").append("<pre>"+outputList[i]+"</pre>");
+           }
+           if (!page.complete) {
+               loadTermPage(id, page.nextCursor);
+           }
+       });
+  }
+
   loadTerms();
 
 });
@@ -176,7 +183,9 @@ $(document).ready(function() {
                 <s:iterator value="sessionAudit.hostSystemList">
                     <div id="run_cmd_<s:property value="instanceId"/>" class="run_cmd_active run_cmd">
 
-                        <h6 class="term-header"><s:property value="displayLabel"/></h6>
+                        <h6 class="term-header"><s:property value="displayLabel"/>
+                            <a href="viewTermPlayback.action?sessionId=<s:property value="sessionAudit.id"/>&instanceId=<s:property value="instanceId"/>&_csrf=<s:property value="#session['_csrf']"/>">Play</a>
+                            <a href="exportSessionAudit.action?format=asciicast&sessionId=<s:property value="sessionAudit.id"/>&instanceId=<s:property value="instanceId"/>&_csrf=<s:property value="#session['_csrf']"/>">Export</a></h6>
 
                         <div id="term" class="term">
                             <div id="output_<s:property value="instanceId"/>" class="output">
@@ -0,0 +1,231 @@
+/**
+ * Copyright 2013 Sean Kavanagh - sean.p.kavanagh6@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.keybox.manage.util;
+
+import com.jcraft.jsch.Channel;
+import com.jcraft.jsch.JSch;
+import com.jcraft.jsch.Session;
+import com.keybox.manage.model.HostSystem;
+import org.apache.sshd.common.Factory;
+import org.apache.sshd.server.Command;
+import org.apache.sshd.server.Environment;
+import org.apache.sshd.server.ExitCallback;
+import org.apache.sshd.server.SshServer;
+import org.apache.sshd.server.auth.password.PasswordAuthenticator;
+import org.apache.sshd.server.keyprovider.SimpleGeneratorHostKeyProvider;
+import org.apache.sshd.server.session.ServerSession;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class SSHUtilTest {
+
+    private static final String PASSWORD = "keybox";
+    private static final long ECHO_TIMEOUT = 10000;
+    //more than the channel window so the paused terminal must have its window opened again
+    private static final long FLOOD_READ = 4L * 1024 * 1024;
+    //JSch opens shell channels with a 1MB window
+    private static final int MAX_HELD = 2 * 1024 * 1024;
+
+    private SshServer sshServer;
+    private HostSystem hostSystem;
+
+    @Before
+    public void setUp() throws IOException {
+        sshServer = SshServer.setUpDefaultServer();
+        sshServer.setHost("127.0.0.1");
+        sshServer.setPort(0);
+        sshServer.setKeyPairProvider(new SimpleGeneratorHostKeyProvider());
+        sshServer.setPasswordAuthenticator(new PasswordAuthenticator() {
+            @Override
+            public boolean authenticate(String username, String password, ServerSession session) {
+                return PASSWORD.equals(password);
+            }
+        });
+        sshServer.setShellFactory(new Factory<Command>() {
+            @Override
+            public Command create() {
+                return new EchoShell();
+            }
+
+            public Command get() {
+                return create();
+            }
+        });
+        sshServer.start();
+
+        hostSystem = new HostSystem();
+        hostSystem.setUser("keybox");
+        hostSystem.setHost("127.0.0.1");
+        hostSystem.setPort(sshServer.getPort());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        sshServer.stop(true);
+    }
+
+    @Test
+    public void testPausedTerminalDoesNotStallSibling() throws Exception {
+
+        JSch jsch = new JSch();
+        Session session = SSHUtil.getSession(jsch, 1L, hostSystem, PASSWORD);
+        Session shared = SSHUtil.getSession(jsch, 1L, hostSystem, PASSWORD);
+        try {
+            assertSame(session, shared);
+
+            //terminal whose output is not read, as when its reader is paused for a slow client
+            Channel pausedChannel = session.openChannel("shell");
+            InputStream pausedOutput = new ChannelOutputPipe(pausedChannel);
+            PrintStream pausedInput = new PrintStream(pausedChannel.getOutputStream(), true);
+            pausedChannel.connect();
+            pausedInput.print("flood\n");
+            Thread.sleep(1000);
+
+            Channel siblingChannel = shared.openChannel("shell");
+            BufferedReader siblingOutput = new BufferedReader(new InputStreamReader(new ChannelOutputPipe(siblingChannel), StandardCharsets.UTF_8));
+            PrintStream siblingInput = new PrintStream(siblingChannel.getOutputStream(), true);
+            siblingChannel.connect();
+            siblingInput.print("ping\n");
+            assertEquals("sibling terminal stalled", "ping", readLine(siblingOutput));
+
+            //unread output is bounded by the held back window
+            assertTrue("paused terminal window not held back, unread " + pausedOutput.available(), pausedOutput.available() <= MAX_HELD);
+
+            //output held back by the window is sent again once the paused terminal is read
+            byte[] read = new byte[8192];
+            long total = 0;
+            long deadline = System.currentTimeMillis() + ECHO_TIMEOUT;
+            while (total < FLOOD_READ && System.currentTimeMillis() < deadline) {
+                int count = pausedOutput.read(read);
+                assertTrue("paused terminal closed", count > 0);
+                total = total + count;
+            }
+            assertTrue("paused terminal did not resume, read " + total, total >= FLOOD_READ);
+
+            pausedChannel.disconnect();
+            siblingChannel.disconnect();
+        } finally {
+            SSHSessionUtil.release(session);
+            SSHSessionUtil.release(shared);
+            SSHSessionUtil.disconnectIdle();
+        }
+    }
+
+    /**
+     * reads a line on another thread so a stalled channel fails the test instead of hanging it
+     *
+     * @param reader reader for channel output
+     * @return line read, null if none was read in time
+     */
+    private static String readLine(final BufferedReader reader) throws InterruptedException {
+        final String[] line = new String[1];
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    line[0] = reader.readLine();
+                } catch (IOException ex) {
+                    line[0] = ex.toString();
+                }
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        thread.join(ECHO_TIMEOUT);
+        return line[0];
+    }
+
+    /**
+     * shell echoing each line, writing output until the channel closes for a line of flood
+     */
+    private static class EchoShell implements Command, Runnable {
+
+        private InputStream in;
+        private OutputStream out;
+        private ExitCallback exitCallback;
+        private Thread thread;
+
+        @Override
+        public void setInputStream(InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public void setOutputStream(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void setErrorStream(OutputStream err) {
+        }
+
+        @Override
+        public void setExitCallback(ExitCallback exitCallback) {
+            this.exitCallback = exitCallback;
+        }
+
+        @Override
+        public void start(Environment env) {
+            thread = new Thread(this, "echo-shell");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        @Override
+        public void destroy() {
+            thread.interrupt();
+        }
+
+        @Override
+        public void run() {
+            try {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if ("flood".equals(line)) {
+                        byte[] output = new byte[8192];
+                        Arrays.fill(output, (byte) 'x');
+                        while (!Thread.currentThread().isInterrupted()) {
+                            out.write(output);
+                            out.flush();
+                        }
+                    } else {
+                        out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+                        out.flush();
+                    }
+                }
+            } catch (IOException ex) {
+                //channel closed
+            } finally {
+                exitCallback.onExit(0);
+            }
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/**
+ * Copyright 2013 Sean Kavanagh - sean.p.kavanagh6@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.keybox.manage.util;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+
+public class TerminalCommandParserTest {
+
+    private TerminalCommandParser parser;
+    private List<String> commandList;
+
+    @Before
+    public void setUp() {
+        parser = new TerminalCommandParser(Pattern.compile("^[^$#%>]*[$#%>] "));
+        commandList = new ArrayList<>();
+    }
+
+    @Test
+    public void testCommand() {
+        parser.parse("user@host:~$ ", commandList);
+        parser.enter(1);
+        parser.parse("ls -l\r\ntotal 0\r\nuser@host:~$ ", commandList);
+        assertEquals(Arrays.asList("ls -l"), commandList);
+    }
+
+    @Test
+    public void testProgramOutputKeepsEnterForPrompt() {
+        //enter sent before the echo of the previous command's output has been parsed
+        parser.enter(1);
+        parser.parse("$ cat notes\r\nline 1\r\nline 2\r\n", commandList);
+        parser.enter(1);
+        parser.parse("$ pwd\r\n/root\r\n$ ", commandList);
+        assertEquals(Arrays.asList("cat notes", "pwd"), commandList);
+    }
+
+    @Test
+    public void testMultiLinePaste() {
+        parser.enter(3);
+        parser.parse("$ cd /tmp\r\n$ ls\r\na.txt\r\nb.txt\r\n$ echo done\r\ndone\r\n$ ", commandList);
+        assertEquals(Arrays.asList("cd /tmp", "ls", "echo done"), commandList);
+    }
+
+    @Test
+    public void testPasteEchoedDuringOutput() {
+        //pasted lines are echoed by the terminal while the first command runs and again after the prompt
+        parser.enter(2);
+        parser.parse("$ sleep 1\r\nuptime\r\n$ uptime\r\n 10:00:00 up 1 day\r\n$ ", commandList);
+        assertEquals(Arrays.asList("sleep 1", "uptime"), commandList);
+    }
+
+    @Test
+    public void testCtrlCForRunningCommand() {
+        //Ctrl-C queued before the echo of the interrupted command is parsed
+        parser.enter(1);
+        parser.cancel();
+        parser.parse("$ tail -f log\r\nentry\r\n^C\r\n$ ", commandList);
+        parser.enter(1);
+        parser.parse("date\r\nMon Jan 1\r\n$ ", commandList);
+        assertEquals(Arrays.asList("tail -f log", "date"), commandList);
+    }
+
+    @Test
+    public void testCtrlCAtPrompt() {
+        parser.cancel();
+        parser.enter(1);
+        parser.parse("$ rm -rf build^C\r\n$ make\r\n", commandList);
+        assertEquals(Arrays.asList("make"), commandList);
+    }
+
+    @Test
+    public void testPasswordNotRecorded() {
+        parser.enter(1);
+        parser.parse("$ sudo id\r\n[sudo] password for user: ", commandList);
+        parser.enter(1);
+        parser.parse("\r\nuid=0(root)\r\n$ ", commandList);
+        assertEquals(Arrays.asList("sudo id"), commandList);
+    }
+
+    @Test
+    public void testRollbackReappliesBatch() {
+        parser.parse("$ ", commandList);
+        parser.commit();
+
+        //batch not persisted, parsed again from the committed state when it is retried
+        parser.enter(1);
+        parser.parse("uname\r\nLinux\r\n$ ", commandList);
+        parser.rollback();
+        commandList.clear();
+        parser.enter(1);
+        parser.parse("uname\r\nLinux\r\n$ ", commandList);
+        parser.commit();
+        assertEquals(Arrays.asList("uname"), commandList);
+    }
+
+    @Test
+    public void testResetAfterGap() {
+        //the echo for the first enter was dropped from the audit queue
+        parser.enter(1);
+        parser.reset();
+        parser.parse("$ tab compl\r\nfile1 file2\r\n$ ", commandList);
+        parser.enter(1);
+        parser.parse("id\r\n", commandList);
+        assertEquals(Arrays.asList("id"), commandList);
+    }
+}